@@ -22,12 +22,35 @@ public class AppConstants {
 
     public static final String APP_NAME = "org.onosproject.ngsdn-tutorial";
     public static final PiPipeconfId PIPECONF_ID = new PiPipeconfId("org.onosproject.ngsdn-tutorial");
+    // Owner of the flows shared by all requesters of the pipeliner, e.g. My
+    // Station entries of filtering objectives.
+    public static final String PIPELINER_APP_NAME = "org.onosproject.ngsdn-tutorial.pipeliner";
 
     public static final int DEFAULT_FLOW_RULE_PRIORITY = 10;
-    public static final int INITIAL_SETUP_DELAY = 2; // Seconds.
-    public static final int CLEAN_UP_DELAY = 2000; // milliseconds
-    public static final int DEFAULT_CLEAN_UP_RETRY_TIMES = 10;
+    public static final int CLEAN_UP_TIMEOUT = 20000; // milliseconds
 
     public static final int CPU_PORT_ID = 255;
     public static final int CPU_CLONE_SESSION_ID = 99;
+    // PRE multicast group replicating packet-outs to all ports of a device.
+    // Must not clash with other multicast groups installed by the app.
+    public static final int FLOOD_GROUP_ID = 254;
+
+    // ECMP group IDs of next objectives mapped by the pipeliner are the next
+    // ID plus this base, to not clash with the group IDs allocated by the app
+    // for fabric and host routes, which must stay below it.
+    public static final int NEXT_OBJECTIVE_GROUP_ID_BASE = 0x40000000;
+
+    // Must match SRV6_MAX_HOPS in main.p4, i.e. the depth of the srv6_list
+    // header stack and the largest N for which srv6_t_insert_N is defined.
+    public static final int SRV6_MIN_SEGMENTS = 2;
+    public static final int SRV6_MAX_SEGMENTS = 8;
+
+    public static final int DEFAULT_SRV6_IMPORT_BATCH_SIZE = 1000;
+    public static final int SRV6_IMPORT_PROGRESS_INTERVAL = 10000; // Policies.
+
+    // Maximum number of GTP session flow rules per device batch.
+    public static final int DEFAULT_GTP_SESSION_BATCH_SIZE = 1000;
+
+    // Number of records kept by the flight recorder, must be a power of two.
+    public static final int FLIGHT_RECORDER_CAPACITY = 1 << 14;
 }
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.ngsdn.tutorial;
+
+import com.google.common.collect.ImmutableSet;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.IpAddress;
+import org.onlab.packet.MacAddress;
+import org.onlab.util.ItemNotFoundException;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.mastership.MastershipService;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.config.NetworkConfigService;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
+import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleService;
+import org.onosproject.net.flow.criteria.PiCriterion;
+import org.onosproject.net.host.InterfaceIpAddress;
+import org.onosproject.net.intf.Interface;
+import org.onosproject.net.intf.InterfaceService;
+import org.onosproject.net.pi.model.PiActionId;
+import org.onosproject.net.pi.model.PiActionParamId;
+import org.onosproject.net.pi.model.PiMatchFieldId;
+import org.onosproject.net.pi.runtime.PiAction;
+import org.onosproject.net.pi.runtime.PiActionParam;
+import org.onosproject.ngsdn.tutorial.BootstrapComponent.Stage;
+import org.onosproject.ngsdn.tutorial.common.FabricDeviceConfig;
+import org.onosproject.ngsdn.tutorial.common.InstrumentedExecutor.TaskType;
+import org.onosproject.ngsdn.tutorial.common.Utils;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.stream.Collectors;
+
+
+/**
+ * App component that configures devices to generate ARP replies for all
+ * interface IPv4 addresses configured in the netcfg, such that ARP requests
+ * for the gateway address are answered by the switch itself. IPv4
+ * counterpart of {@link NdpReplyComponent}.
+ */
+@Component(immediate = true)
+public class ArpReplyComponent {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(ArpReplyComponent.class.getName());
+
+    private static final String METRICS_NAME = "ArpReplyComponent";
+
+    //--------------------------------------------------------------------------
+    // ONOS CORE SERVICE BINDING
+    //
+    // These variables are set by the Karaf runtime environment before calling
+    // the activate() method.
+    //--------------------------------------------------------------------------
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected NetworkConfigService configService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected FlowRuleService flowRuleService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected InterfaceService interfaceService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected MastershipService mastershipService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    protected DeviceService deviceService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MainComponent mainComponent;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MetricsComponent metrics;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private BootstrapComponent bootstrap;
+
+    private DeviceListener deviceListener = new InternalDeviceListener();
+    private ApplicationId appId;
+
+    //--------------------------------------------------------------------------
+    // COMPONENT ACTIVATION.
+    //
+    // When loading/unloading the app the Karaf runtime environment will call
+    // activate()/deactivate().
+    //--------------------------------------------------------------------------
+
+    @Activate
+    public void activate() {
+        appId = mainComponent.getAppId();
+        // Register listeners to be informed about device events.
+        deviceService.addListener(deviceListener);
+        // Schedule set up of existing devices. Needed when reloading the app.
+        bootstrap.register(Stage.BASE, getClass().getSimpleName(),
+                           ImmutableSet.of("IngressPipeImpl.arp_reply_table"),
+                           this::setUpExistingDevice);
+        log.info("Started");
+    }
+
+    @Deactivate
+    public void deactivate() {
+        bootstrap.unregister(getClass().getSimpleName());
+        deviceService.removeListener(deviceListener);
+        log.info("Stopped");
+    }
+
+    //--------------------------------------------------------------------------
+    // METHODS.
+    //--------------------------------------------------------------------------
+
+    /**
+     * Set up the given device, available when the component is activated and
+     * for which this ONOS instance is currently master.
+     *
+     * @param deviceId the device ID
+     */
+    private void setUpExistingDevice(DeviceId deviceId) {
+        log.info("*** ARP REPLY - Starting Initial set up for {}...", deviceId);
+        metrics.time(METRICS_NAME, "setUpDevice", deviceId,
+                     () -> setUpDevice(deviceId));
+    }
+
+    /**
+     * Performs setup of the given device by creating a flow rule to generate
+     * ARP replies for IPv4 addresses associated to the device interfaces.
+     *
+     * @param deviceId device ID
+     */
+    private void setUpDevice(DeviceId deviceId) {
+
+        // Get this device config from netcfg.json.
+        final FabricDeviceConfig config = configService.getConfig(
+                deviceId, FabricDeviceConfig.class);
+        if (config == null) {
+            // Config not available yet
+            throw new ItemNotFoundException("Missing fabricDeviceConfig for " + deviceId);
+        }
+
+        // Get this device myStation mac.
+        final MacAddress deviceMac = config.myStationMac();
+
+        // Get all interfaces currently configured for the device
+        final Collection<Interface> interfaces = interfaceService.getInterfaces()
+                .stream()
+                .filter(iface -> iface.connectPoint().deviceId().equals(deviceId))
+                .collect(Collectors.toSet());
+
+        final Collection<FlowRule> flowRules = interfaces.stream()
+                .map(this::getIp4Addresses)
+                .flatMap(Collection::stream)
+                .map(ipv4addr -> buildArpReplyFlowRule(deviceId, ipv4addr, deviceMac))
+                .collect(Collectors.toSet());
+
+        if (flowRules.isEmpty()) {
+            log.info("{} does not have any IPv4 interface configured",
+                     deviceId);
+            return;
+        }
+
+        // Install flow rules.
+        log.info("Adding rules to {} to generate ARP replies for {} IPv4 addresses...",
+                 deviceId, flowRules.size());
+
+        installRules(flowRules);
+    }
+
+    /**
+     * Build a flow rule for the ARP reply table on the given device, for the
+     * given target IPv4 address and MAC address.
+     *
+     * @param deviceId          device ID where to install the flow rules
+     * @param targetIpv4Address target IPv4 address
+     * @param targetMac         target MAC address
+     * @return flow rule object
+     */
+    private FlowRule buildArpReplyFlowRule(DeviceId deviceId,
+                                           Ip4Address targetIpv4Address,
+                                           MacAddress targetMac) {
+
+        // Build match.
+        final PiCriterion match = PiCriterion.builder()
+                .matchExact(PiMatchFieldId.of("hdr.arp.target_proto_addr"), targetIpv4Address.toOctets())
+                .build();
+        // Build action.
+        final PiActionParam targetMacParam = new PiActionParam(
+                PiActionParamId.of("target_mac"), targetMac.toBytes());
+        final PiAction action = PiAction.builder()
+                .withId(PiActionId.of("IngressPipeImpl.arp_request_to_reply"))
+                .withParameter(targetMacParam)
+                .build();
+        // Table ID.
+        final String tableId = "IngressPipeImpl.arp_reply_table";
+
+        // Build flow rule.
+        final FlowRule rule = Utils.buildFlowRule(
+                deviceId, appId, tableId, match, action);
+
+        return rule;
+    }
+
+    //--------------------------------------------------------------------------
+    // EVENT LISTENERS
+    //
+    // Events are processed only if isRelevant() returns true.
+    //--------------------------------------------------------------------------
+
+    /**
+     * Listener of device events.
+     */
+    public class InternalDeviceListener implements DeviceListener {
+
+        @Override
+        public boolean isRelevant(DeviceEvent event) {
+            switch (event.type()) {
+                case DEVICE_ADDED:
+                case DEVICE_AVAILABILITY_CHANGED:
+                    break;
+                default:
+                    // Ignore other events.
+                    return false;
+            }
+            // Process only if this controller instance is the master.
+            final DeviceId deviceId = event.subject().id();
+            return mastershipService.isLocalMaster(deviceId);
+        }
+
+        @Override
+        public void event(DeviceEvent event) {
+            final DeviceId deviceId = event.subject().id();
+            if (deviceService.isAvailable(deviceId)) {
+                // A P4Runtime device is considered available in ONOS when there
+                // is a StreamChannel session open and the pipeline
+                // configuration has been set.
+
+                // Events are processed using a thread pool defined in the
+                // MainComponent.
+                mainComponent.execute(TaskType.DEVICE, () -> {
+                    log.info("{} event! deviceId={}", event.type(), deviceId);
+                    metrics.time(METRICS_NAME, "setUpDevice", deviceId,
+                                 () -> setUpDevice(deviceId));
+                });
+            }
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // UTILITY METHODS
+    //--------------------------------------------------------------------------
+
+    /**
+     * Returns all IPv4 addresses associated with the given interface.
+     *
+     * @param iface interface instance
+     * @return collection of IPv4 addresses
+     */
+    private Collection<Ip4Address> getIp4Addresses(Interface iface) {
+        return iface.ipAddressesList()
+                .stream()
+                .map(InterfaceIpAddress::ipAddress)
+                .filter(IpAddress::isIp4)
+                .map(IpAddress::getIp4Address)
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * Install the given flow rules in batch using the flow rule service,
+     * skipping those already installed when warm restarting.
+     *
+     * @param flowRules flow rules to install
+     */
+    private void installRules(Collection<FlowRule> flowRules) {
+        FlowRuleOperations.Builder ops = FlowRuleOperations.builder();
+        flowRules.stream()
+                .filter(r -> !mainComponent.isInstalled(r))
+                .forEach(ops::add);
+        flowRuleService.apply(ops.build());
+    }
+}
@@ -0,0 +1,555 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.ngsdn.tutorial;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.onosproject.cfg.ComponentConfigService;
+import org.onosproject.mastership.MastershipEvent;
+import org.onosproject.mastership.MastershipListener;
+import org.onosproject.mastership.MastershipService;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.config.NetworkConfigEvent;
+import org.onosproject.net.config.NetworkConfigListener;
+import org.onosproject.net.config.NetworkConfigService;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
+import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.pi.service.PiPipeconfService;
+import org.onosproject.ngsdn.tutorial.common.FabricDeviceConfig;
+import org.onosproject.ngsdn.tutorial.common.InstrumentedExecutor.TaskType;
+import org.onosproject.ngsdn.tutorial.common.Utils;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.onosproject.ngsdn.tutorial.AppConstants.PIPECONF_ID;
+import static org.onosproject.ngsdn.tutorial.OsgiPropertyConstants.BOOTSTRAP_CONCURRENCY;
+import static org.onosproject.ngsdn.tutorial.OsgiPropertyConstants.BOOTSTRAP_CONCURRENCY_DEFAULT;
+import static org.onosproject.ngsdn.tutorial.OsgiPropertyConstants.BOOTSTRAP_DEVICE_CONCURRENCY;
+import static org.onosproject.ngsdn.tutorial.OsgiPropertyConstants.BOOTSTRAP_DEVICE_CONCURRENCY_DEFAULT;
+
+/**
+ * Component coordinating the initial set up of devices, i.e. the
+ * configuration of devices already available when the app components are
+ * activated, or becoming ready later.
+ * <p>
+ * Components register a set up step to be executed for each device, with a
+ * stage defining the order of steps on the same device. Steps are executed on
+ * a device as soon as it is ready, i.e. when it is available, this ONOS
+ * instance is its master, it is using the app pipeconf, and its
+ * FabricDeviceConfig is present in netcfg. Devices becoming ready at the same
+ * time are set up in parallel using a fork-join pool, with at most
+ * bootstrapConcurrency steps running at the same time overall, and at most
+ * bootstrapDeviceConcurrency steps of the same stage running at the same time
+ * on each device.
+ * <p>
+ * Set up runs as a task of the MainComponent executor, which waits for it to
+ * complete, such that device and host events received in the meantime are
+ * processed after the initial set up, as before.
+ * <p>
+ * When this ONOS instance becomes master of a device, e.g. because the
+ * previous master failed, steps are executed again on that device only. The
+ * flows and groups installed by the previous master are adopted, such that
+ * only missing or different ones are written, and those not written again are
+ * removed once the steps have completed on the device, from the tables and
+ * groups owned by the steps only. Tables and groups also owned by a step
+ * that failed are not cleaned up, and failed steps are executed again the
+ * next time the device becomes ready. The time from the mastership change to the
+ * removal of stale state is recorded in the failover.device histogram. With
+ * warm restart, the flows and groups installed by the previous execution of
+ * the app are adopted the same way, when each device is first set up after
+ * activation.
+ */
+@Component(
+        immediate = true,
+        service = BootstrapComponent.class,
+        property = {
+                BOOTSTRAP_CONCURRENCY + ":Integer=" + BOOTSTRAP_CONCURRENCY_DEFAULT,
+                BOOTSTRAP_DEVICE_CONCURRENCY + ":Integer=" + BOOTSTRAP_DEVICE_CONCURRENCY_DEFAULT,
+        }
+)
+public class BootstrapComponent {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(BootstrapComponent.class.getName());
+
+    public static final String BOOTSTRAP_METRIC_NAME = "bootstrap.total";
+    public static final String BOOTSTRAP_DEVICE_METRIC_NAME = "bootstrap.device";
+    public static final String FAILOVER_METRIC_NAME = "failover.device";
+
+    /**
+     * Stage of a set up step. Steps of a stage are executed on a device after
+     * all steps of the previous stages have completed on the same device.
+     */
+    public enum Stage {
+        /**
+         * Steps not depending on other ones, e.g. L2 bridging and NDP reply.
+         */
+        BASE,
+        /**
+         * IPv6 routing, after L2 bridging groups and rules are in place.
+         */
+        ROUTING,
+        /**
+         * SRv6, after IPv6 routing.
+         */
+        SRV6
+    }
+
+    /** Maximum number of set up steps running at the same time. */
+    private int bootstrapConcurrency = BOOTSTRAP_CONCURRENCY_DEFAULT;
+
+    /** Maximum number of set up steps running at the same time on a device. */
+    private int bootstrapDeviceConcurrency = BOOTSTRAP_DEVICE_CONCURRENCY_DEFAULT;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private ComponentConfigService cfgService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private DeviceService deviceService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MastershipService mastershipService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MainComponent mainComponent;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MetricsComponent metrics;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private PiPipeconfService pipeconfService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private NetworkConfigService networkConfigService;
+
+    private final DeviceListener deviceListener = new InternalDeviceListener();
+    private final MastershipListener mastershipListener = new InternalMastershipListener();
+    private final NetworkConfigListener configListener = new InternalConfigListener();
+
+    // Registered steps, guarded by this.
+    private final List<Step> steps = Lists.newArrayList();
+    // Names of steps already executed on each device.
+    private final Map<DeviceId, Set<String>> doneSteps = Maps.newConcurrentMap();
+    // Devices ready, waiting to be set up.
+    private final Set<DeviceId> readyDevices = Sets.newConcurrentHashSet();
+    private final AtomicBoolean setUpScheduled = new AtomicBoolean();
+    // Time of the mastership change of devices taken over by this instance,
+    // not yet set up.
+    private final Map<DeviceId, Long> takeoverStarts = Maps.newConcurrentMap();
+
+    private long activationNanos;
+
+    @Activate
+    protected void activate(Map<String, Object> properties) {
+        activationNanos = System.nanoTime();
+        cfgService.registerProperties(getClass());
+        readProperties(properties);
+        deviceService.addListener(deviceListener);
+        mastershipService.addListener(mastershipListener);
+        networkConfigService.addListener(configListener);
+        log.info("Started");
+    }
+
+    @Modified
+    protected void modified(Map<String, Object> properties) {
+        readProperties(properties);
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        deviceService.removeListener(deviceListener);
+        mastershipService.removeListener(mastershipListener);
+        networkConfigService.removeListener(configListener);
+        cfgService.unregisterProperties(getClass(), false);
+        synchronized (this) {
+            steps.clear();
+        }
+        doneSteps.clear();
+        readyDevices.clear();
+        takeoverStarts.clear();
+        log.info("Stopped");
+    }
+
+    /**
+     * Registers a step to set up devices. The step is executed once for each
+     * device, as soon as the device is ready. The step owns the given tables
+     * and groups, i.e. writes all their entries: when state is adopted, those
+     * not written again by the step are removed. Tables with entries written
+     * on demand must not be owned.
+     *
+     * @param stage stage of the step
+     * @param name  step name, e.g. the name of the component
+     * @param owned names of the tables, action profiles and
+     *              {@link MainComponent#REPLICATION_GROUPS} owned by the step
+     * @param setUp step setting up the given device
+     */
+    public void register(Stage stage, String name, Collection<String> owned,
+                         Consumer<DeviceId> setUp) {
+        synchronized (this) {
+            steps.add(new Step(checkNotNull(stage), checkNotNull(name),
+                               ImmutableSet.copyOf(owned), checkNotNull(setUp)));
+        }
+        // Devices might be ready already.
+        deviceService.getAvailableDevices().forEach(device -> checkReady(device.id()));
+    }
+
+    /**
+     * Removes the steps registered with the given name. If registered again,
+     * steps will be executed again on all devices.
+     *
+     * @param name step name
+     */
+    public void unregister(String name) {
+        synchronized (this) {
+            steps.removeIf(step -> step.name.equals(name));
+        }
+        doneSteps.values().forEach(names -> names.remove(name));
+    }
+
+    /**
+     * Returns true if the given device is ready to be set up.
+     *
+     * @param deviceId device ID
+     * @return true if the device is ready
+     */
+    public boolean isReady(DeviceId deviceId) {
+        return deviceService.isAvailable(deviceId)
+                && mastershipService.isLocalMaster(deviceId)
+                && pipeconfService.getPipeconf(PIPECONF_ID).isPresent()
+                && pipeconfService.ofDevice(deviceId)
+                .map(PIPECONF_ID::equals).orElse(false)
+                && networkConfigService.getConfig(deviceId, FabricDeviceConfig.class) != null;
+    }
+
+    private void checkReady(DeviceId deviceId) {
+        if (!isReady(deviceId)) {
+            log.debug("Device {} not ready yet", deviceId);
+            return;
+        }
+        readyDevices.add(deviceId);
+        // Devices becoming ready while a set up task is queued are set up by
+        // the same task.
+        if (setUpScheduled.compareAndSet(false, true)) {
+            mainComponent.execute(TaskType.INITIAL_SETUP, this::setUpReadyDevices);
+        }
+    }
+
+    private void readProperties(Map<String, Object> properties) {
+        bootstrapConcurrency = Utils.getIntProperty(
+                properties, BOOTSTRAP_CONCURRENCY, bootstrapConcurrency, 1);
+        bootstrapDeviceConcurrency = Utils.getIntProperty(
+                properties, BOOTSTRAP_DEVICE_CONCURRENCY, bootstrapDeviceConcurrency, 1);
+        log.info("Configured: {}={}, {}={}",
+                 BOOTSTRAP_CONCURRENCY, bootstrapConcurrency,
+                 BOOTSTRAP_DEVICE_CONCURRENCY, bootstrapDeviceConcurrency);
+    }
+
+    /**
+     * Executes the steps not yet executed on ready devices. Called on the
+     * MainComponent executor, returns once all devices have been set up.
+     */
+    private void setUpReadyDevices() {
+        setUpScheduled.set(false);
+        final List<Step> allSteps;
+        synchronized (this) {
+            allSteps = ImmutableList.copyOf(steps);
+        }
+        final Map<DeviceId, SortedMap<Stage, List<Step>>> toSetUp = Maps.newHashMap();
+        final Set<DeviceId> firstSetUp = Sets.newHashSet();
+        for (DeviceId deviceId : ImmutableList.copyOf(readyDevices)) {
+            readyDevices.remove(deviceId);
+            if (!isReady(deviceId)) {
+                continue;
+            }
+            if (!doneSteps.containsKey(deviceId)) {
+                firstSetUp.add(deviceId);
+            }
+            final Set<String> done = doneSteps.computeIfAbsent(
+                    deviceId, k -> Sets.newConcurrentHashSet());
+            final SortedMap<Stage, List<Step>> stages = Maps.newTreeMap();
+            allSteps.stream()
+                    .filter(step -> done.add(step.name))
+                    .forEach(step -> stages.computeIfAbsent(
+                            step.stage, s -> Lists.newArrayList()).add(step));
+            if (!stages.isEmpty()) {
+                toSetUp.put(deviceId, stages);
+            }
+        }
+        if (toSetUp.isEmpty()) {
+            return;
+        }
+
+        // Adopt the state installed by the previous master of devices taken
+        // over, or by the previous execution of the app when warm restarting,
+        // before steps write again.
+        final boolean warmRestart = mainComponent.isWarmRestart();
+        final Set<DeviceId> adopted = Sets.newHashSet();
+        final Map<DeviceId, Long> takeovers = Maps.newHashMap();
+        toSetUp.keySet().forEach(deviceId -> {
+            final Long takeoverStart = takeoverStarts.remove(deviceId);
+            if (takeoverStart == null
+                    && !(warmRestart && firstSetUp.contains(deviceId))) {
+                return;
+            }
+            if (mainComponent.adoptState(deviceId) > 0) {
+                adopted.add(deviceId);
+                if (takeoverStart != null) {
+                    takeovers.put(deviceId, takeoverStart);
+                }
+            }
+        });
+
+        log.info("Bootstrapping {} devices {} (concurrency={}, per device={})...",
+                 toSetUp.size(), toSetUp.keySet(),
+                 bootstrapConcurrency, bootstrapDeviceConcurrency);
+
+        final long start = System.nanoTime();
+        final int deviceConcurrency = bootstrapDeviceConcurrency;
+        final ForkJoinPool pool = new ForkJoinPool(bootstrapConcurrency);
+        try {
+            // Stale state of each device is removed as soon as its steps have
+            // completed, without waiting for other devices.
+            final List<ForkJoinTask<?>> tasks = toSetUp.entrySet().stream()
+                    .map(e -> pool.submit(() -> {
+                        final Set<Step> failed = bootstrapDevice(
+                                e.getKey(), e.getValue(), deviceConcurrency);
+                        if (adopted.contains(e.getKey())) {
+                            reconcile(e.getKey(), e.getValue(), failed,
+                                      takeovers.get(e.getKey()));
+                        }
+                    }))
+                    .collect(Collectors.toList());
+            tasks.forEach(ForkJoinTask::join);
+        } finally {
+            pool.shutdown();
+        }
+        metrics.histogram(BOOTSTRAP_METRIC_NAME, null).recordSince(start);
+        final long now = System.nanoTime();
+        log.info("Bootstrap of {} devices completed in {} ms ({} ms since activation)",
+                 toSetUp.size(), TimeUnit.NANOSECONDS.toMillis(now - start),
+                 TimeUnit.NANOSECONDS.toMillis(now - activationNanos));
+    }
+
+    /**
+     * Removes the adopted state of the given device not written again by the
+     * steps executed on it, from the tables and groups they own. Tables and
+     * groups owned by a failed step are left as they are, as the step may not
+     * have written again all of the state still in use.
+     *
+     * @param deviceId      device ID
+     * @param stages        steps executed on the device
+     * @param failed        steps failed on the device
+     * @param takeoverStart time of the mastership change if the device was
+     *                      taken over, null if warm restarting
+     */
+    private void reconcile(DeviceId deviceId, SortedMap<Stage, List<Step>> stages,
+                           Set<Step> failed, Long takeoverStart) {
+        final Set<String> notReconciled = failed.stream()
+                .flatMap(step -> step.owned.stream())
+                .collect(Collectors.toSet());
+        final Set<String> owned = stages.values().stream()
+                .flatMap(List::stream)
+                .flatMap(step -> step.owned.stream())
+                .filter(id -> !notReconciled.contains(id))
+                .collect(Collectors.toSet());
+        if (!notReconciled.isEmpty()) {
+            log.warn("Not removing stale state of {} from {}, steps failed",
+                     deviceId, notReconciled);
+        }
+        mainComponent.removeStaleState(deviceId, owned).whenComplete((v, e) -> {
+            if (e != null) {
+                log.warn("Unable to remove stale state of {}: {}",
+                         deviceId, e.getMessage());
+            }
+            if (takeoverStart == null) {
+                log.info("Warm restart of {} completed", deviceId);
+                return;
+            }
+            metrics.histogram(FAILOVER_METRIC_NAME, deviceId).recordSince(takeoverStart);
+            log.info("Took over {} in {} ms", deviceId, TimeUnit.NANOSECONDS.toMillis(
+                    System.nanoTime() - takeoverStart));
+        });
+    }
+
+    /**
+     * Executes the given steps on the given device, stage by stage. Failed
+     * steps are executed again at the next set up of the device.
+     *
+     * @return failed steps
+     */
+    private Set<Step> bootstrapDevice(DeviceId deviceId, SortedMap<Stage, List<Step>> stages,
+                                      int deviceConcurrency) {
+        final long start = System.nanoTime();
+        final Set<Step> failed = Sets.newConcurrentHashSet();
+        stages.values().forEach(stageSteps -> Lists.partition(stageSteps, deviceConcurrency)
+                .forEach(batch -> runAll(deviceId, batch, failed)));
+        if (!failed.isEmpty()) {
+            final Set<String> done = doneSteps.get(deviceId);
+            if (done != null) {
+                failed.forEach(step -> done.remove(step.name));
+            }
+        }
+        metrics.histogram(BOOTSTRAP_DEVICE_METRIC_NAME, deviceId).recordSince(start);
+        return failed;
+    }
+
+    private void runAll(DeviceId deviceId, Collection<Step> batch, Set<Step> failed) {
+        if (batch.size() == 1) {
+            batch.forEach(step -> runStep(deviceId, step, failed));
+            return;
+        }
+        // Fork in the current pool, the caller helps running the steps.
+        ForkJoinTask.invokeAll(batch.stream()
+                                       .map(step -> ForkJoinTask.adapt(
+                                               () -> runStep(deviceId, step, failed)))
+                                       .collect(Collectors.toList()));
+    }
+
+    private void runStep(DeviceId deviceId, Step step, Set<Step> failed) {
+        if (!step.run(deviceId)) {
+            failed.add(step);
+        }
+    }
+
+    /**
+     * Listener of device events, checking if devices became ready.
+     */
+    private class InternalDeviceListener implements DeviceListener {
+
+        @Override
+        public boolean isRelevant(DeviceEvent event) {
+            switch (event.type()) {
+                case DEVICE_ADDED:
+                case DEVICE_AVAILABILITY_CHANGED:
+                case DEVICE_UPDATED:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        public void event(DeviceEvent event) {
+            checkReady(event.subject().id());
+        }
+    }
+
+    /**
+     * Listener of mastership events. Devices for which this instance lost
+     * mastership will be set up again if mastership is regained, devices
+     * taken over are set up once ready.
+     */
+    private class InternalMastershipListener implements MastershipListener {
+
+        @Override
+        public boolean isRelevant(MastershipEvent event) {
+            return event.type() == MastershipEvent.Type.MASTER_CHANGED;
+        }
+
+        @Override
+        public void event(MastershipEvent event) {
+            final DeviceId deviceId = event.subject();
+            if (!mastershipService.isLocalMaster(deviceId)) {
+                doneSteps.remove(deviceId);
+                takeoverStarts.remove(deviceId);
+                return;
+            }
+            if (!doneSteps.containsKey(deviceId)) {
+                takeoverStarts.putIfAbsent(deviceId, System.nanoTime());
+            }
+            checkReady(deviceId);
+        }
+    }
+
+    /**
+     * Listener of netcfg events, checking if devices became ready when their
+     * FabricDeviceConfig is added.
+     */
+    private class InternalConfigListener implements NetworkConfigListener {
+
+        @Override
+        public boolean isRelevant(NetworkConfigEvent event) {
+            return (event.type() == NetworkConfigEvent.Type.CONFIG_ADDED
+                    || event.type() == NetworkConfigEvent.Type.CONFIG_UPDATED)
+                    && event.configClass() == FabricDeviceConfig.class;
+        }
+
+        @Override
+        public void event(NetworkConfigEvent event) {
+            checkReady((DeviceId) event.subject());
+        }
+    }
+
+    /**
+     * Device set up step registered by a component.
+     */
+    private static final class Step {
+
+        private final Stage stage;
+        private final String name;
+        private final Set<String> owned;
+        private final Consumer<DeviceId> setUp;
+
+        private Step(Stage stage, String name, Set<String> owned,
+                     Consumer<DeviceId> setUp) {
+            this.stage = stage;
+            this.name = name;
+            this.owned = owned;
+            this.setUp = setUp;
+        }
+
+        /**
+         * Executes this step on the given device.
+         *
+         * @param deviceId device ID
+         * @return true if the step completed, false if it failed
+         */
+        private boolean run(DeviceId deviceId) {
+            try {
+                setUp.accept(deviceId);
+                return true;
+            } catch (Exception e) {
+                // Do not prevent other steps and devices from being set up.
+                log.error("Bootstrap step {} failed on {}", name, deviceId, e);
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.ngsdn.tutorial;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+import org.onlab.util.SharedScheduledExecutors;
+import org.onosproject.core.GroupId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.FlowId;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleEvent;
+import org.onosproject.net.flow.FlowRuleListener;
+import org.onosproject.net.flow.FlowRuleService;
+import org.onosproject.net.group.Group;
+import org.onosproject.net.group.GroupDescription;
+import org.onosproject.net.group.GroupEvent;
+import org.onosproject.net.group.GroupListener;
+import org.onosproject.net.group.GroupService;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Component that measures the convergence time of network events, i.e. the
+ * time from an event (e.g. HOST_ADDED, LINK_ADDED) being received to all the
+ * flow rules and groups written because of it being confirmed on the device.
+ * <p>
+ * Each event is tagged with a correlation ID when received. While the task
+ * handling the event runs, the flow rules and groups it writes are registered
+ * via {@link #expect(FlowRule...)} and {@link #expect(GroupDescription)}, and
+ * the trace completes when flow rule and group events confirm all of them.
+ * Convergence times are recorded by {@link MetricsComponent} in histograms
+ * named "convergence." followed by the event type.
+ */
+@Component(immediate = true, service = ConvergenceTrackerComponent.class)
+public class ConvergenceTrackerComponent {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(ConvergenceTrackerComponent.class.getName());
+
+    public static final String CONVERGENCE_METRIC_PREFIX = "convergence.";
+
+    // Traces not completed after this time are discarded.
+    private static final int TRACE_TIMEOUT_SECONDS = 60;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private FlowRuleService flowRuleService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private GroupService groupService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MetricsComponent metrics;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MainComponent mainComponent;
+
+    private final FlowRuleListener flowRuleListener = new InternalFlowRuleListener();
+    private final GroupListener groupListener = new InternalGroupListener();
+
+    // Trace of the task currently running on each thread, if any.
+    private final ThreadLocal<Trace> currentTrace = new ThreadLocal<>();
+
+    private final AtomicLong nextTraceId = new AtomicLong();
+    private final AtomicLong timedOutTraces = new AtomicLong();
+
+    // Guarded by this.
+    private final SetMultimap<FlowId, Trace> pendingFlows = HashMultimap.create();
+    private final SetMultimap<Map.Entry<DeviceId, GroupId>, Trace> pendingGroups =
+            HashMultimap.create();
+
+    @Activate
+    protected void activate() {
+        flowRuleService.addListener(flowRuleListener);
+        groupService.addListener(groupListener);
+        log.info("Started");
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        flowRuleService.removeListener(flowRuleListener);
+        groupService.removeListener(groupListener);
+        synchronized (this) {
+            pendingFlows.clear();
+            pendingGroups.clear();
+        }
+        log.info("Stopped");
+    }
+
+    /**
+     * Starts a trace for the given event and returns a task that, when run,
+     * executes the given one tagging all writes with the trace correlation ID.
+     * The trace start time is taken when this method is called, hence the
+     * convergence time includes the time the task waits in the executor queue.
+     *
+     * @param eventType event type, e.g. HOST_ADDED
+     * @param deviceId  device configured by the task
+     * @param task      task handling the event
+     * @return traced task
+     */
+    public Runnable trace(Object eventType, DeviceId deviceId, Runnable task) {
+        final Trace trace = new Trace(nextTraceId.incrementAndGet(),
+                                      eventType.toString(), deviceId);
+        return () -> {
+            currentTrace.set(trace);
+            try {
+                task.run();
+            } finally {
+                currentTrace.remove();
+                seal(trace);
+            }
+        };
+    }
+
+    /**
+     * Registers the given flow rules as written by the task currently running
+     * on this thread. Does nothing if the task is not traced.
+     *
+     * @param flowRules flow rules
+     */
+    public void expect(FlowRule... flowRules) {
+        final Trace trace = currentTrace.get();
+        if (trace == null) {
+            return;
+        }
+        synchronized (this) {
+            for (FlowRule flowRule : flowRules) {
+                if (mainComponent.isInstalled(flowRule)) {
+                    // Not written, kept from a previous execution.
+                    continue;
+                }
+                trace.pending.add(flowRule.id());
+                pendingFlows.put(flowRule.id(), trace);
+            }
+        }
+    }
+
+    /**
+     * Registers the given group as written by the task currently running on
+     * this thread. Does nothing if the task is not traced.
+     *
+     * @param group group description
+     */
+    public void expect(GroupDescription group) {
+        final Trace trace = currentTrace.get();
+        if (trace == null || group.givenGroupId() == null) {
+            return;
+        }
+        final Map.Entry<DeviceId, GroupId> key = Maps.immutableEntry(
+                group.deviceId(), GroupId.valueOf(group.givenGroupId()));
+        final Group existing = groupService.getGroup(group.deviceId(), group.appCookie());
+        if (existing != null && existing.state() == Group.GroupState.ADDED
+                && existing.buckets().equals(group.buckets())) {
+            // The group store does not generate events for groups that are
+            // already installed with the same buckets.
+            return;
+        }
+        synchronized (this) {
+            trace.pending.add(key);
+            pendingGroups.put(key, trace);
+        }
+    }
+
+    /**
+     * Returns the correlation ID of the task currently running on this
+     * thread, useful to tag log messages.
+     *
+     * @return correlation ID, or 0 if the task is not traced
+     */
+    public long currentTraceId() {
+        final Trace trace = currentTrace.get();
+        return trace == null ? 0 : trace.id;
+    }
+
+    /**
+     * Returns the number of traces not completed within the timeout since the
+     * component was activated.
+     *
+     * @return number of traces
+     */
+    public long timedOutTraces() {
+        return timedOutTraces.get();
+    }
+
+    private void seal(Trace trace) {
+        synchronized (this) {
+            trace.sealed = true;
+            if (!maybeComplete(trace)) {
+                SharedScheduledExecutors.newTimeout(
+                        () -> expire(trace), TRACE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    private synchronized void expire(Trace trace) {
+        if (trace.completed) {
+            return;
+        }
+        trace.completed = true;
+        trace.pending.forEach(key -> {
+            pendingFlows.remove(key, trace);
+            pendingGroups.remove(key, trace);
+        });
+        timedOutTraces.incrementAndGet();
+        log.warn("Trace {} ({} on {}) timed out with {} writes not confirmed",
+                 trace.id, trace.eventType, trace.deviceId, trace.pending.size());
+    }
+
+    private synchronized void confirm(Set<Trace> traces, Object key) {
+        for (Trace trace : traces) {
+            trace.pending.remove(key);
+            maybeComplete(trace);
+        }
+    }
+
+    // Must be called while holding the lock on this.
+    private boolean maybeComplete(Trace trace) {
+        if (trace.completed || !trace.sealed || !trace.pending.isEmpty()) {
+            return trace.completed;
+        }
+        trace.completed = true;
+        metrics.histogram(CONVERGENCE_METRIC_PREFIX + trace.eventType, trace.deviceId)
+                .recordSince(trace.startNanos);
+        log.debug("Trace {} ({} on {}) converged in {} ms",
+                  trace.id, trace.eventType, trace.deviceId,
+                  TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - trace.startNanos));
+        return true;
+    }
+
+    /**
+     * Listener of flow rule events confirming flow rule writes.
+     */
+    private class InternalFlowRuleListener implements FlowRuleListener {
+
+        @Override
+        public boolean isRelevant(FlowRuleEvent event) {
+            return event.type() == FlowRuleEvent.Type.RULE_ADDED
+                    || event.type() == FlowRuleEvent.Type.RULE_UPDATED;
+        }
+
+        @Override
+        public void event(FlowRuleEvent event) {
+            final FlowId flowId = event.subject().id();
+            synchronized (ConvergenceTrackerComponent.this) {
+                final Set<Trace> traces = pendingFlows.removeAll(flowId);
+                if (!traces.isEmpty()) {
+                    confirm(traces, flowId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Listener of group events confirming group writes.
+     */
+    private class InternalGroupListener implements GroupListener {
+
+        @Override
+        public boolean isRelevant(GroupEvent event) {
+            return event.type() == GroupEvent.Type.GROUP_ADDED
+                    || event.type() == GroupEvent.Type.GROUP_UPDATED;
+        }
+
+        @Override
+        public void event(GroupEvent event) {
+            final Map.Entry<DeviceId, GroupId> key = Maps.immutableEntry(
+                    event.subject().deviceId(), event.subject().id());
+            synchronized (ConvergenceTrackerComponent.this) {
+                final Set<Trace> traces = pendingGroups.removeAll(key);
+                if (!traces.isEmpty()) {
+                    confirm(traces, key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Trace of the writes caused by an event.
+     */
+    private static final class Trace {
+
+        private final long id;
+        private final String eventType;
+        private final DeviceId deviceId;
+        private final long startNanos = System.nanoTime();
+        // Flow IDs and (device ID, group ID) pairs not yet confirmed.
+        private final Set<Object> pending = Sets.newHashSet();
+        private boolean sealed;
+        private boolean completed;
+
+        private Trace(long id, String eventType, DeviceId deviceId) {
+            this.id = id;
+            this.eventType = eventType;
+            this.deviceId = deviceId;
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.ngsdn.tutorial;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.onosproject.cfg.ComponentConfigService;
+import org.onosproject.mastership.MastershipService;
+import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowId;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleService;
+import org.onosproject.net.flow.TableId;
+import org.onosproject.net.pi.model.PiTableId;
+import org.onosproject.ngsdn.tutorial.common.RateRingBuffer;
+import org.onosproject.ngsdn.tutorial.common.Utils;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.onlab.util.Tools.groupedThreads;
+import static org.onosproject.ngsdn.tutorial.OsgiPropertyConstants.COUNTER_HISTORY_SIZE;
+import static org.onosproject.ngsdn.tutorial.OsgiPropertyConstants.COUNTER_HISTORY_SIZE_DEFAULT;
+import static org.onosproject.ngsdn.tutorial.OsgiPropertyConstants.COUNTER_POLL_INTERVAL;
+import static org.onosproject.ngsdn.tutorial.OsgiPropertyConstants.COUNTER_POLL_INTERVAL_DEFAULT;
+
+/**
+ * App component that periodically collects the direct counters of the L2
+ * exact, IPv6 routing and ACL tables from all devices for which this ONOS
+ * instance is master, and keeps a time series of packet and byte rates for
+ * each table entry.
+ * <p>
+ * Counters are not read from devices by this component. The flow rule
+ * subsystem already polls all table entries with their direct counters, with
+ * batched P4Runtime read requests, and this component samples the packet and
+ * byte values of the flow entries in the store each time they were refreshed
+ * by that poll.
+ */
+@Component(
+        immediate = true,
+        service = CounterCollectorComponent.class,
+        property = {
+                COUNTER_POLL_INTERVAL + ":Integer=" + COUNTER_POLL_INTERVAL_DEFAULT,
+                COUNTER_HISTORY_SIZE + ":Integer=" + COUNTER_HISTORY_SIZE_DEFAULT,
+        }
+)
+public class CounterCollectorComponent {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(CounterCollectorComponent.class.getName());
+
+    // Tables with a direct counter in main.p4 of interest for this component.
+    private static final Set<TableId> COUNTED_TABLES = ImmutableSet.of(
+            PiTableId.of("IngressPipeImpl.l2_exact_table"),
+            PiTableId.of("IngressPipeImpl.routing_v4_table"),
+            PiTableId.of("IngressPipeImpl.routing_v6_table"),
+            PiTableId.of("IngressPipeImpl.acl_table"));
+
+    /** Seconds between two counter reads of the same device, 0 to disable. */
+    private int counterPollInterval = COUNTER_POLL_INTERVAL_DEFAULT;
+
+    /** Number of rate samples kept for each table entry. */
+    private int counterHistorySize = COUNTER_HISTORY_SIZE_DEFAULT;
+
+    //--------------------------------------------------------------------------
+    // ONOS CORE SERVICE BINDING
+    //
+    // These variables are set by the Karaf runtime environment before calling
+    // the activate() method.
+    //--------------------------------------------------------------------------
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private ComponentConfigService cfgService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private DeviceService deviceService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MastershipService mastershipService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private FlowRuleService flowRuleService;
+
+    private final Map<DeviceId, Map<FlowId, EntryCounters>> counters =
+            Maps.newConcurrentMap();
+
+    // Iterating over the flow entries of large tables can take long, hence
+    // it is performed on a dedicated thread instead of the MainComponent
+    // executor.
+    private ScheduledExecutorService pollExecutor;
+    private ScheduledFuture<?> pollTask;
+
+    //--------------------------------------------------------------------------
+    // COMPONENT ACTIVATION.
+    //
+    // When loading/unloading the app the Karaf runtime environment will call
+    // activate()/deactivate().
+    //--------------------------------------------------------------------------
+
+    @Activate
+    protected void activate(Map<String, Object> properties) {
+        cfgService.registerProperties(getClass());
+        pollExecutor = Executors.newSingleThreadScheduledExecutor(
+                groupedThreads("onos/ngsdn-tutorial", "counter-collector", log));
+        readProperties(properties);
+        schedulePolling();
+
+        log.info("Started");
+    }
+
+    @Modified
+    protected void modified(Map<String, Object> properties) {
+        final int oldHistorySize = counterHistorySize;
+        readProperties(properties);
+        if (oldHistorySize != counterHistorySize) {
+            // Ring buffers have a fixed size, start over.
+            counters.clear();
+        }
+        schedulePolling();
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        cfgService.unregisterProperties(getClass(), false);
+        pollExecutor.shutdownNow();
+        pollExecutor = null;
+        pollTask = null;
+        counters.clear();
+
+        log.info("Stopped");
+    }
+
+    /**
+     * Returns the counters of all table entries of the given device collected
+     * so far.
+     *
+     * @param deviceId device ID
+     * @return map of entry counters by flow ID
+     */
+    public Map<FlowId, EntryCounters> getCounters(DeviceId deviceId) {
+        final Map<FlowId, EntryCounters> deviceCounters = counters.get(deviceId);
+        return deviceCounters == null
+                ? ImmutableMap.of() : ImmutableMap.copyOf(deviceCounters);
+    }
+
+    /**
+     * Returns the counters of the given table entry, or null if the entry has
+     * not been seen during the last counter read.
+     *
+     * @param deviceId device ID
+     * @param flowId   flow ID of the table entry
+     * @return entry counters or null
+     */
+    public EntryCounters getCounters(DeviceId deviceId, FlowId flowId) {
+        final Map<FlowId, EntryCounters> deviceCounters = counters.get(deviceId);
+        return deviceCounters == null ? null : deviceCounters.get(flowId);
+    }
+
+    /**
+     * Returns the IDs of devices for which counters have been collected.
+     *
+     * @return set of device IDs
+     */
+    public Set<DeviceId> getDevices() {
+        return ImmutableSet.copyOf(counters.keySet());
+    }
+
+    private synchronized void schedulePolling() {
+        if (pollTask != null) {
+            pollTask.cancel(false);
+            pollTask = null;
+        }
+        if (counterPollInterval > 0) {
+            pollTask = pollExecutor.scheduleAtFixedRate(
+                    this::pollAllDevices, counterPollInterval,
+                    counterPollInterval, TimeUnit.SECONDS);
+        } else {
+            counters.clear();
+        }
+    }
+
+    private void readProperties(Map<String, Object> properties) {
+        counterPollInterval = Utils.getIntProperty(
+                properties, COUNTER_POLL_INTERVAL, counterPollInterval, 0);
+        counterHistorySize = Utils.getIntProperty(
+                properties, COUNTER_HISTORY_SIZE, counterHistorySize, 1);
+        log.info("Configured: {}={}, {}={}",
+                 COUNTER_POLL_INTERVAL, counterPollInterval,
+                 COUNTER_HISTORY_SIZE, counterHistorySize);
+    }
+
+    //--------------------------------------------------------------------------
+    // COUNTER COLLECTION
+    //--------------------------------------------------------------------------
+
+    private void pollAllDevices() {
+        // Forget devices for which we are not master anymore.
+        counters.keySet().removeIf(deviceId -> !mastershipService.isLocalMaster(deviceId)
+                || !deviceService.isAvailable(deviceId));
+        for (Device device : deviceService.getAvailableDevices()) {
+            if (!mastershipService.isLocalMaster(device.id())) {
+                continue;
+            }
+            try {
+                pollDevice(device.id());
+            } catch (Exception e) {
+                // Do not let exceptions cancel the periodic task.
+                log.warn("Unable to read counters of {}: {}", device.id(), e.getMessage());
+            }
+        }
+    }
+
+    private void pollDevice(DeviceId deviceId) {
+        // Counters of the flow entries as of the last flow rule subsystem poll.
+        final Map<FlowId, EntryCounters> deviceCounters = counters.computeIfAbsent(
+                deviceId, k -> Maps.newConcurrentMap());
+        final Set<FlowId> seen = Sets.newHashSet();
+        for (FlowEntry entry : flowRuleService.getFlowEntries(deviceId)) {
+            if (entry.state() != FlowEntry.FlowEntryState.ADDED
+                    || !COUNTED_TABLES.contains(entry.table())) {
+                continue;
+            }
+            seen.add(entry.id());
+            deviceCounters.computeIfAbsent(
+                    entry.id(), k -> new EntryCounters(entry, counterHistorySize))
+                    .update(entry);
+        }
+        // Remove entries that are not on the device anymore.
+        deviceCounters.keySet().retainAll(seen);
+
+        log.debug("Read counters of {} entries of {}", seen.size(), deviceId);
+    }
+
+    /**
+     * Counters of a table entry, i.e. the time series of packet and byte rates
+     * of the entry direct counter.
+     */
+    public static final class EntryCounters {
+
+        private volatile FlowRule rule;
+        private volatile long packets;
+        private volatile long bytes;
+        private volatile long lastSeen;
+        private final RateRingBuffer rates;
+
+        private EntryCounters(FlowRule rule, int historySize) {
+            this.rule = rule;
+            this.rates = new RateRingBuffer(historySize);
+        }
+
+        private void update(FlowEntry entry) {
+            rule = entry;
+            // Sample only values refreshed by the flow rule subsystem since
+            // the last update, using the time they were read at.
+            if (entry.lastSeen() <= lastSeen) {
+                return;
+            }
+            lastSeen = entry.lastSeen();
+            packets = entry.packets();
+            bytes = entry.bytes();
+            rates.update(lastSeen, entry.packets(), entry.bytes());
+        }
+
+        /**
+         * Returns the flow rule of this table entry.
+         *
+         * @return flow rule
+         */
+        public FlowRule rule() {
+            return rule;
+        }
+
+        /**
+         * Returns the packet counter value at the last read.
+         *
+         * @return number of packets
+         */
+        public long packets() {
+            return packets;
+        }
+
+        /**
+         * Returns the byte counter value at the last read.
+         *
+         * @return number of bytes
+         */
+        public long bytes() {
+            return bytes;
+        }
+
+        /**
+         * Returns the time series of packet and byte rates.
+         *
+         * @return rate ring buffer
+         */
+        public RateRingBuffer rates() {
+            return rates;
+        }
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.ngsdn.tutorial;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.onlab.packet.IpAddress;
+import org.onlab.packet.IpPrefix;
+import org.onlab.packet.MacAddress;
+import org.onosproject.mastership.MastershipService;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Host;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.group.GroupDescription;
+import org.onosproject.net.host.HostEvent;
+import org.onosproject.net.link.LinkEvent;
+import org.onosproject.ngsdn.tutorial.common.InstrumentedExecutor.TaskType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Installs the routes of one address family on the devices of the fabric,
+ * i.e. the fabric routes computed by the route store and the routes to the
+ * hosts attached to each device. Shared by {@link Ipv4RoutingComponent} and
+ * {@link Ipv6RoutingComponent}, which only provide the routing rules and
+ * next hop groups of their own tables.
+ */
+final class FabricRouteInstaller {
+
+    private static final Logger log = LoggerFactory.getLogger(FabricRouteInstaller.class);
+
+    private static final long GROUP_INSERT_DELAY_MILLIS = 200;
+    private static final String ROUTES_UPDATED = "ROUTES_UPDATED";
+
+    /**
+     * Creates the routing rule of a prefix, pointing to a next hop group.
+     */
+    @FunctionalInterface
+    interface RoutingRuleFactory {
+        FlowRule create(DeviceId deviceId, IpPrefix prefix, int groupId);
+    }
+
+    /**
+     * Creates the ECMP group of a set of next hops.
+     */
+    @FunctionalInterface
+    interface NextHopGroupFactory {
+        GroupDescription create(int groupId, Collection<MacAddress> nextHopMacs,
+                                DeviceId deviceId);
+    }
+
+    private final IpAddress.Version version;
+    private final String family;
+    private final String metricsName;
+    private final NextHopGroupFactory groupFactory;
+    private final RoutingRuleFactory ruleFactory;
+
+    private final MainComponent mainComponent;
+    private final RouteStoreComponent routeStore;
+    private final ConvergenceTrackerComponent convergence;
+    private final MetricsComponent metrics;
+    private final MastershipService mastershipService;
+
+    private final Consumer<DeviceId> routesListener = this::routesUpdated;
+
+    // Fabric routes installed on each device, prefix to group ID, to remove
+    // those withdrawn when routes are updated.
+    private final Map<DeviceId, Map<IpPrefix, Integer>> installedRoutes = Maps.newConcurrentMap();
+
+    FabricRouteInstaller(IpAddress.Version version, String metricsName,
+                         NextHopGroupFactory groupFactory,
+                         RoutingRuleFactory ruleFactory,
+                         MainComponent mainComponent,
+                         RouteStoreComponent routeStore,
+                         ConvergenceTrackerComponent convergence,
+                         MetricsComponent metrics,
+                         MastershipService mastershipService) {
+        this.version = version;
+        this.family = version == IpAddress.Version.INET ? "IPv4" : "IPv6";
+        this.metricsName = metricsName;
+        this.groupFactory = groupFactory;
+        this.ruleFactory = ruleFactory;
+        this.mainComponent = mainComponent;
+        this.routeStore = routeStore;
+        this.convergence = convergence;
+        this.metrics = metrics;
+        this.mastershipService = mastershipService;
+    }
+
+    /**
+     * Starts reacting to route updates of the route store.
+     */
+    void start() {
+        routeStore.addListener(routesListener);
+    }
+
+    /**
+     * Stops reacting to route updates and forgets the installed routes.
+     */
+    void stop() {
+        routeStore.removeListener(routesListener);
+        installedRoutes.clear();
+    }
+
+    /**
+     * Handles a host event by setting up the routes to the host on the device
+     * where it is attached.
+     *
+     * @param event the host event
+     */
+    void hostEvent(HostEvent event) {
+        final Host host = event.subject();
+        final DeviceId deviceId = host.location().deviceId();
+        mainComponent.execute(TaskType.HOST, convergence.trace(
+                event.type(), deviceId, () -> {
+                    log.info("{} event! host={}, deviceId={}, port={}, trace={}",
+                             event.type(), host.id(), deviceId, host.location().port(),
+                             convergence.currentTraceId());
+                    setUpHostRoutes(deviceId, host);
+                }));
+    }
+
+    /**
+     * Handles a link event by configuring each end of the link mastered by
+     * this instance.
+     *
+     * @param event     the link event
+     * @param configure the configuration of a device
+     */
+    void linkEvent(LinkEvent event, Consumer<DeviceId> configure) {
+        final DeviceId srcDev = event.subject().src().deviceId();
+        final DeviceId dstDev = event.subject().dst().deviceId();
+
+        for (DeviceId deviceId : new DeviceId[]{srcDev, dstDev}) {
+            if (mastershipService.isLocalMaster(deviceId)) {
+                mainComponent.execute(TaskType.LINK, convergence.trace(
+                        event.type(), deviceId, () -> {
+                            log.info("{} event! Configuring {}... linkSrc={}, linkDst={}, trace={}",
+                                     event.type(), deviceId, srcDev, dstDev,
+                                     convergence.currentTraceId());
+                            configure.accept(deviceId);
+                        }));
+            }
+        }
+    }
+
+    /**
+     * Sets up the given device with the necessary rules to route packets to the
+     * addresses of the given host. The group of the routes has the host MAC as
+     * only member, with the group ID allocated by the route store.
+     *
+     * @param deviceId the device ID
+     * @param host     the host
+     */
+    void setUpHostRoutes(DeviceId deviceId, Host host) {
+        metrics.time(metricsName, "setUpHostRules", deviceId,
+                     () -> installHostRoutes(deviceId, host));
+    }
+
+    /**
+     * Sets up routes on the given device to forward packets across the fabric,
+     * as computed by the route store.
+     *
+     * @param deviceId the device ID
+     */
+    void setUpFabricRoutes(DeviceId deviceId) {
+        metrics.time(metricsName, "setUpFabricRoutes", deviceId,
+                     () -> installFabricRoutes(deviceId));
+    }
+
+    private void installHostRoutes(DeviceId deviceId, Host host) {
+        final Set<IpPrefix> hostPrefixes = host.ipAddresses().stream()
+                .filter(addr -> addr.version() == version)
+                .map(IpAddress::toIpPrefix)
+                .collect(Collectors.toSet());
+
+        if (hostPrefixes.isEmpty()) {
+            log.debug("No {} addresses for host {}, ignore", family, host.id());
+            return;
+        }
+        log.info("Adding {} routes on {} for host {} [{}]",
+                 family, deviceId, host.id(), hostPrefixes);
+
+        final Set<MacAddress> hostMac = Collections.singleton(host.mac());
+        final int groupId = routeStore.getGroupId(hostMac);
+        final GroupDescription group = groupFactory.create(groupId, hostMac, deviceId);
+        final List<FlowRule> flowRules = hostPrefixes.stream()
+                .map(prefix -> ruleFactory.create(deviceId, prefix, groupId))
+                .collect(Collectors.toList());
+
+        insertInOrder(group, flowRules);
+    }
+
+    /**
+     * Inserts routing rules on the given device, one for each prefix of the
+     * address family found in the route store, pointing to a group for each
+     * set of next hops, e.g. on spines a single-member group per leaf, and on
+     * leaves an ECMP group distributing traffic across all spines.
+     *
+     * @param deviceId the device ID
+     */
+    private void installFabricRoutes(DeviceId deviceId) {
+        log.info("Setting up {} fabric routes on {}...", family, deviceId);
+
+        final Map<Set<MacAddress>, List<IpPrefix>> prefixesByNextHops = Maps.newHashMap();
+        routeStore.getRoutes(deviceId).forEach((prefix, nextHops) -> {
+            if (prefix.version() == version) {
+                prefixesByNextHops
+                        .computeIfAbsent(nextHops, k -> Lists.newArrayList())
+                        .add(prefix);
+            }
+        });
+
+        final Map<IpPrefix, Integer> newRoutes = Maps.newHashMap();
+        prefixesByNextHops.forEach((nextHops, prefixes) -> {
+            final int groupId = routeStore.getGroupId(nextHops);
+            final GroupDescription group = groupFactory.create(
+                    groupId, nextHops, deviceId);
+            final List<FlowRule> flowRules = prefixes.stream()
+                    .map(prefix -> ruleFactory.create(deviceId, prefix, groupId))
+                    .collect(Collectors.toList());
+            insertInOrder(group, flowRules);
+            prefixes.forEach(prefix -> newRoutes.put(prefix, groupId));
+        });
+
+        final Map<IpPrefix, Integer> oldRoutes = installedRoutes.put(deviceId, newRoutes);
+        if (oldRoutes != null) {
+            removeWithdrawnRoutes(deviceId, oldRoutes, newRoutes);
+        }
+    }
+
+    /**
+     * Removes the routing rules of the prefixes no longer routed, then the
+     * groups of next hops no longer used by any route of the device.
+     *
+     * @param deviceId  the device ID
+     * @param oldRoutes routes previously installed, prefix to group ID
+     * @param newRoutes routes currently installed, prefix to group ID
+     */
+    private void removeWithdrawnRoutes(DeviceId deviceId, Map<IpPrefix, Integer> oldRoutes,
+                                       Map<IpPrefix, Integer> newRoutes) {
+        final List<FlowRule> withdrawn = oldRoutes.entrySet().stream()
+                .filter(e -> !newRoutes.containsKey(e.getKey()))
+                .map(e -> ruleFactory.create(deviceId, e.getKey(), e.getValue()))
+                .collect(Collectors.toList());
+        final Set<Integer> oldGroupIds = Sets.difference(
+                ImmutableSet.copyOf(oldRoutes.values()),
+                ImmutableSet.copyOf(newRoutes.values())).immutableCopy();
+        if (withdrawn.isEmpty() && oldGroupIds.isEmpty()) {
+            return;
+        }
+        log.info("Removing {} withdrawn {} routes from {}...",
+                 withdrawn.size(), family, deviceId);
+        mainComponent.removeFlowsAndUnusedGroups(deviceId, withdrawn, oldGroupIds);
+    }
+
+    /**
+     * Called by the route store when the routes of a device mastered by this
+     * instance change.
+     *
+     * @param deviceId the device ID
+     */
+    private void routesUpdated(DeviceId deviceId) {
+        mainComponent.execute(TaskType.OTHER, convergence.trace(
+                ROUTES_UPDATED, deviceId, () -> {
+                    log.info("Routes updated! Configuring {} routes on {}... trace={}",
+                             family, deviceId, convergence.currentTraceId());
+                    setUpFabricRoutes(deviceId);
+                }));
+    }
+
+    /**
+     * Inserts the given groups and flow rules in order, groups first, then flow
+     * rules. In P4Runtime, when operating on an indirect table (i.e. with
+     * action selectors), groups must be inserted before table entries.
+     *
+     * @param group     the group
+     * @param flowRules the flow rules depending on the group
+     */
+    private void insertInOrder(GroupDescription group, Collection<FlowRule> flowRules) {
+        try {
+            convergence.expect(group);
+            mainComponent.addGroup(group);
+            // Wait for groups to be inserted.
+            Thread.sleep(GROUP_INSERT_DELAY_MILLIS);
+            convergence.expect(flowRules.toArray(new FlowRule[0]));
+            flowRules.forEach(mainComponent::applyFlowRules);
+        } catch (InterruptedException e) {
+            log.error("Interrupted!", e);
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.ngsdn.tutorial;
+
+import com.google.common.collect.Maps;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.CoreService;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
+import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowId;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleEvent;
+import org.onosproject.net.flow.FlowRuleListener;
+import org.onosproject.net.flow.FlowRuleService;
+import org.onosproject.net.group.Group;
+import org.onosproject.net.group.GroupEvent;
+import org.onosproject.net.group.GroupListener;
+import org.onosproject.net.group.GroupService;
+import org.onosproject.net.host.HostEvent;
+import org.onosproject.net.host.HostListener;
+import org.onosproject.net.host.HostService;
+import org.onosproject.net.link.LinkEvent;
+import org.onosproject.net.link.LinkListener;
+import org.onosproject.net.link.LinkService;
+import org.onosproject.net.pi.model.PiPipeconf;
+import org.onosproject.net.pi.model.PiPipelineModel;
+import org.onosproject.net.pi.model.PiTableId;
+import org.onosproject.net.pi.runtime.PiGroupKey;
+import org.onosproject.net.pi.service.PiPipeconfService;
+import org.onosproject.ngsdn.tutorial.common.FlightRecorder;
+import org.onosproject.ngsdn.tutorial.common.FlightRecorder.Kind;
+import org.onosproject.ngsdn.tutorial.common.FlightRecorder.Record;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.onosproject.ngsdn.tutorial.AppConstants.APP_NAME;
+import static org.onosproject.ngsdn.tutorial.AppConstants.FLIGHT_RECORDER_CAPACITY;
+import static org.onosproject.ngsdn.tutorial.AppConstants.PIPECONF_ID;
+import static org.onosproject.ngsdn.tutorial.AppConstants.PIPELINER_APP_NAME;
+
+/**
+ * Component keeping an in-memory history of what the app did, i.e. the
+ * device, host and link events seen by the app listeners, the start and end
+ * of tasks on the app executor, and the flow rule and group writes (and their
+ * confirmation) of this app and of the pipeliner, including the ones made by
+ * the pipeliner on behalf of other apps. Flow rule updates only refreshing
+ * the counters of a flow are not recorded. The history can be dumped with the
+ * ngsdn-flight-recorder CLI command or saved to a file with
+ * ngsdn-flight-recorder-save.
+ */
+@Component(immediate = true, service = FlightRecorderComponent.class)
+public class FlightRecorderComponent {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(FlightRecorderComponent.class.getName());
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private CoreService coreService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private DeviceService deviceService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private HostService hostService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private LinkService linkService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private FlowRuleService flowRuleService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private GroupService groupService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private PiPipeconfService pipeconfService;
+
+    private final FlightRecorder recorder = new FlightRecorder(FLIGHT_RECORDER_CAPACITY);
+
+    private final DeviceListener deviceListener = new InternalDeviceListener();
+    private final HostListener hostListener = new InternalHostListener();
+    private final LinkListener linkListener = new InternalLinkListener();
+    private final FlowRuleListener flowRuleListener = new InternalFlowRuleListener();
+    private final GroupListener groupListener = new InternalGroupListener();
+
+    // Looked up lazily, as this component is activated before MainComponent
+    // registers the app, and before the pipeliner registers its own.
+    private volatile ApplicationId appId;
+    private volatile ApplicationId pipelinerAppId;
+
+    // Last recorded state of flows, to tell state changes from counter
+    // refreshes, which are also notified as RULE_UPDATED.
+    private final Map<FlowId, FlowEntry.FlowEntryState> flowStates =
+            Maps.newConcurrentMap();
+
+    @Activate
+    protected void activate() {
+        deviceService.addListener(deviceListener);
+        hostService.addListener(hostListener);
+        linkService.addListener(linkListener);
+        flowRuleService.addListener(flowRuleListener);
+        groupService.addListener(groupListener);
+        log.info("Started");
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        deviceService.removeListener(deviceListener);
+        hostService.removeListener(hostListener);
+        linkService.removeListener(linkListener);
+        flowRuleService.removeListener(flowRuleListener);
+        groupService.removeListener(groupListener);
+        flowStates.clear();
+        log.info("Stopped");
+    }
+
+    /**
+     * Records the given item.
+     *
+     * @param kind    record kind
+     * @param type    type, e.g. event type or task type
+     * @param subject subject, or null
+     * @return sequence number of the record
+     */
+    public long record(Kind kind, Object type, Object subject) {
+        return recorder.record(kind, type, subject);
+    }
+
+    /**
+     * Returns the most recent records, from the oldest to the most recent one.
+     *
+     * @param max maximum number of records to return
+     * @return list of records
+     */
+    public List<Record> snapshot(int max) {
+        return recorder.snapshot(max);
+    }
+
+    /**
+     * Returns the total number of records recorded so far, including the ones
+     * overwritten.
+     *
+     * @return number of records
+     */
+    public long recorded() {
+        return recorder.recorded();
+    }
+
+    /**
+     * Writes all records to the given file, overwriting it.
+     *
+     * @param path file path
+     * @return number of records written
+     * @throws IOException if the file cannot be written
+     */
+    public int saveTo(Path path) throws IOException {
+        final List<String> lines = recorder.snapshot().stream()
+                .map(Record::toString)
+                .collect(Collectors.toList());
+        Files.write(path, lines, StandardCharsets.UTF_8);
+        return lines.size();
+    }
+
+    private boolean isAppId(short id) {
+        if (appId == null) {
+            appId = coreService.getAppId(APP_NAME);
+        }
+        if (pipelinerAppId == null) {
+            pipelinerAppId = coreService.getAppId(PIPELINER_APP_NAME);
+        }
+        return (appId != null && appId.id() == id)
+                || (pipelinerAppId != null && pipelinerAppId.id() == id);
+    }
+
+    private PiPipelineModel pipelineModel() {
+        return pipeconfService.getPipeconf(PIPECONF_ID)
+                .map(PiPipeconf::pipelineModel)
+                .orElse(null);
+    }
+
+    /**
+     * Returns true if the given flow rule is of this app or of the pipeliner,
+     * or is in a table of the app pipeconf, i.e. written by the pipeliner on
+     * behalf of another app.
+     */
+    private boolean isRecorded(FlowRule rule) {
+        if (isAppId(rule.appId())) {
+            return true;
+        }
+        final PiPipelineModel model = rule.table() instanceof PiTableId
+                ? pipelineModel() : null;
+        return model != null && model.table((PiTableId) rule.table()).isPresent();
+    }
+
+    /**
+     * Returns true if the given group is of this app or of the pipeliner, or
+     * is in an action profile of the app pipeconf, i.e. written by the
+     * pipeliner on behalf of another app.
+     */
+    private boolean isRecorded(Group group) {
+        if (isAppId(group.appId().id())) {
+            return true;
+        }
+        final PiPipelineModel model = group.appCookie() instanceof PiGroupKey
+                ? pipelineModel() : null;
+        return model != null && model.actionProfiles(
+                ((PiGroupKey) group.appCookie()).actionProfileId()).isPresent();
+    }
+
+    /**
+     * Returns true if the given flow rule event changes the state of the flow,
+     * i.e. is not a RULE_UPDATED event only refreshing its counters, and
+     * tracks the state of the flow.
+     */
+    private boolean isStateChange(FlowRuleEvent event) {
+        final FlowRule rule = event.subject();
+        switch (event.type()) {
+            case RULE_REMOVED:
+                flowStates.remove(rule.id());
+                return true;
+            case RULE_UPDATED:
+                if (!(rule instanceof FlowEntry)) {
+                    return true;
+                }
+                final FlowEntry.FlowEntryState state = ((FlowEntry) rule).state();
+                return flowStates.put(rule.id(), state) != state;
+            default:
+                if (rule instanceof FlowEntry) {
+                    flowStates.put(rule.id(), ((FlowEntry) rule).state());
+                }
+                return true;
+        }
+    }
+
+    /**
+     * Listener of device events.
+     */
+    private class InternalDeviceListener implements DeviceListener {
+        @Override
+        public void event(DeviceEvent event) {
+            // Port stats updates are too frequent to be useful.
+            if (event.type() != DeviceEvent.Type.PORT_STATS_UPDATED) {
+                recorder.record(Kind.EVENT, event.type(), event.subject().id());
+            }
+        }
+    }
+
+    /**
+     * Listener of host events.
+     */
+    private class InternalHostListener implements HostListener {
+        @Override
+        public void event(HostEvent event) {
+            recorder.record(Kind.EVENT, event.type(), event.subject());
+        }
+    }
+
+    /**
+     * Listener of link events.
+     */
+    private class InternalLinkListener implements LinkListener {
+        @Override
+        public void event(LinkEvent event) {
+            recorder.record(Kind.EVENT, event.type(), event.subject());
+        }
+    }
+
+    /**
+     * Listener of flow rule events of this app and of the pipeliner, i.e. the
+     * writes (RULE_ADD_REQUESTED, RULE_REMOVE_REQUESTED) and their outcome.
+     */
+    private class InternalFlowRuleListener implements FlowRuleListener {
+        @Override
+        public boolean isRelevant(FlowRuleEvent event) {
+            return isRecorded(event.subject());
+        }
+
+        @Override
+        public void event(FlowRuleEvent event) {
+            // Counter refreshes happen for all flows at every stats poll.
+            if (isStateChange(event)) {
+                recorder.record(Kind.FLOW, event.type(), event.subject());
+            }
+        }
+    }
+
+    /**
+     * Listener of group events of this app and of the pipeliner.
+     */
+    private class InternalGroupListener implements GroupListener {
+        @Override
+        public boolean isRelevant(GroupEvent event) {
+            return isRecorded(event.subject());
+        }
+
+        @Override
+        public void event(GroupEvent event) {
+            recorder.record(Kind.GROUP, event.type(), event.subject());
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.ngsdn.tutorial;
+
+import org.onlab.packet.Ip4Address;
+import org.onosproject.net.DeviceId;
+
+import java.util.Objects;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Downlink GTP-U session of a UE on a device, i.e. the tunnel used to
+ * encapsulate traffic destined to the UE IPv4 address towards the eNB.
+ */
+public final class GtpSession {
+
+    private final DeviceId deviceId;
+    private final Ip4Address ueAddr;
+    private final int teid;
+    private final Ip4Address enbAddr;
+    private final Ip4Address sgwAddr;
+
+    /**
+     * Creates a new session.
+     *
+     * @param deviceId device ID
+     * @param ueAddr   UE IPv4 address
+     * @param teid     tunnel endpoint identifier
+     * @param enbAddr  S1-U eNB address, i.e. the tunnel destination
+     * @param sgwAddr  S1-U SGW address, i.e. the tunnel source
+     */
+    public GtpSession(DeviceId deviceId, Ip4Address ueAddr, int teid,
+                      Ip4Address enbAddr, Ip4Address sgwAddr) {
+        this.deviceId = checkNotNull(deviceId);
+        this.ueAddr = checkNotNull(ueAddr);
+        this.teid = teid;
+        this.enbAddr = checkNotNull(enbAddr);
+        this.sgwAddr = checkNotNull(sgwAddr);
+    }
+
+    /**
+     * Returns the device ID.
+     *
+     * @return device ID
+     */
+    public DeviceId deviceId() {
+        return deviceId;
+    }
+
+    /**
+     * Returns the UE IPv4 address.
+     *
+     * @return IPv4 address
+     */
+    public Ip4Address ueAddr() {
+        return ueAddr;
+    }
+
+    /**
+     * Returns the tunnel endpoint identifier.
+     *
+     * @return TEID
+     */
+    public int teid() {
+        return teid;
+    }
+
+    /**
+     * Returns the S1-U eNB address.
+     *
+     * @return IPv4 address
+     */
+    public Ip4Address enbAddr() {
+        return enbAddr;
+    }
+
+    /**
+     * Returns the S1-U SGW address.
+     *
+     * @return IPv4 address
+     */
+    public Ip4Address sgwAddr() {
+        return sgwAddr;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final GtpSession other = (GtpSession) obj;
+        return teid == other.teid
+                && Objects.equals(deviceId, other.deviceId)
+                && Objects.equals(ueAddr, other.ueAddr)
+                && Objects.equals(enbAddr, other.enbAddr)
+                && Objects.equals(sgwAddr, other.sgwAddr);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(deviceId, ueAddr, teid, enbAddr, sgwAddr);
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("deviceId", deviceId)
+                .add("ueAddr", ueAddr)
+                .add("teid", String.format("0x%08x", teid))
+                .add("enbAddr", enbAddr)
+                .add("sgwAddr", sgwAddr)
+                .toString();
+    }
+}
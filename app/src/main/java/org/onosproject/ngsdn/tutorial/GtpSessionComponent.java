@@ -0,0 +1,535 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.ngsdn.tutorial;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.IpPrefix;
+import org.onlab.util.ImmutableByteSequence;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.DefaultFlowRule;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleOperationsContext;
+import org.onosproject.net.flow.FlowRuleService;
+import org.onosproject.net.flow.criteria.Criterion;
+import org.onosproject.net.flow.criteria.IPCriterion;
+import org.onosproject.net.flow.instructions.Instruction;
+import org.onosproject.net.flow.instructions.PiInstruction;
+import org.onosproject.net.pi.model.PiActionId;
+import org.onosproject.net.pi.model.PiActionParamId;
+import org.onosproject.net.pi.model.PiTableId;
+import org.onosproject.net.pi.runtime.PiAction;
+import org.onosproject.net.pi.runtime.PiActionParam;
+import org.onosproject.net.pi.runtime.PiTableAction;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.Streams.stream;
+import static org.onosproject.ngsdn.tutorial.AppConstants.DEFAULT_FLOW_RULE_PRIORITY;
+import static org.onosproject.ngsdn.tutorial.AppConstants.DEFAULT_GTP_SESSION_BATCH_SIZE;
+
+/**
+ * Component that manages downlink GTP-U sessions of UEs, i.e. the entries of
+ * the dl_sess_lookup table of the SPGW pipeline of the fabric pipeconf (see
+ * mininet/netcfg-gtp.json and mininet/flowrule-gtp.json).
+ * <p>
+ * Sessions are kept in a per-device index by UE address and TEID, used to
+ * tell new sessions from modified ones and to skip unchanged ones, such that
+ * large sets of sessions can be written again at a high rate. The index is
+ * updated when a write is submitted and rolled back if the write fails, such
+ * that failed sessions are written again when retried. It is not persisted
+ * nor shared with other instances, after a restart or failover it can be
+ * rebuilt from the rules installed on the device with
+ * {@link #recoverSessions(DeviceId)}. Writes are submitted as batched flow
+ * rule operations, one batch at most every given number of sessions per
+ * device.
+ */
+@Component(immediate = true, service = GtpSessionComponent.class)
+public class GtpSessionComponent {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(GtpSessionComponent.class.getName());
+
+    public static final String SESSION_BATCH_METRIC_NAME = "gtp.sessionBatch";
+
+    // From the fabric-spgw P4Info.
+    private static final String DL_SESS_TABLE = "FabricIngress.spgw_ingress.dl_sess_lookup";
+    private static final String SET_DL_SESS_INFO = "FabricIngress.spgw_ingress.set_dl_sess_info";
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private FlowRuleService flowRuleService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MainComponent mainComponent;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MetricsComponent metrics;
+
+    private final Map<DeviceId, SessionIndex> sessions = Maps.newConcurrentMap();
+
+    private ApplicationId appId;
+
+    @Activate
+    protected void activate() {
+        appId = mainComponent.getAppId();
+        log.info("Started");
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        // Flow rules are removed by the main component.
+        sessions.clear();
+        log.info("Stopped");
+    }
+
+    /**
+     * Installs the given sessions with the default batch size. See
+     * {@link #installSessions(Collection, int)}.
+     *
+     * @param toInstall sessions to install
+     * @return future completed with the number of sessions written
+     */
+    public CompletableFuture<Integer> installSessions(Collection<GtpSession> toInstall) {
+        return installSessions(toInstall, DEFAULT_GTP_SESSION_BATCH_SIZE);
+    }
+
+    /**
+     * Installs the given sessions. A session for a UE address that already has
+     * one on the same device replaces (modifies) it, while sessions equal to
+     * the installed ones are skipped. Sessions using a TEID already used by
+     * another UE on the same device are rejected.
+     *
+     * @param toInstall sessions to install
+     * @param batchSize maximum number of flow rules per device batch
+     * @return future completed with the number of sessions written, or
+     * completed exceptionally if any batch failed
+     */
+    public CompletableFuture<Integer> installSessions(Collection<GtpSession> toInstall,
+                                                      int batchSize) {
+        checkArgument(batchSize > 0, "Batch size must be greater than 0");
+        final BatchTracker tracker = new BatchTracker();
+        toInstall.stream()
+                .collect(Collectors.groupingBy(GtpSession::deviceId))
+                .forEach((deviceId, deviceSessions) -> {
+                    final SessionIndex index = sessions.computeIfAbsent(
+                            deviceId, d -> new SessionIndex());
+                    synchronized (index) {
+                        final Batcher batcher = new Batcher(
+                                deviceId, index, batchSize, tracker);
+                        // Last session wins when a UE appears more than once.
+                        final Map<Ip4Address, GtpSession> byUeAddr = deviceSessions.stream()
+                                .collect(Collectors.toMap(GtpSession::ueAddr, s -> s,
+                                                          (s1, s2) -> s2, Maps::newLinkedHashMap));
+                        for (GtpSession session : byUeAddr.values()) {
+                            final GtpSession existing = index.byUeAddr.get(session.ueAddr());
+                            if (session.equals(existing)) {
+                                continue;
+                            }
+                            final Ip4Address teidOwner = index.byTeid.get(session.teid());
+                            if (teidOwner != null && !teidOwner.equals(session.ueAddr())) {
+                                log.warn("Rejecting {}, TEID already used by {}",
+                                         session, teidOwner);
+                                continue;
+                            }
+                            if (existing == null) {
+                                batcher.ops.add(buildSessionRule(session));
+                            } else {
+                                index.byTeid.remove(existing.teid());
+                                batcher.ops.modify(buildSessionRule(session));
+                            }
+                            index.byUeAddr.put(session.ueAddr(), session);
+                            index.byTeid.put(session.teid(), session.ueAddr());
+                            batcher.added(existing, session);
+                        }
+                        batcher.flush();
+                    }
+                });
+        return tracker.seal();
+    }
+
+    /**
+     * Removes the sessions of the given UE addresses from the given device,
+     * ignoring addresses without a session.
+     *
+     * @param deviceId device ID
+     * @param ueAddrs  UE addresses
+     * @return future completed with the number of sessions removed, or
+     * completed exceptionally if any batch failed
+     */
+    public CompletableFuture<Integer> removeSessions(DeviceId deviceId,
+                                                     Collection<Ip4Address> ueAddrs) {
+        final BatchTracker tracker = new BatchTracker();
+        final SessionIndex index = sessions.get(deviceId);
+        if (index != null) {
+            synchronized (index) {
+                final Batcher batcher = new Batcher(
+                        deviceId, index, DEFAULT_GTP_SESSION_BATCH_SIZE, tracker);
+                for (Ip4Address ueAddr : ueAddrs) {
+                    final GtpSession existing = index.byUeAddr.remove(ueAddr);
+                    if (existing == null) {
+                        continue;
+                    }
+                    index.byTeid.remove(existing.teid());
+                    batcher.ops.remove(buildSessionRule(existing));
+                    batcher.added(existing, null);
+                }
+                batcher.flush();
+            }
+        }
+        return tracker.seal();
+    }
+
+    /**
+     * Removes all sessions from the given device, including the ones installed
+     * before a restart or failover and not yet recovered in the index.
+     *
+     * @param deviceId device ID
+     * @return future completed with the number of sessions removed
+     */
+    public CompletableFuture<Integer> clearSessions(DeviceId deviceId) {
+        recoverSessions(deviceId);
+        final Collection<Ip4Address> ueAddrs = getSessions(deviceId).stream()
+                .map(GtpSession::ueAddr)
+                .collect(Collectors.toList());
+        return removeSessions(deviceId, ueAddrs);
+    }
+
+    /**
+     * Rebuilds the session index of the given device from the dl_sess_lookup
+     * rules installed by this application, e.g. after a restart or failover,
+     * such that the surviving sessions can be modified or removed. Sessions
+     * previously in the index of the device are discarded.
+     *
+     * @param deviceId device ID
+     * @return number of sessions recovered
+     */
+    public int recoverSessions(DeviceId deviceId) {
+        final PiTableId tableId = PiTableId.of(DL_SESS_TABLE);
+        final List<GtpSession> recovered = stream(flowRuleService.getFlowEntries(deviceId))
+                .filter(f -> f.appId() == appId.id() && f.table().equals(tableId))
+                .filter(f -> f.state() != FlowEntry.FlowEntryState.PENDING_REMOVE
+                        && f.state() != FlowEntry.FlowEntryState.REMOVED)
+                .map(this::parseSessionRule)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+        final SessionIndex index = sessions.computeIfAbsent(
+                deviceId, d -> new SessionIndex());
+        synchronized (index) {
+            index.byUeAddr.clear();
+            index.byTeid.clear();
+            for (GtpSession session : recovered) {
+                index.byUeAddr.put(session.ueAddr(), session);
+                index.byTeid.put(session.teid(), session.ueAddr());
+            }
+        }
+        log.info("Recovered {} GTP sessions on {}", recovered.size(), deviceId);
+        return recovered.size();
+    }
+
+    /**
+     * Returns the session of the given UE address on the given device.
+     *
+     * @param deviceId device ID
+     * @param ueAddr   UE address
+     * @return session, or null if none
+     */
+    public GtpSession getSession(DeviceId deviceId, Ip4Address ueAddr) {
+        return lookup(deviceId, index -> index.byUeAddr.get(ueAddr));
+    }
+
+    /**
+     * Returns the session with the given TEID on the given device.
+     *
+     * @param deviceId device ID
+     * @param teid     tunnel endpoint identifier
+     * @return session, or null if none
+     */
+    public GtpSession getSessionByTeid(DeviceId deviceId, int teid) {
+        return lookup(deviceId, index -> {
+            final Ip4Address ueAddr = index.byTeid.get(teid);
+            return ueAddr == null ? null : index.byUeAddr.get(ueAddr);
+        });
+    }
+
+    /**
+     * Returns all sessions of the given device.
+     *
+     * @param deviceId device ID
+     * @return collection of sessions
+     */
+    public Collection<GtpSession> getSessions(DeviceId deviceId) {
+        final Collection<GtpSession> deviceSessions = lookup(
+                deviceId, index -> ImmutableList.copyOf(index.byUeAddr.values()));
+        return deviceSessions == null ? Collections.emptyList() : deviceSessions;
+    }
+
+    private <T> T lookup(DeviceId deviceId, Function<SessionIndex, T> function) {
+        final SessionIndex index = sessions.get(deviceId);
+        if (index == null) {
+            return null;
+        }
+        synchronized (index) {
+            return function.apply(index);
+        }
+    }
+
+    /**
+     * Builds the dl_sess_lookup flow rule of the given session.
+     *
+     * @param session session
+     * @return flow rule
+     */
+    private FlowRule buildSessionRule(GtpSession session) {
+        final PiAction action = PiAction.builder()
+                .withId(PiActionId.of(SET_DL_SESS_INFO))
+                .withParameter(new PiActionParam(
+                        PiActionParamId.of("teid"),
+                        ImmutableByteSequence.copyFrom(session.teid())))
+                .withParameter(new PiActionParam(
+                        PiActionParamId.of("s1u_enb_addr"),
+                        session.enbAddr().toOctets()))
+                .withParameter(new PiActionParam(
+                        PiActionParamId.of("s1u_sgw_addr"),
+                        session.sgwAddr().toOctets()))
+                .build();
+        // The fabric pipeconf interpreter maps IPV4_DST to the table key.
+        return DefaultFlowRule.builder()
+                .forDevice(session.deviceId())
+                .forTable(PiTableId.of(DL_SESS_TABLE))
+                .fromApp(appId)
+                .withPriority(DEFAULT_FLOW_RULE_PRIORITY)
+                .makePermanent()
+                .withSelector(DefaultTrafficSelector.builder()
+                                      .matchIPDst(IpPrefix.valueOf(
+                                              session.ueAddr(), Ip4Address.BIT_LENGTH))
+                                      .build())
+                .withTreatment(DefaultTrafficTreatment.builder()
+                                       .piTableAction(action)
+                                       .build())
+                .build();
+    }
+
+    /**
+     * Parses the session of the given dl_sess_lookup rule, the reverse of
+     * {@link #buildSessionRule(GtpSession)}.
+     *
+     * @param rule flow rule
+     * @return session, or null if the rule cannot be parsed
+     */
+    private GtpSession parseSessionRule(FlowRule rule) {
+        final Criterion criterion = rule.selector().getCriterion(Criterion.Type.IPV4_DST);
+        final PiAction action = rule.treatment().allInstructions().stream()
+                .filter(i -> i.type() == Instruction.Type.PROTOCOL_INDEPENDENT)
+                .map(i -> ((PiInstruction) i).action())
+                .filter(a -> a.type() == PiTableAction.Type.ACTION)
+                .map(a -> (PiAction) a)
+                .filter(a -> a.id().equals(PiActionId.of(SET_DL_SESS_INFO)))
+                .findFirst()
+                .orElse(null);
+        if (criterion == null || action == null) {
+            log.warn("Unable to parse GTP session from {}", rule);
+            return null;
+        }
+        final Map<PiActionParamId, byte[]> params = action.parameters().stream()
+                .collect(Collectors.toMap(PiActionParam::id, p -> p.value().asArray()));
+        final byte[] teid = params.get(PiActionParamId.of("teid"));
+        final byte[] enbAddr = params.get(PiActionParamId.of("s1u_enb_addr"));
+        final byte[] sgwAddr = params.get(PiActionParamId.of("s1u_sgw_addr"));
+        if (teid == null || teid.length != Integer.BYTES
+                || enbAddr == null || enbAddr.length != Ip4Address.BYTE_LENGTH
+                || sgwAddr == null || sgwAddr.length != Ip4Address.BYTE_LENGTH) {
+            log.warn("Unable to parse GTP session from {}", rule);
+            return null;
+        }
+        return new GtpSession(rule.deviceId(),
+                              ((IPCriterion) criterion).ip().address().getIp4Address(),
+                              ByteBuffer.wrap(teid).getInt(),
+                              Ip4Address.valueOf(enbAddr),
+                              Ip4Address.valueOf(sgwAddr));
+    }
+
+    /**
+     * Index of the sessions of a device. Guarded by itself.
+     */
+    private static final class SessionIndex {
+        private final Map<Ip4Address, GtpSession> byUeAddr = Maps.newHashMap();
+        private final Map<Integer, Ip4Address> byTeid = Maps.newHashMap();
+
+        /**
+         * Reverts the given change of the session of a UE, unless the session
+         * has been changed again since.
+         *
+         * @param ueAddr   UE address
+         * @param previous session before the change, or null if none
+         * @param current  session after the change, or null if removed
+         */
+        private void revert(Ip4Address ueAddr, GtpSession previous, GtpSession current) {
+            if (!Objects.equals(byUeAddr.get(ueAddr), current)) {
+                return;
+            }
+            if (current != null && ueAddr.equals(byTeid.get(current.teid()))) {
+                byTeid.remove(current.teid());
+            }
+            if (previous == null) {
+                byUeAddr.remove(ueAddr);
+                return;
+            }
+            byUeAddr.put(ueAddr, previous);
+            byTeid.putIfAbsent(previous.teid(), ueAddr);
+        }
+    }
+
+    /**
+     * Change of the session of a UE submitted in a batch.
+     */
+    private static final class SessionChange {
+        private final Ip4Address ueAddr;
+        private final GtpSession previous;
+        private final GtpSession current;
+
+        private SessionChange(Ip4Address ueAddr, GtpSession previous, GtpSession current) {
+            this.ueAddr = ueAddr;
+            this.previous = previous;
+            this.current = current;
+        }
+    }
+
+    /**
+     * Accumulates the flow rule operations of one device, submitting them
+     * every given number of sessions. The index changes of a batch are
+     * reverted if the batch fails.
+     */
+    private final class Batcher {
+
+        private final DeviceId deviceId;
+        private final SessionIndex index;
+        private final int batchSize;
+        private final BatchTracker tracker;
+        private FlowRuleOperations.Builder ops = FlowRuleOperations.builder();
+        private List<SessionChange> changes = Lists.newArrayList();
+
+        private Batcher(DeviceId deviceId, SessionIndex index, int batchSize,
+                        BatchTracker tracker) {
+            this.deviceId = deviceId;
+            this.index = index;
+            this.batchSize = batchSize;
+            this.tracker = tracker;
+        }
+
+        private void added(GtpSession previous, GtpSession current) {
+            final Ip4Address ueAddr = current != null ? current.ueAddr() : previous.ueAddr();
+            changes.add(new SessionChange(ueAddr, previous, current));
+            if (changes.size() == batchSize) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            if (changes.isEmpty()) {
+                return;
+            }
+            final List<SessionChange> batchChanges = changes;
+            final int batchSessions = batchChanges.size();
+            final long startNanos = System.nanoTime();
+            tracker.batchSubmitted();
+            flowRuleService.apply(ops.build(new FlowRuleOperationsContext() {
+                @Override
+                public void onSuccess(FlowRuleOperations ops) {
+                    metrics.histogram(SESSION_BATCH_METRIC_NAME, deviceId)
+                            .recordSince(startNanos);
+                    tracker.batchDone(batchSessions, 0);
+                }
+
+                @Override
+                public void onError(FlowRuleOperations ops) {
+                    log.warn("Unable to write batch of {} GTP sessions on {}",
+                             batchSessions, deviceId);
+                    synchronized (index) {
+                        batchChanges.forEach(c -> index.revert(
+                                c.ueAddr, c.previous, c.current));
+                    }
+                    tracker.batchDone(0, batchSessions);
+                }
+            }));
+            ops = FlowRuleOperations.builder();
+            changes = Lists.newArrayList();
+        }
+    }
+
+    /**
+     * Tracks the batches submitted by an API call, completing a future when
+     * all of them are confirmed.
+     */
+    private static final class BatchTracker {
+
+        private final AtomicInteger pendingBatches = new AtomicInteger(1);
+        private final AtomicInteger written = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final CompletableFuture<Integer> completion = new CompletableFuture<>();
+
+        private void batchSubmitted() {
+            pendingBatches.incrementAndGet();
+        }
+
+        private void batchDone(int writtenSessions, int failedSessions) {
+            written.addAndGet(writtenSessions);
+            failed.addAndGet(failedSessions);
+            if (pendingBatches.decrementAndGet() == 0) {
+                complete();
+            }
+        }
+
+        // Called once all batches have been submitted.
+        private CompletableFuture<Integer> seal() {
+            batchDone(0, 0);
+            return completion;
+        }
+
+        private void complete() {
+            if (failed.get() == 0) {
+                completion.complete(written.get());
+            } else {
+                completion.completeExceptionally(new IllegalStateException(
+                        failed.get() + " GTP sessions failed to be written"));
+            }
+        }
+    }
+}
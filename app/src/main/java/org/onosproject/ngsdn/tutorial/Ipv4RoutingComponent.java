@@ -0,0 +1,284 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.ngsdn.tutorial;
+
+import com.google.common.collect.ImmutableSet;
+import org.onlab.packet.Ip4Prefix;
+import org.onlab.packet.IpAddress;
+import org.onlab.packet.MacAddress;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.mastership.MastershipService;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Host;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.criteria.PiCriterion;
+import org.onosproject.net.group.GroupDescription;
+import org.onosproject.net.host.HostEvent;
+import org.onosproject.net.host.HostListener;
+import org.onosproject.net.host.HostService;
+import org.onosproject.net.link.LinkEvent;
+import org.onosproject.net.link.LinkListener;
+import org.onosproject.net.link.LinkService;
+import org.onosproject.net.pi.model.PiActionId;
+import org.onosproject.net.pi.model.PiActionParamId;
+import org.onosproject.net.pi.model.PiMatchFieldId;
+import org.onosproject.net.pi.runtime.PiAction;
+import org.onosproject.net.pi.runtime.PiActionParam;
+import org.onosproject.net.pi.runtime.PiActionProfileGroupId;
+import org.onosproject.net.pi.runtime.PiTableAction;
+import org.onosproject.ngsdn.tutorial.BootstrapComponent.Stage;
+import org.onosproject.ngsdn.tutorial.common.Utils;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * App component that configures devices to provide IPv4 routing capabilities
+ * across the whole fabric, using the same leaf-spine ECMP model as IPv6
+ * routing.
+ * <p>
+ * IPv4 routes are programmed in routing_v4_table, which shares the ECMP
+ * action selector with routing_v6_table. Groups are allocated by the route
+ * store per next hop set, hence IPv4 and IPv6 routes with the same next hops
+ * point to the same group. The My Station and L2 next hop rules are the ones
+ * installed by {@link Ipv6RoutingComponent}. Routes are installed by the
+ * {@link FabricRouteInstaller} shared with IPv6 routing.
+ */
+@Component(immediate = true)
+public class Ipv4RoutingComponent {
+
+    private static final Logger log = LoggerFactory.getLogger(Ipv4RoutingComponent.class);
+
+    private static final String METRICS_NAME = "Ipv4RoutingComponent";
+
+    private static final String ROUTING_V4_TABLE = "IngressPipeImpl.routing_v4_table";
+    // Groups are keyed on the IPv6 routing table, such that groups created by
+    // this component and by Ipv6RoutingComponent for the same next hops are
+    // the same group.
+    private static final String GROUP_TABLE = "IngressPipeImpl.routing_v6_table";
+    private static final String ECMP_SELECTOR = "IngressPipeImpl.ecmp_selector";
+    private static final String SET_NEXT_HOP = "IngressPipeImpl.set_next_hop";
+
+    private final HostListener hostListener = new InternalHostListener();
+    private final LinkListener linkListener = new InternalLinkListener();
+
+    private ApplicationId appId;
+    private FabricRouteInstaller routes;
+
+    //--------------------------------------------------------------------------
+    // ONOS CORE SERVICE BINDING
+    //
+    // These variables are set by the Karaf runtime environment before calling
+    // the activate() method.
+    //--------------------------------------------------------------------------
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private HostService hostService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MastershipService mastershipService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private LinkService linkService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MainComponent mainComponent;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MetricsComponent metrics;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private BootstrapComponent bootstrap;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private ConvergenceTrackerComponent convergence;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private RouteStoreComponent routeStore;
+
+    //--------------------------------------------------------------------------
+    // COMPONENT ACTIVATION.
+    //
+    // When loading/unloading the app the Karaf runtime environment will call
+    // activate()/deactivate().
+    //--------------------------------------------------------------------------
+
+    @Activate
+    protected void activate() {
+        appId = mainComponent.getAppId();
+        routes = new FabricRouteInstaller(
+                IpAddress.Version.INET, METRICS_NAME, this::createNextHopGroup,
+                (deviceId, prefix, groupId) -> createRoutingRule(
+                        deviceId, prefix.getIp4Prefix(), groupId),
+                mainComponent, routeStore, convergence, metrics, mastershipService);
+
+        hostService.addListener(hostListener);
+        linkService.addListener(linkListener);
+        routes.start();
+
+        // Schedule set up for all devices.
+        bootstrap.register(Stage.ROUTING, getClass().getSimpleName(),
+                           ImmutableSet.of(ROUTING_V4_TABLE, ECMP_SELECTOR),
+                           this::setUpExistingDevice);
+
+        log.info("Started");
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        bootstrap.unregister(getClass().getSimpleName());
+        routes.stop();
+        hostService.removeListener(hostListener);
+        linkService.removeListener(linkListener);
+
+        log.info("Stopped");
+    }
+
+    /**
+     * Creates an ONOS SELECT group for the routing tables to provide ECMP
+     * forwarding for the given collection of next hop MAC addresses.
+     *
+     * @param groupId     the group ID
+     * @param nextHopMacs the collection of mac addresses of next hops
+     * @param deviceId    the device where the group will be installed
+     * @return a SELECT group
+     */
+    private GroupDescription createNextHopGroup(int groupId,
+                                                Collection<MacAddress> nextHopMacs,
+                                                DeviceId deviceId) {
+        final List<PiAction> actions = nextHopMacs.stream()
+                .map(nextHopMac -> PiAction.builder()
+                        .withId(PiActionId.of(SET_NEXT_HOP))
+                        .withParameter(new PiActionParam(
+                                PiActionParamId.of("dmac"), nextHopMac.toBytes()))
+                        .build())
+                .collect(Collectors.toList());
+
+        return Utils.buildSelectGroup(
+                deviceId, GROUP_TABLE, ECMP_SELECTOR, groupId, actions, appId);
+    }
+
+    /**
+     * Creates a routing flow rule that matches on the given IPv4 prefix and
+     * executes the given group ID (created before).
+     *
+     * @param deviceId  the device where flow rule will be installed
+     * @param ip4Prefix the IPv4 prefix
+     * @param groupId   the group ID
+     * @return a flow rule
+     */
+    private FlowRule createRoutingRule(DeviceId deviceId, Ip4Prefix ip4Prefix,
+                                       int groupId) {
+        final PiCriterion match = PiCriterion.builder()
+                .matchLpm(
+                        PiMatchFieldId.of("hdr.ipv4.dst_addr"),
+                        ip4Prefix.address().toOctets(),
+                        ip4Prefix.prefixLength())
+                .build();
+
+        final PiTableAction action = PiActionProfileGroupId.of(groupId);
+
+        return Utils.buildFlowRule(
+                deviceId, appId, ROUTING_V4_TABLE, match, action);
+    }
+
+    //--------------------------------------------------------------------------
+    // EVENT LISTENERS
+    //
+    // Events are processed only if isRelevant() returns true.
+    //--------------------------------------------------------------------------
+
+    /**
+     * Listener of host events which triggers configuration of routing rules on
+     * the device where the host is attached. Updates are also considered, as
+     * IPv4 addresses of dual-stack hosts might be learned after the host is
+     * added.
+     */
+    class InternalHostListener implements HostListener {
+
+        @Override
+        public boolean isRelevant(HostEvent event) {
+            switch (event.type()) {
+                case HOST_ADDED:
+                case HOST_UPDATED:
+                    break;
+                default:
+                    return false;
+            }
+            final Host host = event.subject();
+            final DeviceId deviceId = host.location().deviceId();
+            return host.ipAddresses().stream().anyMatch(IpAddress::isIp4)
+                    && mastershipService.isLocalMaster(deviceId);
+        }
+
+        @Override
+        public void event(HostEvent event) {
+            routes.hostEvent(event);
+        }
+    }
+
+    /**
+     * Listener of link events, which triggers configuration of routing rules to
+     * forward packets across the fabric, e.g. when the first link to a spine
+     * is added.
+     */
+    class InternalLinkListener implements LinkListener {
+
+        @Override
+        public boolean isRelevant(LinkEvent event) {
+            if (event.type() != LinkEvent.Type.LINK_ADDED) {
+                return false;
+            }
+            DeviceId srcDev = event.subject().src().deviceId();
+            DeviceId dstDev = event.subject().dst().deviceId();
+            return mastershipService.isLocalMaster(srcDev) ||
+                    mastershipService.isLocalMaster(dstDev);
+        }
+
+        @Override
+        public void event(LinkEvent event) {
+            routes.linkEvent(event, routes::setUpFabricRoutes);
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // UTILITY METHODS
+    //--------------------------------------------------------------------------
+
+    /**
+     * Sets up IPv4 routing on the given device, known by ONOS when the
+     * component is activated and for which this ONOS node instance is
+     * currently master. Called by the bootstrap component, concurrently for
+     * different devices.
+     *
+     * @param deviceId the device ID
+     */
+    private void setUpExistingDevice(DeviceId deviceId) {
+        log.info("*** IPV4 ROUTING - Starting initial set up for {}...", deviceId);
+        routes.setUpFabricRoutes(deviceId);
+        hostService.getConnectedHosts(deviceId)
+                .forEach(host -> routes.setUpHostRoutes(deviceId, host));
+    }
+}
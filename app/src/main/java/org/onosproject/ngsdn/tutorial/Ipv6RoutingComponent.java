@@ -16,16 +16,14 @@
 
 package org.onosproject.ngsdn.tutorial;
 
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
-import org.onlab.packet.Ip6Address;
 import org.onlab.packet.Ip6Prefix;
 import org.onlab.packet.IpAddress;
-import org.onlab.packet.IpPrefix;
 import org.onlab.packet.MacAddress;
 import org.onlab.util.ItemNotFoundException;
 import org.onosproject.core.ApplicationId;
 import org.onosproject.mastership.MastershipService;
-import org.onosproject.net.Device;
 import org.onosproject.net.DeviceId;
 import org.onosproject.net.Host;
 import org.onosproject.net.Link;
@@ -42,9 +40,6 @@ import org.onosproject.net.group.GroupService;
 import org.onosproject.net.host.HostEvent;
 import org.onosproject.net.host.HostListener;
 import org.onosproject.net.host.HostService;
-import org.onosproject.net.host.InterfaceIpAddress;
-import org.onosproject.net.intf.Interface;
-import org.onosproject.net.intf.InterfaceService;
 import org.onosproject.net.link.LinkEvent;
 import org.onosproject.net.link.LinkListener;
 import org.onosproject.net.link.LinkService;
@@ -60,20 +55,17 @@ import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.onosproject.ngsdn.tutorial.BootstrapComponent.Stage;
 import org.onosproject.ngsdn.tutorial.common.FabricDeviceConfig;
+import org.onosproject.ngsdn.tutorial.common.InstrumentedExecutor.TaskType;
 import org.onosproject.ngsdn.tutorial.common.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Collection;
-import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
-import java.util.stream.Collectors;
-
-import static com.google.common.collect.Streams.stream;
-import static org.onosproject.ngsdn.tutorial.AppConstants.INITIAL_SETUP_DELAY;
 
 /**
  * App component that configures devices to provide IPv6 routing capabilities
@@ -89,14 +81,20 @@ public class Ipv6RoutingComponent {
 
     private static final Logger log = LoggerFactory.getLogger(Ipv6RoutingComponent.class);
 
-    private static final int DEFAULT_ECMP_GROUP_ID = 0xec3b0000;
-    private static final long GROUP_INSERT_DELAY_MILLIS = 200;
+    private static final String METRICS_NAME = "Ipv6RoutingComponent";
+
+    // Action of the My Station table, the same for all devices.
+    private static final PiTableAction NO_ACTION = PiAction.builder()
+            .withId(PiActionId.of("NoAction"))
+            .build();
 
     private final HostListener hostListener = new InternalHostListener();
     private final LinkListener linkListener = new InternalLinkListener();
     private final DeviceListener deviceListener = new InternalDeviceListener();
 
     private ApplicationId appId;
+    // Installs fabric and host routes, shared with Ipv4RoutingComponent.
+    private FabricRouteInstaller routes;
 
     //--------------------------------------------------------------------------
     // ONOS CORE SERVICE BINDING
@@ -123,15 +121,24 @@ public class Ipv6RoutingComponent {
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     private NetworkConfigService networkConfigService;
 
-    @Reference(cardinality = ReferenceCardinality.MANDATORY)
-    private InterfaceService interfaceService;
-
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     private LinkService linkService;
 
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     private MainComponent mainComponent;
 
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MetricsComponent metrics;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private BootstrapComponent bootstrap;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private ConvergenceTrackerComponent convergence;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private RouteStoreComponent routeStore;
+
     //--------------------------------------------------------------------------
     // COMPONENT ACTIVATION.
     //
@@ -142,19 +149,33 @@ public class Ipv6RoutingComponent {
     @Activate
     protected void activate() {
         appId = mainComponent.getAppId();
+        routes = new FabricRouteInstaller(
+                IpAddress.Version.INET6, METRICS_NAME, this::createNextHopGroup,
+                (deviceId, prefix, groupId) -> createRoutingRule(
+                        deviceId, prefix.getIp6Prefix(), groupId),
+                mainComponent, routeStore, convergence, metrics, mastershipService);
 
         hostService.addListener(hostListener);
         linkService.addListener(linkListener);
         deviceService.addListener(deviceListener);
+        routes.start();
 
-        // Schedule set up for all devices.
-        mainComponent.scheduleTask(this::setUpAllDevices, INITIAL_SETUP_DELAY);
+        // Schedule set up for all devices. Next hop rules are shared with
+        // L2BridgingComponent in the L2 exact table.
+        bootstrap.register(Stage.ROUTING, getClass().getSimpleName(),
+                           ImmutableSet.of("IngressPipeImpl.my_station_table",
+                                           "IngressPipeImpl.routing_v6_table",
+                                           "IngressPipeImpl.l2_exact_table",
+                                           "IngressPipeImpl.ecmp_selector"),
+                           this::setUpExistingDevice);
 
         log.info("Started");
     }
 
     @Deactivate
     protected void deactivate() {
+        bootstrap.unregister(getClass().getSimpleName());
+        routes.stop();
         hostService.removeListener(hostListener);
         linkService.removeListener(linkListener);
         deviceService.removeListener(deviceListener);
@@ -200,16 +221,15 @@ public class Ipv6RoutingComponent {
                         myStationMac.toBytes())
                 .build();
 
-        // Creates an action which do *NoAction* when hit.
-        final PiTableAction action = PiAction.builder()
-                .withId(PiActionId.of("NoAction"))
-                .build();
+        // Uses the action which do *NoAction* when hit.
+        final PiTableAction action = NO_ACTION;
         // ---- END SOLUTION ----
 
         final FlowRule myStationRule = Utils.buildFlowRule(
                 deviceId, appId, tableId, match, action);
 
-        flowRuleService.applyFlowRules(myStationRule);
+        convergence.expect(myStationRule);
+        mainComponent.applyFlowRules(myStationRule);
     }
 
     /**
@@ -360,13 +380,7 @@ public class Ipv6RoutingComponent {
 
         @Override
         public void event(HostEvent event) {
-            Host host = event.subject();
-            DeviceId deviceId = host.location().deviceId();
-            mainComponent.getExecutorService().execute(() -> {
-                log.info("{} event! host={}, deviceId={}, port={}",
-                        event.type(), host.id(), deviceId, host.location().port());
-                setUpHostRules(deviceId, host);
-            });
+            routes.hostEvent(event);
         }
     }
 
@@ -403,25 +417,11 @@ public class Ipv6RoutingComponent {
 
         @Override
         public void event(LinkEvent event) {
-            DeviceId srcDev = event.subject().src().deviceId();
-            DeviceId dstDev = event.subject().dst().deviceId();
-
-            if (mastershipService.isLocalMaster(srcDev)) {
-                mainComponent.getExecutorService().execute(() -> {
-                    log.info("{} event! Configuring {}... linkSrc={}, linkDst={}",
-                            event.type(), srcDev, srcDev, dstDev);
-                    setUpFabricRoutes(srcDev);
-                    setUpL2NextHopRules(srcDev);
-                });
-            }
-            if (mastershipService.isLocalMaster(dstDev)) {
-                mainComponent.getExecutorService().execute(() -> {
-                    log.info("{} event! Configuring {}... linkSrc={}, linkDst={}",
-                            event.type(), dstDev, srcDev, dstDev);
-                    setUpFabricRoutes(dstDev);
-                    setUpL2NextHopRules(dstDev);
-                });
-            }
+            routes.linkEvent(event, deviceId -> {
+                routes.setUpFabricRoutes(deviceId);
+                metrics.time(METRICS_NAME, "setUpL2NextHopRules", deviceId,
+                             () -> setUpL2NextHopRules(deviceId));
+            });
         }
     }
 
@@ -449,11 +449,14 @@ public class Ipv6RoutingComponent {
 
         @Override
         public void event(DeviceEvent event) {
-            mainComponent.getExecutorService().execute(() -> {
-                DeviceId deviceId = event.subject().id();
-                log.info("{} event! device id={}", event.type(), deviceId);
-                setUpMyStationTable(deviceId);
-            });
+            final DeviceId deviceId = event.subject().id();
+            mainComponent.execute(TaskType.DEVICE, convergence.trace(
+                    event.type(), deviceId, () -> {
+                        log.info("{} event! device id={}, trace={}", event.type(),
+                                 deviceId, convergence.currentTraceId());
+                        metrics.time(METRICS_NAME, "setUpMyStationTable", deviceId,
+                                     () -> setUpMyStationTable(deviceId));
+                    }));
         }
     }
 
@@ -461,7 +464,8 @@ public class Ipv6RoutingComponent {
     // ROUTING POLICY METHODS
     //
     // Called by event listeners, these methods implement the actual routing
-    // policy, responsible of computing paths and creating ECMP groups.
+    // policy. Fabric and host routes, with their ECMP groups, are installed by
+    // the FabricRouteInstaller.
     //--------------------------------------------------------------------------
 
     /**
@@ -485,198 +489,15 @@ public class Ipv6RoutingComponent {
             final FlowRule nextHopRule = createL2NextHopRule(
                     deviceId, nextHopMac, outPort);
 
-            flowRuleService.applyFlowRules(nextHopRule);
-        }
-    }
-
-    /**
-     * Sets up the given device with the necessary rules to route packets to the
-     * given host.
-     *
-     * @param deviceId deviceId the device ID
-     * @param host     the host
-     */
-    private void setUpHostRules(DeviceId deviceId, Host host) {
-
-        // Get all IPv6 addresses associated to this host. In this tutorial we
-        // use hosts with only 1 IPv6 address.
-        final Collection<Ip6Address> hostIpv6Addrs = host.ipAddresses().stream()
-                .filter(IpAddress::isIp6)
-                .map(IpAddress::getIp6Address)
-                .collect(Collectors.toSet());
-
-        if (hostIpv6Addrs.isEmpty()) {
-            // Ignore.
-            log.debug("No IPv6 addresses for host {}, ignore", host.id());
-            return;
-        } else {
-            log.info("Adding routes on {} for host {} [{}]",
-                    deviceId, host.id(), hostIpv6Addrs);
-        }
-
-        // Create an ECMP group with only one member, where the group ID is
-        // derived from the host MAC.
-        final MacAddress hostMac = host.mac();
-        int groupId = macToGroupId(hostMac);
-
-        final GroupDescription group = createNextHopGroup(
-                groupId, Collections.singleton(hostMac), deviceId);
-
-        // Map each host IPV6 address to corresponding /128 prefix and obtain a
-        // flow rule that points to the group ID. In this tutorial we expect
-        // only one flow rule per host.
-        final List<FlowRule> flowRules = hostIpv6Addrs.stream()
-                .map(IpAddress::toIpPrefix)
-                .filter(IpPrefix::isIp6)
-                .map(IpPrefix::getIp6Prefix)
-                .map(prefix -> createRoutingRule(deviceId, prefix, groupId))
-                .collect(Collectors.toList());
-
-        // Helper function to install flows after groups, since here flows
-        // points to the group and P4Runtime enforces this dependency during
-        // write operations.
-        insertInOrder(group, flowRules);
-    }
-
-    /**
-     * Set up routes on a given device to forward packets across the fabric,
-     * making a distinction between spines and leaves.
-     *
-     * @param deviceId the device ID.
-     */
-    private void setUpFabricRoutes(DeviceId deviceId) {
-        if (isSpine(deviceId)) {
-            setUpSpineRoutes(deviceId);
-        } else {
-            setUpLeafRoutes(deviceId);
+            convergence.expect(nextHopRule);
+            mainComponent.applyFlowRules(nextHopRule);
         }
     }
 
-    /**
-     * Insert routing rules on the given spine switch, matching on leaf
-     * interface subnets and forwarding packets to the corresponding leaf.
-     *
-     * @param spineId the spine device ID
-     */
-    private void setUpSpineRoutes(DeviceId spineId) {
-
-        log.info("Adding up spine routes on {}...", spineId);
-
-        for (Device device : deviceService.getDevices()) {
-
-            if (isSpine(device.id())) {
-                // We only need routes to leaf switches. Ignore spines.
-                continue;
-            }
-
-            final DeviceId leafId = device.id();
-            final MacAddress leafMac = getMyStationMac(leafId);
-            final Set<Ip6Prefix> subnetsToRoute = getInterfaceIpv6Prefixes(leafId);
-
-            // Since we're here, we also add a route for SRv6 (Exercise 7), to
-            // forward packets with IPv6 dst the SID of a leaf switch.
-            final Ip6Address leafSid = getDeviceSid(leafId);
-            subnetsToRoute.add(Ip6Prefix.valueOf(leafSid, 128));
-
-            // Create a group with only one member.
-            int groupId = macToGroupId(leafMac);
-
-            GroupDescription group = createNextHopGroup(
-                    groupId, Collections.singleton(leafMac), spineId);
-
-            List<FlowRule> flowRules = subnetsToRoute.stream()
-                    .map(subnet -> createRoutingRule(spineId, subnet, groupId))
-                    .collect(Collectors.toList());
-
-            insertInOrder(group, flowRules);
-        }
-    }
-
-    /**
-     * Insert routing rules on the given leaf switch, matching on interface
-     * subnets associated to other leaves and forwarding packets the spines
-     * using ECMP.
-     *
-     * @param leafId the leaf device ID
-     */
-    private void setUpLeafRoutes(DeviceId leafId) {
-        log.info("Setting up leaf routes: {}", leafId);
-
-        // Get the set of subnets (interface IPv6 prefixes) associated to other
-        // leafs but not this one.
-        Set<Ip6Prefix> subnetsToRouteViaSpines = stream(deviceService.getDevices())
-                .map(Device::id)
-                .filter(this::isLeaf)
-                .filter(deviceId -> !deviceId.equals(leafId))
-                .map(this::getInterfaceIpv6Prefixes)
-                .flatMap(Collection::stream)
-                .collect(Collectors.toSet());
-
-        // Get myStationMac address of all spines.
-        Set<MacAddress> spineMacs = stream(deviceService.getDevices())
-                .map(Device::id)
-                .filter(this::isSpine)
-                .map(this::getMyStationMac)
-                .collect(Collectors.toSet());
-
-        // Create an ECMP group to distribute traffic across all spines.
-        final int groupId = DEFAULT_ECMP_GROUP_ID;
-        final GroupDescription ecmpGroup = createNextHopGroup(
-                groupId, spineMacs, leafId);
-
-        // Generate a flow rule for each subnet pointing to the ECMP group.
-        List<FlowRule> flowRules = subnetsToRouteViaSpines.stream()
-                .map(subnet -> createRoutingRule(leafId, subnet, groupId))
-                .collect(Collectors.toList());
-
-        insertInOrder(ecmpGroup, flowRules);
-
-        // Since we're here, we also add a route for SRv6 (Exercise 7), to
-        // forward packets with IPv6 dst the SID of a spine switch, in this case
-        // using a single-member group.
-        stream(deviceService.getDevices())
-                .map(Device::id)
-                .filter(this::isSpine)
-                .forEach(spineId -> {
-                    MacAddress spineMac = getMyStationMac(spineId);
-                    Ip6Address spineSid = getDeviceSid(spineId);
-                    int spineGroupId = macToGroupId(spineMac);
-                    GroupDescription group = createNextHopGroup(
-                            spineGroupId, Collections.singleton(spineMac), leafId);
-                    FlowRule routingRule = createRoutingRule(
-                            leafId, Ip6Prefix.valueOf(spineSid, 128),
-                            spineGroupId);
-                    insertInOrder(group, Collections.singleton(routingRule));
-                });
-    }
-
     //--------------------------------------------------------------------------
     // UTILITY METHODS
     //--------------------------------------------------------------------------
 
-    /**
-     * Returns true if the given device has isSpine flag set to true in the
-     * config, false otherwise.
-     *
-     * @param deviceId the device ID
-     * @return true if the device is a spine, false otherwise
-     */
-    private boolean isSpine(DeviceId deviceId) {
-        return getDeviceConfig(deviceId).map(FabricDeviceConfig::isSpine)
-                .orElseThrow(() -> new ItemNotFoundException(
-                        "Missing isSpine config for " + deviceId));
-    }
-
-    /**
-     * Returns true if the given device is not configured as spine.
-     *
-     * @param deviceId the device ID
-     * @return true if the device is a leaf, false otherwise
-     */
-    private boolean isLeaf(DeviceId deviceId) {
-        return !isSpine(deviceId);
-    }
-
     /**
      * Returns the MAC address configured in the "myStationMac" property of the
      * given device config.
@@ -704,82 +525,22 @@ public class Ipv6RoutingComponent {
     }
 
     /**
-     * Returns the set of interface IPv6 subnets (prefixes) configured for the
-     * given device.
+     * Sets up IPv6 routing on the given device, known by ONOS when the
+     * component is activated and for which this ONOS node instance is
+     * currently master. Called by the bootstrap component, concurrently for
+     * different devices.
      *
      * @param deviceId the device ID
-     * @return set of IPv6 prefixes
-     */
-    private Set<Ip6Prefix> getInterfaceIpv6Prefixes(DeviceId deviceId) {
-        return interfaceService.getInterfaces().stream()
-                .filter(iface -> iface.connectPoint().deviceId().equals(deviceId))
-                .map(Interface::ipAddressesList)
-                .flatMap(Collection::stream)
-                .map(InterfaceIpAddress::subnetAddress)
-                .filter(IpPrefix::isIp6)
-                .map(IpPrefix::getIp6Prefix)
-                .collect(Collectors.toSet());
-    }
-
-    /**
-     * Returns a 32 bit bit group ID from the given MAC address.
-     *
-     * @param mac the MAC address
-     * @return an integer
-     */
-    private int macToGroupId(MacAddress mac) {
-        return mac.hashCode() & 0x7fffffff;
-    }
-
-    /**
-     * Inserts the given groups and flow rules in order, groups first, then flow
-     * rules. In P4Runtime, when operating on an indirect table (i.e. with
-     * action selectors), groups must be inserted before table entries.
-     *
-     * @param group     the group
-     * @param flowRules the flow rules depending on the group
-     */
-    private void insertInOrder(GroupDescription group, Collection<FlowRule> flowRules) {
-        try {
-            groupService.addGroup(group);
-            // Wait for groups to be inserted.
-            Thread.sleep(GROUP_INSERT_DELAY_MILLIS);
-            flowRules.forEach(flowRuleService::applyFlowRules);
-        } catch (InterruptedException e) {
-            log.error("Interrupted!", e);
-            Thread.currentThread().interrupt();
-        }
-    }
-
-    /**
-     * Gets Srv6 SID for the given device.
-     *
-     * @param deviceId the device ID
-     * @return SID for the device
-     */
-    private Ip6Address getDeviceSid(DeviceId deviceId) {
-        return getDeviceConfig(deviceId)
-                .map(FabricDeviceConfig::mySid)
-                .orElseThrow(() -> new ItemNotFoundException(
-                        "Missing mySid config for " + deviceId));
-    }
-
-    /**
-     * Sets up IPv6 routing on all devices known by ONOS and for which this ONOS
-     * node instance is currently master.
      */
-    private synchronized void setUpAllDevices() {
+    private void setUpExistingDevice(DeviceId deviceId) {
+        log.info("*** IPV6 ROUTING - Starting initial set up for {}...", deviceId);
+        metrics.time(METRICS_NAME, "setUpMyStationTable", deviceId,
+                     () -> setUpMyStationTable(deviceId));
+        routes.setUpFabricRoutes(deviceId);
+        metrics.time(METRICS_NAME, "setUpL2NextHopRules", deviceId,
+                     () -> setUpL2NextHopRules(deviceId));
         // Set up host routes
-        stream(deviceService.getAvailableDevices())
-                .map(Device::id)
-                .filter(mastershipService::isLocalMaster)
-                .forEach(deviceId -> {
-                    log.info("*** IPV6 ROUTING - Starting initial set up for {}...", deviceId);
-                    setUpMyStationTable(deviceId);
-                    setUpFabricRoutes(deviceId);
-                    setUpL2NextHopRules(deviceId);
-                    hostService.getConnectedHosts(deviceId)
-                            .forEach(host -> setUpHostRules(deviceId, host));
-                });
+        hostService.getConnectedHosts(deviceId)
+                .forEach(host -> routes.setUpHostRoutes(deviceId, host));
     }
 }
@@ -16,12 +16,14 @@
 
 package org.onosproject.ngsdn.tutorial;
 
+import com.google.common.collect.ImmutableSet;
 import org.onlab.packet.MacAddress;
 import org.onosproject.core.ApplicationId;
 import org.onosproject.mastership.MastershipService;
 import org.onosproject.net.ConnectPoint;
 import org.onosproject.net.DeviceId;
 import org.onosproject.net.Host;
+import org.onosproject.net.Port;
 import org.onosproject.net.PortNumber;
 import org.onosproject.net.config.NetworkConfigService;
 import org.onosproject.net.device.DeviceEvent;
@@ -31,6 +33,7 @@ import org.onosproject.net.flow.FlowRule;
 import org.onosproject.net.flow.FlowRuleService;
 import org.onosproject.net.flow.criteria.PiCriterion;
 import org.onosproject.net.group.GroupDescription;
+import org.onosproject.net.group.GroupKey;
 import org.onosproject.net.group.GroupService;
 import org.onosproject.net.host.HostEvent;
 import org.onosproject.net.host.HostListener;
@@ -47,7 +50,10 @@ import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.onosproject.ngsdn.tutorial.BootstrapComponent.Stage;
 import org.onosproject.ngsdn.tutorial.common.FabricDeviceConfig;
+import org.onosproject.ngsdn.tutorial.common.FlowRuleTemplate;
+import org.onosproject.ngsdn.tutorial.common.InstrumentedExecutor.TaskType;
 import org.onosproject.ngsdn.tutorial.common.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -55,7 +61,7 @@ import org.slf4j.LoggerFactory;
 import java.util.Set;
 import java.util.stream.Collectors;
 
-import static org.onosproject.ngsdn.tutorial.AppConstants.INITIAL_SETUP_DELAY;
+import static org.onosproject.ngsdn.tutorial.AppConstants.FLOOD_GROUP_ID;
 
 /**
  * App component that configures devices to provide L2 bridging capabilities.
@@ -70,8 +76,59 @@ public class L2BridgingComponent {
 
     private final Logger log = LoggerFactory.getLogger(getClass());
 
+    private static final String METRICS_NAME = "L2BridgingComponent";
+
     private static final int DEFAULT_BROADCAST_GROUP_ID = 255;
 
+    // Flow rules that are the same on all devices, built once and bound to
+    // each device when set up.
+    // Modify P4Runtime entity names to match content of P4Info file (look
+    // for the fully qualified name of tables, match fields, and actions.
+    // ---- START SOLUTION ----
+    private static final String L2_TERNARY_TABLE_ID = "IngressPipeImpl.l2_ternary_table";
+
+    // Action: set multicast group id
+    private static final PiAction SET_MCAST_GROUP_ACTION = PiAction.builder()
+            .withId(PiActionId.of("IngressPipeImpl.set_multicast_group"))
+            .withParameter(new PiActionParam(
+                    PiActionParamId.of("gid"),
+                    DEFAULT_BROADCAST_GROUP_ID))
+            .build();
+
+    // Match ARP request - Match exactly FF:FF:FF:FF:FF:FF
+    private static final FlowRuleTemplate MAC_BROADCAST_RULE = Utils.buildFlowRuleTemplate(
+            L2_TERNARY_TABLE_ID,
+            PiCriterion.builder()
+                    .matchTernary(
+                            PiMatchFieldId.of("hdr.ethernet.dst_addr"),
+                            MacAddress.valueOf("FF:FF:FF:FF:FF:FF").toBytes(),
+                            MacAddress.valueOf("FF:FF:FF:FF:FF:FF").toBytes())
+                    .build(),
+            SET_MCAST_GROUP_ACTION);
+
+    // Match NDP NS - Match ternary 33:33:**:**:**:**
+    private static final FlowRuleTemplate IPV6_MULTICAST_RULE = Utils.buildFlowRuleTemplate(
+            L2_TERNARY_TABLE_ID,
+            PiCriterion.builder()
+                    .matchTernary(
+                            PiMatchFieldId.of("hdr.ethernet.dst_addr"),
+                            MacAddress.valueOf("33:33:00:00:00:00").toBytes(),
+                            MacAddress.valueOf("FF:FF:00:00:00:00").toBytes())
+                    .build(),
+            SET_MCAST_GROUP_ACTION);
+
+    // Match unmatched traffic - Match ternary **:**:**:**:**:**
+    private static final FlowRuleTemplate UNMATCHED_TRAFFIC_RULE = Utils.buildFlowRuleTemplate(
+            L2_TERNARY_TABLE_ID,
+            PiCriterion.builder()
+                    .matchTernary(
+                            PiMatchFieldId.of("hdr.ethernet.dst_addr"),
+                            MacAddress.valueOf("00:00:00:00:00:00").toBytes(),
+                            MacAddress.valueOf("00:00:00:00:00:00").toBytes())
+                    .build(),
+            SET_MCAST_GROUP_ACTION);
+    // ---- END SOLUTION ----
+
     private final DeviceListener deviceListener = new InternalDeviceListener();
     private final HostListener hostListener = new InternalHostListener();
 
@@ -108,6 +165,15 @@ public class L2BridgingComponent {
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     private MainComponent mainComponent;
 
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MetricsComponent metrics;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private BootstrapComponent bootstrap;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private ConvergenceTrackerComponent convergence;
+
     //--------------------------------------------------------------------------
     // COMPONENT ACTIVATION.
     //
@@ -123,13 +189,18 @@ public class L2BridgingComponent {
         deviceService.addListener(deviceListener);
         hostService.addListener(hostListener);
         // Schedule set up of existing devices. Needed when reloading the app.
-        mainComponent.scheduleTask(this::setUpAllDevices, INITIAL_SETUP_DELAY);
+        bootstrap.register(Stage.BASE, getClass().getSimpleName(),
+                           ImmutableSet.of("IngressPipeImpl.l2_exact_table",
+                                           L2_TERNARY_TABLE_ID,
+                                           MainComponent.REPLICATION_GROUPS),
+                           this::setUpExistingDevice);
 
         log.info("Started");
     }
 
     @Deactivate
     protected void deactivate() {
+        bootstrap.unregister(getClass().getSimpleName());
         deviceService.removeListener(deviceListener);
         hostService.removeListener(hostListener);
 
@@ -148,6 +219,9 @@ public class L2BridgingComponent {
      * @param deviceId the device to set up
      */
     private void setUpDevice(DeviceId deviceId) {
+        // Used by the pipeline interpreter for FLOOD packet-outs, needed on
+        // both leaves and spines.
+        insertFloodGroup(deviceId);
         if (isSpine(deviceId)) {
             // Stop here. We support bridging only on leaf/tor switches.
             return;
@@ -186,7 +260,48 @@ public class L2BridgingComponent {
                 appId, deviceId, DEFAULT_BROADCAST_GROUP_ID, ports);
 
         // Insert.
-        groupService.addGroup(multicastGroup);
+        convergence.expect(multicastGroup);
+        mainComponent.addGroup(multicastGroup);
+    }
+
+    /**
+     * Inserts an ALL group in the ONOS core to replicate packets on all enabled
+     * ports of the device. This group is used by the pipeline interpreter to
+     * flood packet-outs with a single PacketOut message, instead of sending
+     * one message for each port.
+     * <p>
+     * Called again on port events, in which case the buckets of the existing
+     * group are updated to the current ports.
+     *
+     * @param deviceId the device where to install the group
+     */
+    private void insertFloodGroup(DeviceId deviceId) {
+
+        final Set<PortNumber> ports = deviceService.getPorts(deviceId)
+                .stream()
+                .filter(Port::isEnabled)
+                .map(Port::number)
+                .filter(port -> !port.isLogical())
+                .collect(Collectors.toSet());
+
+        if (ports.isEmpty()) {
+            log.warn("Device {} has 0 ports, skipping flood group", deviceId);
+            // Remove the group left by previous ports, if any, such that the
+            // interpreter stops using it.
+            final GroupKey floodGroupKey = Utils.buildReplicationGroupKey(FLOOD_GROUP_ID);
+            if (groupService.getGroup(deviceId, floodGroupKey) != null) {
+                groupService.removeGroup(deviceId, floodGroupKey, appId);
+            }
+            return;
+        }
+
+        log.info("Adding flood group with {} ports on {}...",
+                 ports.size(), deviceId);
+
+        final GroupDescription floodGroup = Utils.buildMulticastGroup(
+                appId, deviceId, FLOOD_GROUP_ID, ports);
+        convergence.expect(floodGroup);
+        mainComponent.addGroup(floodGroup);
     }
 
     /**
@@ -205,47 +320,13 @@ public class L2BridgingComponent {
 
         log.info("Adding L2 multicast rules on {}...", deviceId);
 
-        // Modify P4Runtime entity names to match content of P4Info file (look
-        // for the fully qualified name of tables, match fields, and actions.
-        // ---- START SOLUTION ----
-        // Match ARP request - Match exactly FF:FF:FF:FF:FF:FF
-        final PiCriterion macBroadcastCriterion = PiCriterion.builder()
-                .matchTernary(
-                        PiMatchFieldId.of("hdr.ethernet.dst_addr"),
-                        MacAddress.valueOf("FF:FF:FF:FF:FF:FF").toBytes(),
-                        MacAddress.valueOf("FF:FF:FF:FF:FF:FF").toBytes())
-                .build();
-
-        // Match NDP NS - Match ternary 33:33:**:**:**:**
-        final PiCriterion ipv6MulticastCriterion = PiCriterion.builder()
-                .matchTernary(
-                        PiMatchFieldId.of("hdr.ethernet.dst_addr"),
-                        MacAddress.valueOf("33:33:00:00:00:00").toBytes(),
-                        MacAddress.valueOf("FF:FF:00:00:00:00").toBytes())
-                .build();
-
-        // Action: set multicast group id
-        final PiAction setMcastGroupAction = PiAction.builder()
-                .withId(PiActionId.of("IngressPipeImpl.set_multicast_group"))
-                .withParameter(new PiActionParam(
-                        PiActionParamId.of("gid"),
-                        DEFAULT_BROADCAST_GROUP_ID))
-                .build();
-
-        //  Build 2 flow rules.
-        final String tableId = "IngressPipeImpl.l2_ternary_table";
-        // ---- END SOLUTION ----
-
-        final FlowRule rule1 = Utils.buildFlowRule(
-                deviceId, appId, tableId,
-                macBroadcastCriterion, setMcastGroupAction);
-
-        final FlowRule rule2 = Utils.buildFlowRule(
-                deviceId, appId, tableId,
-                ipv6MulticastCriterion, setMcastGroupAction);
+        // Build 2 flow rules from the templates above.
+        final FlowRule rule1 = MAC_BROADCAST_RULE.bind(deviceId, appId);
+        final FlowRule rule2 = IPV6_MULTICAST_RULE.bind(deviceId, appId);
 
         // Insert rules.
-        flowRuleService.applyFlowRules(rule1, rule2);
+        convergence.expect(rule1, rule2);
+        mainComponent.applyFlowRules(rule1, rule2);
     }
 
     /**
@@ -264,36 +345,12 @@ public class L2BridgingComponent {
 
         log.info("Adding L2 multicast rules on {}...", deviceId);
 
-        // Modify P4Runtime entity names to match content of P4Info file (look
-        // for the fully qualified name of tables, match fields, and actions.
-        // ---- START SOLUTION ----
-
-        // Match unmatched traffic - Match ternary **:**:**:**:**:**
-        final PiCriterion unmatchedTrafficCriterion = PiCriterion.builder()
-                .matchTernary(
-                        PiMatchFieldId.of("hdr.ethernet.dst_addr"),
-                        MacAddress.valueOf("00:00:00:00:00:00").toBytes(),
-                        MacAddress.valueOf("00:00:00:00:00:00").toBytes())
-                .build();
-
-        // Action: set multicast group id
-        final PiAction setMcastGroupAction = PiAction.builder()
-                .withId(PiActionId.of("IngressPipeImpl.set_multicast_group"))
-                .withParameter(new PiActionParam(
-                        PiActionParamId.of("gid"),
-                        DEFAULT_BROADCAST_GROUP_ID))
-                .build();
-
-        //  Build flow rule.
-        final String tableId = "IngressPipeImpl.l2_ternary_table";
-        // ---- END SOLUTION ----
-
-        final FlowRule rule = Utils.buildFlowRule(
-                deviceId, appId, tableId,
-                unmatchedTrafficCriterion, setMcastGroupAction);
+        // Build flow rule from the template above.
+        final FlowRule rule = UNMATCHED_TRAFFIC_RULE.bind(deviceId, appId);
 
         // Insert rules.
-        flowRuleService.applyFlowRules(rule);
+        convergence.expect(rule);
+        mainComponent.applyFlowRules(rule);
     }
 
     /**
@@ -338,7 +395,8 @@ public class L2BridgingComponent {
                 deviceId, appId, tableId, hostMacCriterion, l2UnicastAction);
 
         // Insert.
-        flowRuleService.applyFlowRules(rule);
+        convergence.expect(rule);
+        mainComponent.applyFlowRules(rule);
     }
 
     //--------------------------------------------------------------------------
@@ -357,6 +415,9 @@ public class L2BridgingComponent {
             switch (event.type()) {
                 case DEVICE_ADDED:
                 case DEVICE_AVAILABILITY_CHANGED:
+                case PORT_ADDED:
+                case PORT_UPDATED:
+                case PORT_REMOVED:
                     break;
                 default:
                     // Ignore other events.
@@ -377,11 +438,26 @@ public class L2BridgingComponent {
 
                 // Events are processed using a thread pool defined in the
                 // MainComponent.
-                mainComponent.getExecutorService().execute(() -> {
-                    log.info("{} event! deviceId={}", event.type(), deviceId);
-
-                    setUpDevice(deviceId);
-                });
+                if (event.port() != null) {
+                    // Keep the flood group in sync with the device ports.
+                    mainComponent.execute(TaskType.DEVICE, convergence.trace(
+                            event.type(), deviceId, () -> {
+                                log.info("{} event! deviceId={}, port={}, trace={}",
+                                         event.type(), deviceId, event.port().number(),
+                                         convergence.currentTraceId());
+                                metrics.time(METRICS_NAME, "insertFloodGroup", deviceId,
+                                             () -> insertFloodGroup(deviceId));
+                            }));
+                    return;
+                }
+                mainComponent.execute(TaskType.DEVICE, convergence.trace(
+                        event.type(), deviceId, () -> {
+                            log.info("{} event! deviceId={}, trace={}", event.type(),
+                                     deviceId, convergence.currentTraceId());
+
+                            metrics.time(METRICS_NAME, "setUpDevice", deviceId,
+                                         () -> setUpDevice(deviceId));
+                        }));
             }
         }
     }
@@ -420,12 +496,15 @@ public class L2BridgingComponent {
             final DeviceId deviceId = host.location().deviceId();
             final PortNumber port = host.location().port();
 
-            mainComponent.getExecutorService().execute(() -> {
-                log.info("{} event! host={}, deviceId={}, port={}",
-                        event.type(), host.id(), deviceId, port);
+            mainComponent.execute(TaskType.HOST, convergence.trace(
+                    event.type(), deviceId, () -> {
+                        log.info("{} event! host={}, deviceId={}, port={}, trace={}",
+                                 event.type(), host.id(), deviceId, port,
+                                 convergence.currentTraceId());
 
-                learnHost(host, deviceId, port);
-            });
+                        metrics.time(METRICS_NAME, "learnHost", deviceId,
+                                     () -> learnHost(host, deviceId, port));
+                    }));
         }
     }
 
@@ -484,21 +563,24 @@ public class L2BridgingComponent {
     }
 
     /**
-     * Sets up L2 bridging on all devices known by ONOS and for which this ONOS
-     * node instance is currently master.
+     * Sets up L2 bridging on the given device, known by ONOS when the
+     * component is activated and for which this ONOS node instance is
+     * currently master.
      * <p>
-     * This method is called at component activation.
+     * This method is called by the bootstrap component, concurrently for
+     * different devices.
+     *
+     * @param deviceId the device ID
      */
-    private void setUpAllDevices() {
-        deviceService.getAvailableDevices().forEach(device -> {
-            if (mastershipService.isLocalMaster(device.id())) {
-                log.info("*** L2 BRIDGING - Starting initial set up for {}...", device.id());
-                setUpDevice(device.id());
-                // For all hosts connected to this device...
-                hostService.getConnectedHosts(device.id()).forEach(
-                        host -> learnHost(host, host.location().deviceId(),
-                                host.location().port()));
-            }
-        });
+    private void setUpExistingDevice(DeviceId deviceId) {
+        log.info("*** L2 BRIDGING - Starting initial set up for {}...", deviceId);
+        metrics.time(METRICS_NAME, "setUpDevice", deviceId,
+                     () -> setUpDevice(deviceId));
+        // For all hosts connected to this device...
+        hostService.getConnectedHosts(deviceId).forEach(
+                host -> metrics.time(
+                        METRICS_NAME, "learnHost", deviceId,
+                        () -> learnHost(host, host.location().deviceId(),
+                                        host.location().port())));
     }
 }
@@ -1,50 +1,98 @@
 package org.onosproject.ngsdn.tutorial;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.onlab.util.SharedScheduledExecutors;
 import org.onosproject.cfg.ComponentConfigService;
 import org.onosproject.core.ApplicationId;
 import org.onosproject.core.CoreService;
+import org.onosproject.mastership.MastershipService;
 import org.onosproject.net.Device;
 import org.onosproject.net.DeviceId;
 import org.onosproject.net.config.ConfigFactory;
 import org.onosproject.net.config.NetworkConfigRegistry;
 import org.onosproject.net.config.basics.SubjectFactories;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
 import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowId;
 import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleEvent;
+import org.onosproject.net.flow.FlowRuleListener;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleOperationsContext;
 import org.onosproject.net.flow.FlowRuleService;
+import org.onosproject.net.flow.instructions.Instruction;
+import org.onosproject.net.flow.instructions.PiInstruction;
 import org.onosproject.net.group.Group;
+import org.onosproject.net.group.GroupDescription;
+import org.onosproject.net.group.GroupEvent;
+import org.onosproject.net.group.GroupKey;
+import org.onosproject.net.group.GroupListener;
 import org.onosproject.net.group.GroupService;
+import org.onosproject.net.pi.model.PiTableId;
+import org.onosproject.net.pi.runtime.PiActionProfileGroupId;
+import org.onosproject.net.pi.runtime.PiGroupKey;
+import org.onosproject.net.pi.runtime.PiTableAction;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.onosproject.ngsdn.tutorial.common.FabricDeviceConfig;
+import org.onosproject.ngsdn.tutorial.common.FlightRecorder.Kind;
+import org.onosproject.ngsdn.tutorial.common.InstrumentedExecutor;
+import org.onosproject.ngsdn.tutorial.common.InstrumentedExecutor.TaskType;
 import org.onosproject.ngsdn.tutorial.pipeconf.PipeconfLoader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
+import static com.google.common.collect.Streams.stream;
 import static org.onosproject.ngsdn.tutorial.AppConstants.APP_NAME;
-import static org.onosproject.ngsdn.tutorial.AppConstants.CLEAN_UP_DELAY;
-import static org.onosproject.ngsdn.tutorial.AppConstants.DEFAULT_CLEAN_UP_RETRY_TIMES;
-import static org.onosproject.ngsdn.tutorial.common.Utils.sleep;
+import static org.onosproject.ngsdn.tutorial.AppConstants.CLEAN_UP_TIMEOUT;
+import static org.onosproject.ngsdn.tutorial.OsgiPropertyConstants.WARM_RESTART;
+import static org.onosproject.ngsdn.tutorial.OsgiPropertyConstants.WARM_RESTART_DEFAULT;
 
 /**
  * A component which among other things registers the fabricDeviceConfig to the
  * netcfg subsystem.
  */
-@Component(immediate = true, service = MainComponent.class)
+@Component(
+        immediate = true,
+        service = MainComponent.class,
+        property = {
+                WARM_RESTART + ":Boolean=" + WARM_RESTART_DEFAULT,
+        }
+)
 public class MainComponent {
 
     private static final Logger log =
             LoggerFactory.getLogger(MainComponent.class.getName());
 
+    /**
+     * Owner name of the replication groups (multicast and clone) of this app,
+     * see {@link #removeStaleState(DeviceId, Set)}. Groups of action profiles
+     * are owned by the action profile name.
+     */
+    public static final String REPLICATION_GROUPS = "replication_groups";
+
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     private CoreService coreService;
 
@@ -68,6 +116,12 @@ public class MainComponent {
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     private ComponentConfigService compCfgService;
 
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MastershipService mastershipService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private FlightRecorderComponent flightRecorder;
+
     private final ConfigFactory<DeviceId, FabricDeviceConfig> fabricConfigFactory =
             new ConfigFactory<DeviceId, FabricDeviceConfig>(
                     SubjectFactories.DEVICE_SUBJECT_FACTORY, FabricDeviceConfig.class, FabricDeviceConfig.CONFIG_KEY) {
@@ -79,16 +133,42 @@ public class MainComponent {
 
     private ApplicationId appId;
 
+    /** Keep flows and groups installed by a previous execution of the app. */
+    private boolean warmRestart = WARM_RESTART_DEFAULT;
+
+    // Flows and groups adopted when warm restarting or taking over devices.
+    // Empty once stale ones have been removed.
+    private final Map<FlowId, FlowEntry> previousFlows = Maps.newConcurrentMap();
+    private final Map<Map.Entry<DeviceId, GroupKey>, Group> previousGroups =
+            Maps.newConcurrentMap();
+    // Adopted flows and groups written again since adopted.
+    private final Set<FlowId> keptFlows = Sets.newConcurrentHashSet();
+    private final Set<Map.Entry<DeviceId, GroupKey>> keptGroups =
+            Sets.newConcurrentHashSet();
+    private final FlowRuleListener adoptedFlowListener =
+            new AdoptedFlowRuleListener();
+
     // For the sake of simplicity and to facilitate reading logs, use a
-    // single-thread executor to serialize all configuration tasks.
-    private final ExecutorService executorService = Executors.newSingleThreadExecutor();
+    // single-thread executor to serialize all configuration tasks. The
+    // executor is instrumented to expose per task type wait and run times.
+    private final InstrumentedExecutor executorService =
+            new InstrumentedExecutor(Executors.newSingleThreadExecutor());
 
     @Activate
-    protected void activate() {
+    protected void activate(Map<String, Object> properties) {
         appId = coreService.registerApplication(APP_NAME);
-
-        // Wait to remove flow and groups from previous executions.
-        waitPreviousCleanup();
+        compCfgService.registerProperties(getClass());
+        readProperties(properties);
+        flowRuleService.addListener(adoptedFlowListener);
+
+        if (warmRestart) {
+            // Keep flows and groups from previous executions, adopted by
+            // BootstrapComponent when setting up devices again.
+            log.info("Warm restart: keeping flows and groups of {}", appId.name());
+        } else {
+            // Wait to remove flow and groups from previous executions.
+            cleanUpAndWait();
+        }
 
         compCfgService.preSetProperty("org.onosproject.net.flow.impl.FlowRuleManager",
                                       "fallbackFlowPollFrequency", "4", false);
@@ -106,12 +186,31 @@ public class MainComponent {
     @Deactivate
     protected void deactivate() {
         configRegistry.unregisterConfigFactory(fabricConfigFactory);
+        compCfgService.unregisterProperties(getClass(), false);
+        flowRuleService.removeListener(adoptedFlowListener);
 
-        cleanUp();
+        if (warmRestart) {
+            log.info("Warm restart enabled, keeping flows and groups of {}", appId.name());
+        } else {
+            cleanUpAndWait();
+        }
 
         log.info("Stopped");
     }
 
+    @Modified
+    protected void modified(Map<String, Object> properties) {
+        readProperties(properties);
+    }
+
+    private void readProperties(Map<String, Object> properties) {
+        final Object value = properties == null ? null : properties.get(WARM_RESTART);
+        if (value != null) {
+            warmRestart = Boolean.parseBoolean(value.toString().trim());
+        }
+        log.info("Configured: {}={}", WARM_RESTART, warmRestart);
+    }
+
     /**
      * Returns the application ID.
      *
@@ -122,7 +221,19 @@ public class MainComponent {
     }
 
     /**
-     * Returns the executor service managed by this component.
+     * Returns true if flows and groups installed by a previous execution of
+     * the app are kept, to be adopted when devices are set up again.
+     *
+     * @return true if warm restart is enabled
+     */
+    public boolean isWarmRestart() {
+        return warmRestart;
+    }
+
+    /**
+     * Returns the executor service managed by this component. Tasks submitted
+     * this way are accounted as {@link TaskType#OTHER}, use
+     * {@link #execute(TaskType, Runnable)} to specify a task type.
      *
      * @return executor service
      */
@@ -131,63 +242,494 @@ public class MainComponent {
     }
 
     /**
-     * Schedules a task for the future using the executor service managed by
+     * Executes a task of the given type using the executor service managed by
      * this component.
      *
+     * @param type task type
+     * @param task task runnable
+     */
+    public void execute(TaskType type, Runnable task) {
+        executorService.execute(type, recorded(type, task));
+    }
+
+    /**
+     * Schedules a task for the future using the executor service managed by
+     * this component. The task is accounted as
+     * {@link TaskType#INITIAL_SETUP}.
+     *
      * @param task task runnable
      * @param delaySeconds delay in seconds
      */
     public void scheduleTask(Runnable task, int delaySeconds) {
+        scheduleTask(TaskType.INITIAL_SETUP, task, delaySeconds);
+    }
+
+    /**
+     * Schedules a task of the given type for the future using the executor
+     * service managed by this component.
+     *
+     * @param type task type
+     * @param task task runnable
+     * @param delaySeconds delay in seconds
+     */
+    public void scheduleTask(TaskType type, Runnable task, int delaySeconds) {
         SharedScheduledExecutors.newTimeout(
-                () -> executorService.execute(task),
+                () -> executorService.execute(type, recorded(type, task)),
                 delaySeconds, TimeUnit.SECONDS);
     }
 
     /**
-     * Triggers clean up of flows and groups from this app, returns false if no
-     * flows or groups were found, true otherwise.
+     * Returns a task recording its start and end in the flight recorder. The
+     * task end record refers to the sequence number of the start one.
+     *
+     * @param type task type
+     * @param task task runnable
+     * @return recorded task runnable
+     */
+    private Runnable recorded(TaskType type, Runnable task) {
+        return () -> {
+            final long startSeq = flightRecorder.record(Kind.TASK_START, type, null);
+            try {
+                task.run();
+            } finally {
+                flightRecorder.record(Kind.TASK_END, type, startSeq);
+            }
+        };
+    }
+
+    /**
+     * Returns wait time, run time and queue length statistics of the tasks
+     * submitted to the executor service managed by this component.
+     *
+     * @return map of task statistics by task type
+     */
+    public Map<TaskType, InstrumentedExecutor.TaskStats> getExecutorStats() {
+        return executorService.stats();
+    }
+
+    /**
+     * Returns the number of tasks waiting to be executed by the executor
+     * service managed by this component.
      *
-     * @return false if no flows or groups were found, true otherwise
+     * @return number of queued tasks
+     */
+    public int getExecutorQueueLength() {
+        return executorService.queueLength();
+    }
+
+    /**
+     * Clears wait and run time statistics of the executor service managed by
+     * this component.
      */
-    private boolean cleanUp() {
-        Collection<FlowRule> flows = Lists.newArrayList(
+    public void resetExecutorStats() {
+        executorService.resetStats();
+    }
+
+    //--------------------------------------------------------------------------
+    // STATE ADOPTION
+    //
+    // Flows and groups already installed on a device, e.g. by the previous
+    // execution of the app when warm restarting, or by the previous master of
+    // the device after a mastership change, are adopted. Components write the
+    // state they need using applyFlowRules() and addGroup(), which skip writes
+    // identical to what is already installed. After the set up of the device,
+    // whatever has not been written again is removed, only from the tables
+    // and groups owned by the set up, i.e. entirely written by it. Entries
+    // written on demand, e.g. SRv6 policies or GTP sessions, are kept.
+    //--------------------------------------------------------------------------
+
+    /**
+     * Applies the given flow rules, skipping those identical to an adopted
+     * rule.
+     *
+     * @param flowRules flow rules
+     */
+    public void applyFlowRules(FlowRule... flowRules) {
+        final FlowRule[] toApply = Arrays.stream(flowRules)
+                .filter(r -> !isInstalled(r))
+                .toArray(FlowRule[]::new);
+        if (toApply.length > 0) {
+            flowRuleService.applyFlowRules(toApply);
+        }
+    }
+
+    /**
+     * Adds the given group. If an adopted or installed group has the same key,
+     * the group is kept, updating its buckets if different.
+     *
+     * @param group group description
+     */
+    public void addGroup(GroupDescription group) {
+        final Map.Entry<DeviceId, GroupKey> key =
+                Maps.immutableEntry(group.deviceId(), group.appCookie());
+        Group existing = previousGroups.get(key);
+        if (existing != null) {
+            keptGroups.add(key);
+        } else {
+            existing = groupService.getGroup(group.deviceId(), group.appCookie());
+        }
+        if (existing == null) {
+            groupService.addGroup(group);
+            return;
+        }
+        if (!existing.buckets().equals(group.buckets())) {
+            // The group store ignores additions of existing groups.
+            groupService.setBucketsForGroup(group.deviceId(), group.appCookie(),
+                                            group.buckets(), group.appCookie(),
+                                            appId);
+        }
+    }
+
+    /**
+     * Returns true if an identical flow rule has been adopted, in which case
+     * the rule is not written again.
+     *
+     * @param flowRule flow rule
+     * @return true if the flow rule is already installed
+     */
+    public boolean isInstalled(FlowRule flowRule) {
+        if (previousFlows.isEmpty()) {
+            return false;
+        }
+        final FlowEntry existing = previousFlows.get(flowRule.id());
+        if (existing != null
+                && existing.state() == FlowEntry.FlowEntryState.ADDED
+                && existing.isPermanent() == flowRule.isPermanent()
+                && existing.treatment().equals(flowRule.treatment())) {
+            keptFlows.add(flowRule.id());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adopts the flows and groups of this app currently installed on the
+     * given device. Must be followed by
+     * {@link #removeStaleState(DeviceId, Set)} once the device has been set
+     * up again.
+     *
+     * @param deviceId device ID
+     * @return number of flows and groups adopted
+     */
+    public int adoptState(DeviceId deviceId) {
+        int count = 0;
+        for (FlowEntry flow : flowRuleService.getFlowEntries(deviceId)) {
+            if (flow.appId() == appId.id()) {
+                previousFlows.put(flow.id(), flow);
+                count++;
+            }
+        }
+        for (Group group : groupService.getGroups(deviceId, appId)) {
+            previousGroups.put(Maps.immutableEntry(deviceId, group.appCookie()), group);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Removes the adopted flows and groups of the given device that have not
+     * been written again since adopted, among those owned by the set up of
+     * the device, i.e. flows of the given tables and groups of the given
+     * action profiles or {@link #REPLICATION_GROUPS}. Other adopted flows and
+     * groups are kept. Flows are removed first, then groups.
+     *
+     * @param deviceId device ID
+     * @param owned    names of the owned tables, action profiles and
+     *                 replication groups
+     * @return future completed when removals have been confirmed
+     */
+    public CompletableFuture<Void> removeStaleState(DeviceId deviceId, Set<String> owned) {
+        final Collection<FlowEntry> flows = previousFlows.values().stream()
+                .filter(f -> f.deviceId().equals(deviceId))
+                .collect(Collectors.toList());
+        final Collection<Map.Entry<DeviceId, GroupKey>> groupKeys =
+                previousGroups.keySet().stream()
+                        .filter(k -> k.getKey().equals(deviceId))
+                        .collect(Collectors.toList());
+
+        final Collection<FlowRule> staleFlows = flows.stream()
+                .filter(f -> !keptFlows.contains(f.id()))
+                .filter(f -> f.table() instanceof PiTableId
+                        && owned.contains(((PiTableId) f.table()).id()))
+                .filter(f -> isLocalAvailable(f.deviceId()))
+                .collect(Collectors.toList());
+        final Collection<Group> staleGroups = groupKeys.stream()
+                .filter(k -> !keptGroups.contains(k))
+                .filter(k -> owned.contains(groupOwner(k.getValue())))
+                .map(previousGroups::get)
+                .filter(g -> isLocalAvailable(g.deviceId()))
+                .collect(Collectors.toList());
+        log.info("Kept {} flows and {} groups on {}, removing {} stale flows " +
+                         "and {} stale groups...",
+                 flows.size() - staleFlows.size(), groupKeys.size() - staleGroups.size(),
+                 deviceId, staleFlows.size(), staleGroups.size());
+
+        flows.forEach(f -> {
+            previousFlows.remove(f.id());
+            keptFlows.remove(f.id());
+        });
+        groupKeys.forEach(k -> {
+            previousGroups.remove(k);
+            keptGroups.remove(k);
+        });
+
+        return removeFlows(staleFlows)
+                .thenCompose(v -> removeGroups(staleGroups));
+    }
+
+    private static String groupOwner(GroupKey groupKey) {
+        return groupKey instanceof PiGroupKey
+                ? ((PiGroupKey) groupKey).actionProfileId().id()
+                : REPLICATION_GROUPS;
+    }
+
+    private boolean isLocalAvailable(DeviceId deviceId) {
+        return deviceService.isAvailable(deviceId)
+                && mastershipService.isLocalMaster(deviceId);
+    }
+
+    /**
+     * Listener of flow rule events marking adopted flows as kept when written
+     * again, not necessarily via applyFlowRules.
+     */
+    private class AdoptedFlowRuleListener implements FlowRuleListener {
+
+        @Override
+        public boolean isRelevant(FlowRuleEvent event) {
+            return event.type() == FlowRuleEvent.Type.RULE_ADD_REQUESTED
+                    && event.subject().appId() == appId.id()
+                    && previousFlows.containsKey(event.subject().id());
+        }
+
+        @Override
+        public void event(FlowRuleEvent event) {
+            keptFlows.add(event.subject().id());
+        }
+    }
+
+    /**
+     * Removes the given flow rules of a device, then the given SELECT groups
+     * of this app on the same device, among those no longer used by any flow
+     * rule of this app, e.g. when routes are withdrawn. Groups shared by other
+     * flow rules, e.g. routes of another IP version, are kept.
+     *
+     * @param deviceId device ID
+     * @param flows    flow rules to remove
+     * @param groupIds IDs of the groups to remove if unused
+     * @return future completed when removals have been confirmed
+     */
+    public CompletableFuture<Void> removeFlowsAndUnusedGroups(
+            DeviceId deviceId, Collection<FlowRule> flows, Collection<Integer> groupIds) {
+        return removeFlows(flows).thenCompose(v -> {
+            if (groupIds.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            final Set<Integer> usedGroupIds = stream(flowRuleService.getFlowEntries(deviceId))
+                    .filter(f -> f.appId() == appId.id())
+                    .filter(f -> f.state() != FlowEntry.FlowEntryState.PENDING_REMOVE
+                            && f.state() != FlowEntry.FlowEntryState.REMOVED)
+                    .flatMap(f -> f.treatment().allInstructions().stream())
+                    .filter(i -> i.type() == Instruction.Type.PROTOCOL_INDEPENDENT)
+                    .map(i -> ((PiInstruction) i).action())
+                    .filter(a -> a.type() == PiTableAction.Type.ACTION_PROFILE_GROUP_ID)
+                    .map(a -> ((PiActionProfileGroupId) a).id())
+                    .collect(Collectors.toSet());
+            final Collection<Group> unusedGroups = stream(groupService.getGroups(deviceId, appId))
+                    .filter(g -> g.type() == GroupDescription.Type.SELECT)
+                    .filter(g -> groupIds.contains(g.id().id())
+                            && !usedGroupIds.contains(g.id().id()))
+                    .collect(Collectors.toList());
+            if (!unusedGroups.isEmpty()) {
+                log.info("Removing {} unused groups from {}...", unusedGroups.size(), deviceId);
+            }
+            return removeGroups(unusedGroups);
+        });
+    }
+
+    //--------------------------------------------------------------------------
+    // CLEAN UP
+    //--------------------------------------------------------------------------
+
+    /**
+     * Triggers clean up of flows and groups from this app. All flows are
+     * removed with a single batch of flow rule operations, groups are removed
+     * only after the device has confirmed the removal of flows, in case those
+     * depend on groups. The returned future completes when all flows and
+     * groups have been removed, immediately if none was found.
+     *
+     * @return future completed when clean up is done
+     */
+    private CompletableFuture<Void> cleanUp() {
+        final Collection<FlowRule> flows = Lists.newArrayList(
                 flowRuleService.getFlowEntriesById(appId).iterator());
 
-        Collection<Group> groups = Lists.newArrayList();
+        final Collection<Group> groups = Lists.newArrayList();
         for (Device device : deviceService.getAvailableDevices()) {
             groupService.getGroups(device.id(), appId).forEach(groups::add);
         }
 
         if (flows.isEmpty() && groups.isEmpty()) {
-            return false;
+            return CompletableFuture.completedFuture(null);
         }
 
-        flows.forEach(flowRuleService::removeFlowRules);
-        if (!groups.isEmpty()) {
-            // Wait for flows to be removed in case those depend on groups.
-            sleep(1000);
-            groups.forEach(g -> groupService.removeGroup(
-                    g.deviceId(), g.appCookie(), g.appId()));
-        }
+        log.info("Removing {} flows and {} groups of {}...",
+                 flows.size(), groups.size(), appId.name());
 
-        return true;
+        return removeFlows(flows).thenCompose(v -> removeGroups(groups));
     }
 
-    private void waitPreviousCleanup() {
-        int retry = DEFAULT_CLEAN_UP_RETRY_TIMES;
-        while (retry != 0) {
+    /**
+     * Removes the given flows. The returned future completes when the removal
+     * has been confirmed or has failed, or after CLEAN_UP_TIMEOUT
+     * milliseconds, never exceptionally, such that groups can be removed next
+     * anyway.
+     *
+     * @param flows flow rules
+     * @return future completed when flows have been removed
+     */
+    private CompletableFuture<Void> removeFlows(Collection<FlowRule> flows) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        if (flows.isEmpty()) {
+            future.complete(null);
+            return future;
+        }
+        final ScheduledFuture<?> timeout = SharedScheduledExecutors.newTimeout(() -> {
+            if (future.complete(null)) {
+                log.warn("Removal of {} flows of {} not confirmed after {} ms, moving on",
+                         flows.size(), appId.name(), CLEAN_UP_TIMEOUT);
+            }
+        }, CLEAN_UP_TIMEOUT, TimeUnit.MILLISECONDS);
+        future.whenComplete((v, e) -> timeout.cancel(false));
+        final FlowRuleOperations.Builder ops = FlowRuleOperations.builder();
+        flows.forEach(ops::remove);
+        flowRuleService.apply(ops.build(new FlowRuleOperationsContext() {
+            @Override
+            public void onSuccess(FlowRuleOperations ops) {
+                future.complete(null);
+            }
 
-            if (!cleanUp()) {
+            @Override
+            public void onError(FlowRuleOperations ops) {
+                // Groups used by the remaining flows will fail to be
+                // removed, try with the others anyway.
+                log.warn("Unable to remove some flows of {}", appId.name());
+                future.complete(null);
+            }
+        }));
+        return future;
+    }
+
+    /**
+     * Removes the given groups. The returned future completes when the
+     * removal of all groups has been confirmed, or exceptionally if the
+     * removal of some groups failed, if their device became unavailable, or
+     * after CLEAN_UP_TIMEOUT milliseconds.
+     *
+     * @param groups groups
+     * @return future completed when groups have been removed
+     */
+    private CompletableFuture<Void> removeGroups(Collection<Group> groups) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        if (groups.isEmpty()) {
+            future.complete(null);
+            return future;
+        }
+        // Groups removal is confirmed via GROUP_REMOVED events.
+        final Set<Map.Entry<DeviceId, GroupKey>> pending = Sets.newConcurrentHashSet();
+        final AtomicInteger failed = new AtomicInteger();
+        groups.forEach(g -> pending.add(Maps.immutableEntry(g.deviceId(), g.appCookie())));
+        // Removal of groups of devices going away is never confirmed.
+        final Runnable dropUnavailable = () -> pending.stream()
+                .filter(k -> !deviceService.isAvailable(k.getKey()))
+                .collect(Collectors.toList())
+                .forEach(k -> {
+                    if (pending.remove(k)) {
+                        failed.incrementAndGet();
+                    }
+                });
+        final Runnable checkDone = () -> {
+            if (!pending.isEmpty()) {
                 return;
             }
+            if (failed.get() == 0) {
+                future.complete(null);
+            } else {
+                future.completeExceptionally(new IllegalStateException(
+                        failed.get() + " groups not removed"));
+            }
+        };
+        final GroupListener groupListener = new GroupListener() {
+            @Override
+            public boolean isRelevant(GroupEvent event) {
+                return event.type() == GroupEvent.Type.GROUP_REMOVED
+                        || event.type() == GroupEvent.Type.GROUP_REMOVE_FAILED;
+            }
 
-            log.info("Waiting to remove flows and groups from " +
-                             "previous execution of {}...",
-                     appId.name());
+            @Override
+            public void event(GroupEvent event) {
+                final Group group = event.subject();
+                if (!pending.remove(Maps.immutableEntry(group.deviceId(), group.appCookie()))) {
+                    return;
+                }
+                if (event.type() == GroupEvent.Type.GROUP_REMOVE_FAILED) {
+                    failed.incrementAndGet();
+                }
+                checkDone.run();
+            }
+        };
+        final DeviceListener deviceListener = new DeviceListener() {
+            @Override
+            public boolean isRelevant(DeviceEvent event) {
+                return event.type() == DeviceEvent.Type.DEVICE_REMOVED
+                        || event.type() == DeviceEvent.Type.DEVICE_AVAILABILITY_CHANGED;
+            }
 
-            sleep(CLEAN_UP_DELAY);
+            @Override
+            public void event(DeviceEvent event) {
+                dropUnavailable.run();
+                checkDone.run();
+            }
+        };
+        groupService.addListener(groupListener);
+        deviceService.addListener(deviceListener);
+        final ScheduledFuture<?> timeout = SharedScheduledExecutors.newTimeout(
+                () -> future.completeExceptionally(new TimeoutException(
+                        pending.size() + " groups not removed after " + CLEAN_UP_TIMEOUT + " ms")),
+                CLEAN_UP_TIMEOUT, TimeUnit.MILLISECONDS);
+        future.whenComplete((v, e) -> {
+            timeout.cancel(false);
+            groupService.removeListener(groupListener);
+            deviceService.removeListener(deviceListener);
+            if (e != null) {
+                log.warn("Unable to remove groups of {}: {}", appId.name(), e.getMessage());
+            }
+        });
+
+        groups.forEach(g -> groupService.removeGroup(
+                g.deviceId(), g.appCookie(), g.appId()));
+        // Groups might have been removed, or devices gone, before adding the
+        // listeners.
+        pending.removeIf(k -> groupService.getGroup(k.getKey(), k.getValue()) == null);
+        dropUnavailable.run();
+        checkDone.run();
+        return future;
+    }
 
-            --retry;
+    /**
+     * Cleans up flows and groups from this app, waiting at most
+     * CLEAN_UP_TIMEOUT milliseconds for the device to confirm their removal.
+     */
+    private void cleanUpAndWait() {
+        try {
+            cleanUp().get(CLEAN_UP_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.warn("Flows and groups of {} not removed after {} ms, moving on",
+                     appId.name(), CLEAN_UP_TIMEOUT);
+        } catch (ExecutionException e) {
+            log.warn("Unable to remove flows and groups of {}", appId.name(), e);
+        } catch (InterruptedException e) {
+            log.error("Interrupted!", e);
+            Thread.currentThread().interrupt();
         }
     }
 }
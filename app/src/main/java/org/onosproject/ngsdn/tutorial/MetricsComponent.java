@@ -0,0 +1,244 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.ngsdn.tutorial;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.FlowId;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleEvent;
+import org.onosproject.net.flow.FlowRuleListener;
+import org.onosproject.net.flow.FlowRuleService;
+import org.onosproject.ngsdn.tutorial.common.LatencyHistogram;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Objects;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+
+/**
+ * Component that collects timing metrics of the app, i.e. the duration of the
+ * configuration tasks performed by the other components, and the latency
+ * between the request to add a flow rule and the rule being confirmed as
+ * ADDED by the device. Metrics are kept per name and device ID in lock-free
+ * histograms, and can be dumped with the ngsdn-metrics CLI command.
+ */
+@Component(immediate = true, service = MetricsComponent.class)
+public class MetricsComponent {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(MetricsComponent.class.getName());
+
+    // Prefix of flow rule metric names, followed by the table ID.
+    public static final String RULE_ADD_METRIC_PREFIX = "ruleAdd.";
+
+    // Bounds memory used to track rules that never get ADDED (e.g. removed
+    // before, or failed).
+    private static final int MAX_PENDING_RULES = 100000;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private FlowRuleService flowRuleService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MainComponent mainComponent;
+
+    private final Map<MetricKey, LatencyHistogram> histograms = Maps.newConcurrentMap();
+    private final Map<FlowId, Long> pendingRules = Maps.newConcurrentMap();
+    private final FlowRuleListener flowRuleListener = new InternalFlowRuleListener();
+
+    private ApplicationId appId;
+
+    // Time of activation or of the last reset.
+    private volatile long startNanos;
+
+    @Activate
+    protected void activate() {
+        appId = mainComponent.getAppId();
+        startNanos = System.nanoTime();
+        flowRuleService.addListener(flowRuleListener);
+        log.info("Started");
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        flowRuleService.removeListener(flowRuleListener);
+        pendingRules.clear();
+        log.info("Stopped");
+    }
+
+    /**
+     * Runs the given task in the calling thread, recording its duration in the
+     * histogram with name "component.task" for the given device.
+     *
+     * @param component component name
+     * @param task      task name
+     * @param deviceId  device ID the task refers to
+     * @param runnable  task
+     */
+    public void time(String component, String task, DeviceId deviceId, Runnable runnable) {
+        final long start = System.nanoTime();
+        try {
+            runnable.run();
+        } finally {
+            histogram(component + "." + task, deviceId).recordSince(start);
+        }
+    }
+
+    /**
+     * Returns the histogram for the given metric name and device ID, creating
+     * it if needed.
+     *
+     * @param name     metric name
+     * @param deviceId device ID
+     * @return histogram
+     */
+    public LatencyHistogram histogram(String name, DeviceId deviceId) {
+        return histograms.computeIfAbsent(new MetricKey(name, deviceId),
+                                          k -> new LatencyHistogram());
+    }
+
+    /**
+     * Returns a snapshot of all histograms.
+     *
+     * @return map of histograms by metric key
+     */
+    public Map<MetricKey, LatencyHistogram> histograms() {
+        return ImmutableMap.copyOf(histograms);
+    }
+
+    /**
+     * Returns the time elapsed since histograms started to be recorded, i.e.
+     * since activation or the last reset, useful to compute rates.
+     *
+     * @return elapsed time in nanoseconds
+     */
+    public long elapsedNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Clears all histograms.
+     */
+    public void reset() {
+        histograms.clear();
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Listener of flow rule events, measuring the time between a rule add
+     * request and the rule being ADDED. Only rules of this app are considered.
+     */
+    private class InternalFlowRuleListener implements FlowRuleListener {
+
+        @Override
+        public boolean isRelevant(FlowRuleEvent event) {
+            return event.subject().appId() == appId.id();
+        }
+
+        @Override
+        public void event(FlowRuleEvent event) {
+            final FlowRule rule = event.subject();
+            switch (event.type()) {
+                case RULE_ADD_REQUESTED:
+                    if (pendingRules.size() < MAX_PENDING_RULES) {
+                        pendingRules.put(rule.id(), System.nanoTime());
+                    }
+                    break;
+                case RULE_ADDED:
+                    final Long requested = pendingRules.remove(rule.id());
+                    if (requested != null) {
+                        histogram(RULE_ADD_METRIC_PREFIX + rule.table(), rule.deviceId())
+                                .recordSince(requested);
+                    }
+                    break;
+                case RULE_REMOVE_REQUESTED:
+                case RULE_REMOVED:
+                    pendingRules.remove(rule.id());
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Key of a metric, made of name and device ID.
+     */
+    public static final class MetricKey {
+
+        private final String name;
+        private final DeviceId deviceId;
+
+        private MetricKey(String name, DeviceId deviceId) {
+            this.name = name;
+            this.deviceId = deviceId;
+        }
+
+        /**
+         * Returns the metric name.
+         *
+         * @return name
+         */
+        public String name() {
+            return name;
+        }
+
+        /**
+         * Returns the device ID.
+         *
+         * @return device ID
+         */
+        public DeviceId deviceId() {
+            return deviceId;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            final MetricKey other = (MetricKey) obj;
+            return Objects.equals(name, other.name)
+                    && Objects.equals(deviceId, other.deviceId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, deviceId);
+        }
+
+        @Override
+        public String toString() {
+            return toStringHelper(this)
+                    .add("name", name)
+                    .add("deviceId", deviceId)
+                    .toString();
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package org.onosproject.ngsdn.tutorial;
 
+import com.google.common.collect.ImmutableSet;
 import org.onlab.packet.Ip6Address;
 import org.onlab.packet.IpAddress;
 import org.onlab.packet.MacAddress;
@@ -39,7 +40,9 @@ import org.onosproject.net.pi.model.PiActionParamId;
 import org.onosproject.net.pi.model.PiMatchFieldId;
 import org.onosproject.net.pi.runtime.PiAction;
 import org.onosproject.net.pi.runtime.PiActionParam;
+import org.onosproject.ngsdn.tutorial.BootstrapComponent.Stage;
 import org.onosproject.ngsdn.tutorial.common.FabricDeviceConfig;
+import org.onosproject.ngsdn.tutorial.common.InstrumentedExecutor.TaskType;
 import org.onosproject.ngsdn.tutorial.common.Utils;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
@@ -52,7 +55,6 @@ import org.slf4j.LoggerFactory;
 import java.util.Collection;
 import java.util.stream.Collectors;
 
-import static org.onosproject.ngsdn.tutorial.AppConstants.INITIAL_SETUP_DELAY;
 
 /**
  * App component that configures devices to generate NDP Neighbor Advertisement
@@ -69,6 +71,8 @@ public class NdpReplyComponent {
     private static final Logger log =
             LoggerFactory.getLogger(NdpReplyComponent.class.getName());
 
+    private static final String METRICS_NAME = "NdpReplyComponent";
+
     //--------------------------------------------------------------------------
     // ONOS CORE SERVICE BINDING
     //
@@ -94,6 +98,12 @@ public class NdpReplyComponent {
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     private MainComponent mainComponent;
 
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MetricsComponent metrics;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private BootstrapComponent bootstrap;
+
     private DeviceListener deviceListener = new InternalDeviceListener();
     private ApplicationId appId;
 
@@ -110,12 +120,15 @@ public class NdpReplyComponent {
         // Register listeners to be informed about device events.
         deviceService.addListener(deviceListener);
         // Schedule set up of existing devices. Needed when reloading the app.
-        mainComponent.scheduleTask(this::setUpAllDevices, INITIAL_SETUP_DELAY);
+        bootstrap.register(Stage.BASE, getClass().getSimpleName(),
+                           ImmutableSet.of("IngressPipeImpl.ndp_reply_table"),
+                           this::setUpExistingDevice);
         log.info("Started");
     }
 
     @Deactivate
     public void deactivate() {
+        bootstrap.unregister(getClass().getSimpleName());
         deviceService.removeListener(deviceListener);
         log.info("Stopped");
     }
@@ -127,15 +140,15 @@ public class NdpReplyComponent {
     //--------------------------------------------------------------------------
 
     /**
-     * Set up all devices for which this ONOS instance is currently master.
+     * Set up the given device, available when the component is activated and
+     * for which this ONOS instance is currently master.
+     *
+     * @param deviceId the device ID
      */
-    private void setUpAllDevices() {
-        deviceService.getAvailableDevices().forEach(device -> {
-            if (mastershipService.isLocalMaster(device.id())) {
-                log.info("*** NDP REPLY - Starting Initial set up for {}...", device.id());
-                setUpDevice(device.id());
-            }
-        });
+    private void setUpExistingDevice(DeviceId deviceId) {
+        log.info("*** NDP REPLY - Starting Initial set up for {}...", deviceId);
+        metrics.time(METRICS_NAME, "setUpDevice", deviceId,
+                     () -> setUpDevice(deviceId));
     }
 
     /**
@@ -256,9 +269,10 @@ public class NdpReplyComponent {
 
                 // Events are processed using a thread pool defined in the
                 // MainComponent.
-                mainComponent.getExecutorService().execute(() -> {
+                mainComponent.execute(TaskType.DEVICE, () -> {
                     log.info("{} event! deviceId={}", event.type(), deviceId);
-                    setUpDevice(deviceId);
+                    metrics.time(METRICS_NAME, "setUpDevice", deviceId,
+                                 () -> setUpDevice(deviceId));
                 });
             }
         }
@@ -284,13 +298,16 @@ public class NdpReplyComponent {
     }
 
     /**
-     * Install the given flow rules in batch using the flow rule service.
+     * Install the given flow rules in batch using the flow rule service,
+     * skipping those already installed when warm restarting.
      *
      * @param flowRules flow rules to install
      */
     private void installRules(Collection<FlowRule> flowRules) {
         FlowRuleOperations.Builder ops = FlowRuleOperations.builder();
-        flowRules.forEach(ops::add);
+        flowRules.stream()
+                .filter(r -> !mainComponent.isInstalled(r))
+                .forEach(ops::add);
         flowRuleService.apply(ops.build());
     }
 }
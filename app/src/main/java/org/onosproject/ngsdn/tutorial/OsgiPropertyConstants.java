@@ -0,0 +1,53 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.ngsdn.tutorial;
+
+/**
+ * Constants for default values of configurable properties.
+ */
+public final class OsgiPropertyConstants {
+
+    private OsgiPropertyConstants() {
+    }
+
+    public static final String WARM_RESTART = "warmRestart";
+    public static final boolean WARM_RESTART_DEFAULT = false;
+
+    public static final String CPU_METER_RATE = "cpuMeterRate";
+    public static final int CPU_METER_RATE_DEFAULT = 100; // Packets/sec.
+
+    public static final String CPU_METER_BURST = "cpuMeterBurst";
+    public static final int CPU_METER_BURST_DEFAULT = 50; // Packets.
+
+    public static final String PACKET_IN_RATE = "packetInRate";
+    public static final int PACKET_IN_RATE_DEFAULT = 1000; // Packets/sec.
+
+    public static final String PACKET_IN_BURST = "packetInBurst";
+    public static final int PACKET_IN_BURST_DEFAULT = 200; // Packets.
+
+    public static final String COUNTER_POLL_INTERVAL = "counterPollInterval";
+    public static final int COUNTER_POLL_INTERVAL_DEFAULT = 10; // Seconds.
+
+    public static final String COUNTER_HISTORY_SIZE = "counterHistorySize";
+    public static final int COUNTER_HISTORY_SIZE_DEFAULT = 60; // Samples.
+
+    public static final String BOOTSTRAP_CONCURRENCY = "bootstrapConcurrency";
+    public static final int BOOTSTRAP_CONCURRENCY_DEFAULT = 8; // Set up steps.
+
+    public static final String BOOTSTRAP_DEVICE_CONCURRENCY = "bootstrapDeviceConcurrency";
+    public static final int BOOTSTRAP_DEVICE_CONCURRENCY_DEFAULT = 2; // Set up steps.
+}
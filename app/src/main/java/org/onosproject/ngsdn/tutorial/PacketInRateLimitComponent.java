@@ -0,0 +1,404 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.ngsdn.tutorial;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import org.onlab.packet.Ethernet;
+import org.onosproject.cfg.ComponentConfigService;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.mastership.MastershipService;
+import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Port;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
+import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.meter.Band;
+import org.onosproject.net.meter.DefaultBand;
+import org.onosproject.net.meter.DefaultMeter;
+import org.onosproject.net.meter.Meter;
+import org.onosproject.net.meter.MeterOperation;
+import org.onosproject.net.meter.MeterProgrammable;
+import org.onosproject.net.packet.PacketContext;
+import org.onosproject.net.packet.PacketProcessor;
+import org.onosproject.net.packet.PacketService;
+import org.onosproject.net.pi.model.PiMeterId;
+import org.onosproject.net.pi.runtime.PiMeterCellId;
+import org.onosproject.ngsdn.tutorial.BootstrapComponent.Stage;
+import org.onosproject.ngsdn.tutorial.common.InstrumentedExecutor.TaskType;
+import org.onosproject.ngsdn.tutorial.common.Utils;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.onosproject.ngsdn.tutorial.OsgiPropertyConstants.CPU_METER_BURST;
+import static org.onosproject.ngsdn.tutorial.OsgiPropertyConstants.CPU_METER_BURST_DEFAULT;
+import static org.onosproject.ngsdn.tutorial.OsgiPropertyConstants.CPU_METER_RATE;
+import static org.onosproject.ngsdn.tutorial.OsgiPropertyConstants.CPU_METER_RATE_DEFAULT;
+import static org.onosproject.ngsdn.tutorial.OsgiPropertyConstants.PACKET_IN_BURST;
+import static org.onosproject.ngsdn.tutorial.OsgiPropertyConstants.PACKET_IN_BURST_DEFAULT;
+import static org.onosproject.ngsdn.tutorial.OsgiPropertyConstants.PACKET_IN_RATE;
+import static org.onosproject.ngsdn.tutorial.OsgiPropertyConstants.PACKET_IN_RATE_DEFAULT;
+
+/**
+ * App component that protects the control plane from packet-in storms. It
+ * configures the per-ingress-port CPU meter of each device, so that packets
+ * sent or cloned to the CPU are rate limited by the switch, and it installs a
+ * packet processor that admits packet-ins at a configurable rate per device,
+ * dropping low-priority packets (i.e. all but link discovery ones) when the
+ * rate is exceeded.
+ */
+@Component(
+        immediate = true,
+        property = {
+                CPU_METER_RATE + ":Integer=" + CPU_METER_RATE_DEFAULT,
+                CPU_METER_BURST + ":Integer=" + CPU_METER_BURST_DEFAULT,
+                PACKET_IN_RATE + ":Integer=" + PACKET_IN_RATE_DEFAULT,
+                PACKET_IN_BURST + ":Integer=" + PACKET_IN_BURST_DEFAULT,
+        }
+)
+public class PacketInRateLimitComponent {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(PacketInRateLimitComponent.class.getName());
+
+    private static final PiMeterId CPU_PORT_METER_ID =
+            PiMeterId.of("IngressPipeImpl.cpu_port_meter");
+
+    // Offset of the EtherType in the packet-in payload (no VLAN tags in
+    // main.p4).
+    private static final int ETHER_TYPE_OFFSET = 12;
+
+    /** Packets per second sent to the CPU from each switch port, 0 to disable. */
+    private int cpuMeterRate = CPU_METER_RATE_DEFAULT;
+
+    /** Burst size in packets of the per-port CPU meter. */
+    private int cpuMeterBurst = CPU_METER_BURST_DEFAULT;
+
+    /** Packet-ins per second admitted from each device, 0 to disable. */
+    private int packetInRate = PACKET_IN_RATE_DEFAULT;
+
+    /** Burst size in packets of the per-device packet-in admission. */
+    private int packetInBurst = PACKET_IN_BURST_DEFAULT;
+
+    //--------------------------------------------------------------------------
+    // ONOS CORE SERVICE BINDING
+    //
+    // These variables are set by the Karaf runtime environment before calling
+    // the activate() method.
+    //--------------------------------------------------------------------------
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private ComponentConfigService cfgService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private PacketService packetService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private DeviceService deviceService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MastershipService mastershipService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MainComponent mainComponent;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private BootstrapComponent bootstrap;
+
+    private final DeviceListener deviceListener = new InternalDeviceListener();
+    private final PacketProcessor packetProcessor = new AdmissionPacketProcessor();
+    private final Map<DeviceId, TokenBucket> buckets = Maps.newConcurrentMap();
+    private final AtomicLong droppedPacketIns = new AtomicLong();
+
+    private ApplicationId appId;
+
+    //--------------------------------------------------------------------------
+    // COMPONENT ACTIVATION.
+    //
+    // When loading/unloading the app the Karaf runtime environment will call
+    // activate()/deactivate().
+    //--------------------------------------------------------------------------
+
+    @Activate
+    protected void activate(Map<String, Object> properties) {
+        appId = mainComponent.getAppId();
+        cfgService.registerProperties(getClass());
+        readProperties(properties);
+
+        // Run before any other processor, such that dropped packet-ins are
+        // seen as handled by the others.
+        packetService.addProcessor(packetProcessor, PacketProcessor.advisor(0));
+        deviceService.addListener(deviceListener);
+        // Set up existing devices once ready. Needed when reloading the app.
+        // Only meters are configured, no table is owned.
+        bootstrap.register(Stage.BASE, getClass().getSimpleName(),
+                           ImmutableSet.of(), this::setUpDevice);
+
+        log.info("Started");
+    }
+
+    @Modified
+    protected void modified(Map<String, Object> properties) {
+        readProperties(properties);
+        buckets.clear();
+        // Apply new meter configuration to all devices.
+        mainComponent.execute(TaskType.OTHER, this::setUpAllDevices);
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        bootstrap.unregister(getClass().getSimpleName());
+        deviceService.removeListener(deviceListener);
+        packetService.removeProcessor(packetProcessor);
+        cfgService.unregisterProperties(getClass(), false);
+        buckets.clear();
+
+        log.info("Stopped");
+    }
+
+    /**
+     * Returns the number of packet-ins dropped by the admission control since
+     * the component was activated.
+     *
+     * @return number of packet-ins
+     */
+    public long droppedPacketIns() {
+        return droppedPacketIns.get();
+    }
+
+    private void readProperties(Map<String, Object> properties) {
+        cpuMeterRate = Utils.getIntProperty(properties, CPU_METER_RATE, cpuMeterRate, 0);
+        cpuMeterBurst = Utils.getIntProperty(properties, CPU_METER_BURST, cpuMeterBurst, 0);
+        packetInRate = Utils.getIntProperty(properties, PACKET_IN_RATE, packetInRate, 0);
+        packetInBurst = Utils.getIntProperty(properties, PACKET_IN_BURST, packetInBurst, 0);
+        log.info("Configured: {}={}, {}={}, {}={}, {}={}",
+                 CPU_METER_RATE, cpuMeterRate, CPU_METER_BURST, cpuMeterBurst,
+                 PACKET_IN_RATE, packetInRate, PACKET_IN_BURST, packetInBurst);
+    }
+
+    //--------------------------------------------------------------------------
+    // CPU METER CONFIGURATION
+    //--------------------------------------------------------------------------
+
+    /**
+     * Set up all devices for which this ONOS instance is currently master.
+     */
+    private void setUpAllDevices() {
+        deviceService.getAvailableDevices().forEach(device -> {
+            if (mastershipService.isLocalMaster(device.id())) {
+                setUpDevice(device.id());
+            }
+        });
+    }
+
+    /**
+     * Configures the CPU meter cell of each port of the given device, with the
+     * current rate and burst size. If the rate is 0, the cells are reset to
+     * their default configuration, i.e. no rate limit.
+     *
+     * @param deviceId device ID
+     */
+    private void setUpDevice(DeviceId deviceId) {
+        final Device device = deviceService.getDevice(deviceId);
+        if (device == null || !device.is(MeterProgrammable.class)) {
+            log.warn("Unable to configure CPU meters on {}: device does not "
+                             + "support meter programming", deviceId);
+            return;
+        }
+        final MeterProgrammable meterProgrammable = device.as(MeterProgrammable.class);
+        final MeterOperation.Type opType = cpuMeterRate > 0
+                ? MeterOperation.Type.ADD : MeterOperation.Type.REMOVE;
+
+        log.info("Configuring CPU meters on {} (rate={} pps, burst={})...",
+                 deviceId, cpuMeterRate, cpuMeterBurst);
+
+        deviceService.getPorts(deviceId).stream()
+                .filter(port -> !port.number().isLogical())
+                .map(port -> buildCpuMeter(deviceId, port))
+                .forEach(meter -> meterProgrammable
+                        .performMeterOperation(new MeterOperation(meter, opType))
+                        .whenComplete((ok, error) -> {
+                            if (error != null || !Boolean.TRUE.equals(ok)) {
+                                log.warn("Unable to configure {} on {}",
+                                         meter.meterCellId(), deviceId);
+                            }
+                        }));
+    }
+
+    /**
+     * Builds the meter for the CPU meter cell of the given port. main.p4 uses
+     * a two-rate three-color meter, here we use the same rate for both bands
+     * such that all packets exceeding the rate are marked as red, and dropped.
+     *
+     * @param deviceId device ID
+     * @param port     switch port
+     * @return meter
+     */
+    private Meter buildCpuMeter(DeviceId deviceId, Port port) {
+        final long burst = Math.max(cpuMeterBurst, 1);
+        final Band committed = DefaultBand.builder()
+                .ofType(Band.Type.MARK_YELLOW)
+                .withRate(cpuMeterRate)
+                .burstSize(burst)
+                .build();
+        final Band peak = DefaultBand.builder()
+                .ofType(Band.Type.DROP)
+                .withRate(cpuMeterRate)
+                .burstSize(burst)
+                .build();
+        return DefaultMeter.builder()
+                .forDevice(deviceId)
+                .fromApp(appId)
+                .withCellId(PiMeterCellId.ofIndirect(
+                        CPU_PORT_METER_ID, port.number().toLong()))
+                .withUnit(Meter.Unit.PKTS_PER_SEC)
+                .withBands(ImmutableList.of(committed, peak))
+                .burst()
+                .build();
+    }
+
+    //--------------------------------------------------------------------------
+    // PACKET-IN ADMISSION CONTROL
+    //--------------------------------------------------------------------------
+
+    /**
+     * Returns true if the given packet-in should be admitted even when the
+     * device is over its packet-in rate. We prioritize link discovery packets,
+     * as losing them would cause links to be removed, and further churn.
+     * The EtherType is read from the raw payload to avoid deserializing the
+     * whole packet.
+     *
+     * @param context packet context
+     * @return true if high priority
+     */
+    private static boolean isHighPriority(PacketContext context) {
+        final ByteBuffer data = context.inPacket().unparsed();
+        if (data.remaining() < ETHER_TYPE_OFFSET + Short.BYTES) {
+            return false;
+        }
+        final short etherType = data.getShort(data.position() + ETHER_TYPE_OFFSET);
+        return etherType == Ethernet.TYPE_LLDP || etherType == Ethernet.TYPE_BSN;
+    }
+
+    /**
+     * Packet processor that drops low-priority packet-ins when a device sends
+     * them at a rate higher than the configured one.
+     */
+    private class AdmissionPacketProcessor implements PacketProcessor {
+
+        @Override
+        public void process(PacketContext context) {
+            if (context.isHandled() || packetInRate == 0) {
+                return;
+            }
+            final DeviceId deviceId = context.inPacket().receivedFrom().deviceId();
+            final TokenBucket bucket = buckets.computeIfAbsent(
+                    deviceId, id -> new TokenBucket(packetInRate, packetInBurst));
+            if (!bucket.tryAcquire(isHighPriority(context))) {
+                // Mark as handled, other processors will ignore it.
+                context.block();
+                final long dropped = droppedPacketIns.incrementAndGet();
+                log.debug("Dropped packet-in from {} (total dropped: {})",
+                          context.inPacket().receivedFrom(), dropped);
+            }
+        }
+    }
+
+    /**
+     * Token bucket refilled at a fixed rate. High priority requests are always
+     * admitted, but they still consume tokens when available.
+     */
+    private static final class TokenBucket {
+
+        private final double tokensPerNano;
+        private final double capacity;
+        private double tokens;
+        private long lastRefillNanos;
+
+        TokenBucket(int rate, int burst) {
+            this.tokensPerNano = rate / 1e9;
+            this.capacity = Math.max(burst, 1);
+            this.tokens = capacity;
+            this.lastRefillNanos = System.nanoTime();
+        }
+
+        synchronized boolean tryAcquire(boolean highPriority) {
+            final long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * tokensPerNano);
+            lastRefillNanos = now;
+            if (tokens >= 1) {
+                tokens -= 1;
+                return true;
+            }
+            return highPriority;
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // EVENT LISTENERS
+    //
+    // Events are processed only if isRelevant() returns true.
+    //--------------------------------------------------------------------------
+
+    /**
+     * Listener of device events.
+     */
+    public class InternalDeviceListener implements DeviceListener {
+
+        @Override
+        public boolean isRelevant(DeviceEvent event) {
+            switch (event.type()) {
+                case DEVICE_ADDED:
+                case DEVICE_AVAILABILITY_CHANGED:
+                    break;
+                default:
+                    // Ignore other events.
+                    return false;
+            }
+            // Process only if this controller instance is the master.
+            final DeviceId deviceId = event.subject().id();
+            return mastershipService.isLocalMaster(deviceId);
+        }
+
+        @Override
+        public void event(DeviceEvent event) {
+            final DeviceId deviceId = event.subject().id();
+            if (deviceService.isAvailable(deviceId)) {
+                // Events are processed using a thread pool defined in the
+                // MainComponent.
+                mainComponent.execute(TaskType.DEVICE, () -> {
+                    log.info("{} event! deviceId={}", event.type(), deviceId);
+                    setUpDevice(deviceId);
+                });
+            } else {
+                buckets.remove(deviceId);
+            }
+        }
+    }
+}
@@ -0,0 +1,474 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.ngsdn.tutorial;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.onlab.packet.Ip6Address;
+import org.onlab.packet.Ip6Prefix;
+import org.onlab.packet.IpPrefix;
+import org.onlab.packet.MacAddress;
+import org.onlab.util.KryoNamespace;
+import org.onosproject.cluster.ClusterService;
+import org.onosproject.cluster.LeadershipEvent;
+import org.onosproject.cluster.LeadershipEventListener;
+import org.onosproject.cluster.LeadershipService;
+import org.onosproject.cluster.NodeId;
+import org.onosproject.mastership.MastershipService;
+import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Host;
+import org.onosproject.net.config.NetworkConfigEvent;
+import org.onosproject.net.config.NetworkConfigListener;
+import org.onosproject.net.config.NetworkConfigService;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.device.DeviceListener;
+import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.host.HostService;
+import org.onosproject.net.host.InterfaceIpAddress;
+import org.onosproject.net.intf.Interface;
+import org.onosproject.net.intf.InterfaceEvent;
+import org.onosproject.net.intf.InterfaceListener;
+import org.onosproject.net.intf.InterfaceService;
+import org.onosproject.ngsdn.tutorial.common.FabricDeviceConfig;
+import org.onosproject.ngsdn.tutorial.common.InstrumentedExecutor.TaskType;
+import org.onosproject.store.serializers.KryoNamespaces;
+import org.onosproject.store.service.AtomicCounter;
+import org.onosproject.store.service.ConsistentMap;
+import org.onosproject.store.service.EventuallyConsistentMap;
+import org.onosproject.store.service.EventuallyConsistentMapEvent;
+import org.onosproject.store.service.EventuallyConsistentMapListener;
+import org.onosproject.store.service.Serializer;
+import org.onosproject.store.service.StorageService;
+import org.onosproject.store.service.Versioned;
+import org.onosproject.store.service.WallClockTimestamp;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.collect.Streams.stream;
+import static org.onosproject.ngsdn.tutorial.AppConstants.NEXT_OBJECTIVE_GROUP_ID_BASE;
+
+/**
+ * Component holding the fabric route model shared by all ONOS instances, i.e.
+ * for each device the IPv4 and IPv6 prefixes routed across the fabric and the
+ * set of next hop MAC addresses of each prefix, and the group IDs allocated to
+ * next hop sets. Group IDs are shared by IPv4 and IPv6 routes.
+ * <p>
+ * The route model is computed from netcfg and interfaces by the leader of the
+ * cluster, once per change, and stored in an eventually consistent map. Group
+ * IDs are allocated in a consistent map, such that a next hop set is given the
+ * same group ID by all instances, e.g. after a mastership change. Group IDs of
+ * next hop sets no longer used by routes or hosts are released by the leader,
+ * and reused only once the whole range has been allocated, such that devices
+ * have removed the groups using them by then. Listeners are notified when the
+ * routes of a device mastered by this instance change.
+ */
+@Component(immediate = true, service = RouteStoreComponent.class)
+public class RouteStoreComponent {
+
+    private static final Logger log =
+            LoggerFactory.getLogger(RouteStoreComponent.class.getName());
+
+    private static final String ROUTES_MAP_NAME = "ngsdn-tutorial-fabric-routes";
+    private static final String GROUP_IDS_MAP_NAME = "ngsdn-tutorial-next-hop-group-ids";
+    private static final String GROUP_ID_COUNTER_NAME = "ngsdn-tutorial-next-hop-group-id";
+    private static final String LEADERSHIP_TOPIC = "ngsdn-tutorial-fabric-routes";
+    // Group IDs are allocated in [1, MAX_GROUP_ID], below the range used for
+    // next objectives.
+    private static final int MAX_GROUP_ID = NEXT_OBJECTIVE_GROUP_ID_BASE - 1;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private StorageService storageService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private ClusterService clusterService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private LeadershipService leadershipService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MastershipService mastershipService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private DeviceService deviceService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private NetworkConfigService networkConfigService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private InterfaceService interfaceService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private HostService hostService;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MainComponent mainComponent;
+
+    private final DeviceListener deviceListener = new InternalDeviceListener();
+    private final NetworkConfigListener configListener = new InternalConfigListener();
+    private final InterfaceListener interfaceListener = new InternalInterfaceListener();
+    private final LeadershipEventListener leadershipListener = new InternalLeadershipListener();
+    private final EventuallyConsistentMapListener<DeviceId, Map<IpPrefix, Set<MacAddress>>>
+            routesListener = new InternalRoutesListener();
+
+    private final Set<Consumer<DeviceId>> listeners = Sets.newCopyOnWriteArraySet();
+    private final AtomicBoolean updateScheduled = new AtomicBoolean();
+
+    // Device ID -> (prefix -> next hop MACs).
+    private EventuallyConsistentMap<DeviceId, Map<IpPrefix, Set<MacAddress>>> routes;
+    // Next hop MACs, sorted and comma-separated -> group ID.
+    private ConsistentMap<String, Integer> groupIds;
+    private AtomicCounter groupIdCounter;
+
+    private NodeId localNodeId;
+
+    @Activate
+    protected void activate() {
+        localNodeId = clusterService.getLocalNode().id();
+
+        routes = storageService.<DeviceId, Map<IpPrefix, Set<MacAddress>>>
+                eventuallyConsistentMapBuilder()
+                .withName(ROUTES_MAP_NAME)
+                .withSerializer(KryoNamespace.newBuilder().register(KryoNamespaces.API))
+                .withTimestampProvider((k, v) -> new WallClockTimestamp())
+                .build();
+        groupIds = storageService.<String, Integer>consistentMapBuilder()
+                .withName(GROUP_IDS_MAP_NAME)
+                .withSerializer(Serializer.using(KryoNamespaces.API))
+                .build();
+        groupIdCounter = storageService.atomicCounterBuilder()
+                .withName(GROUP_ID_COUNTER_NAME)
+                .build()
+                .asAtomicCounter();
+
+        routes.addListener(routesListener);
+        leadershipService.addListener(leadershipListener);
+        deviceService.addListener(deviceListener);
+        networkConfigService.addListener(configListener);
+        interfaceService.addListener(interfaceListener);
+        leadershipService.runForLeadership(LEADERSHIP_TOPIC);
+
+        log.info("Started");
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        leadershipService.withdraw(LEADERSHIP_TOPIC);
+        interfaceService.removeListener(interfaceListener);
+        networkConfigService.removeListener(configListener);
+        deviceService.removeListener(deviceListener);
+        leadershipService.removeListener(leadershipListener);
+        routes.removeListener(routesListener);
+        routes.destroy();
+        listeners.clear();
+
+        log.info("Stopped");
+    }
+
+    /**
+     * Adds a listener called with the ID of a device mastered by this
+     * instance whenever its routes change.
+     *
+     * @param listener listener
+     */
+    public void addListener(Consumer<DeviceId> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes the given listener.
+     *
+     * @param listener listener
+     */
+    public void removeListener(Consumer<DeviceId> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Returns the fabric routes of the given device, i.e. for each IPv4 and
+     * IPv6 prefix routed across the fabric, the set of next hop MAC addresses. If
+     * the routes have not been computed by the leader yet, they are computed
+     * locally.
+     *
+     * @param deviceId device ID
+     * @return map of prefixes to next hop MAC addresses
+     */
+    public Map<IpPrefix, Set<MacAddress>> getRoutes(DeviceId deviceId) {
+        final Map<IpPrefix, Set<MacAddress>> deviceRoutes = routes.get(deviceId);
+        return deviceRoutes != null ? deviceRoutes : computeRoutes(deviceId);
+    }
+
+    /**
+     * Returns the group ID of the given next hop set, allocating a new one if
+     * needed. All instances get the same group ID for the same next hops.
+     * Group IDs are below the range used for next objectives.
+     *
+     * @param nextHops next hop MAC addresses
+     * @return group ID
+     * @throws IllegalStateException if group IDs are exhausted
+     */
+    public int getGroupId(Set<MacAddress> nextHops) {
+        return groupIds.computeIfAbsent(
+                groupIdKey(nextHops), k -> allocateGroupId()).value();
+    }
+
+    // Key independent of the iteration order of the set.
+    private static String groupIdKey(Set<MacAddress> nextHops) {
+        return nextHops.stream()
+                .map(MacAddress::toString)
+                .sorted()
+                .collect(Collectors.joining(","));
+    }
+
+    private int allocateGroupId() {
+        final Set<Integer> allocated = groupIds.values().stream()
+                .map(Versioned::value)
+                .collect(Collectors.toSet());
+        checkState(allocated.size() < MAX_GROUP_ID, "Group IDs exhausted");
+        // The counter wraps around the range, skipping IDs still allocated.
+        int groupId;
+        do {
+            groupId = (int) (groupIdCounter.getAndIncrement() % MAX_GROUP_ID) + 1;
+        } while (allocated.contains(groupId));
+        return groupId;
+    }
+
+    /**
+     * Releases the group IDs of next hop sets not used anymore, neither by the
+     * routes of any device nor by a host.
+     */
+    private void releaseGroupIds() {
+        final Set<String> inUse = Sets.newHashSet();
+        routes.values().forEach(deviceRoutes -> deviceRoutes.values().stream()
+                .map(RouteStoreComponent::groupIdKey)
+                .forEach(inUse::add));
+        stream(hostService.getHosts())
+                .map(Host::mac)
+                .map(mac -> groupIdKey(ImmutableSet.of(mac)))
+                .forEach(inUse::add);
+        final Set<String> unused = Sets.difference(groupIds.keySet(), inUse)
+                .immutableCopy();
+        unused.forEach(groupIds::remove);
+        if (!unused.isEmpty()) {
+            log.info("Released {} group IDs of unused next hops", unused.size());
+        }
+    }
+
+    private boolean isLeader() {
+        return localNodeId.equals(leadershipService.getLeader(LEADERSHIP_TOPIC));
+    }
+
+    private void scheduleUpdate() {
+        if (isLeader() && updateScheduled.compareAndSet(false, true)) {
+            mainComponent.execute(TaskType.OTHER, this::updateRoutes);
+        }
+    }
+
+    /**
+     * Computes the routes of all devices and updates the store with those
+     * that changed.
+     */
+    private void updateRoutes() {
+        updateScheduled.set(false);
+        final Set<DeviceId> deviceIds = stream(deviceService.getDevices())
+                .map(Device::id)
+                .filter(deviceId -> getDeviceConfig(deviceId) != null)
+                .collect(Collectors.toSet());
+        int updated = 0;
+        for (DeviceId deviceId : deviceIds) {
+            final Map<IpPrefix, Set<MacAddress>> newRoutes = computeRoutes(deviceId);
+            if (!newRoutes.equals(routes.get(deviceId))) {
+                routes.put(deviceId, newRoutes);
+                updated++;
+            }
+        }
+        final Set<DeviceId> removed = Sets.difference(routes.keySet(), deviceIds)
+                .immutableCopy();
+        removed.forEach(routes::remove);
+        releaseGroupIds();
+        log.info("Fabric routes updated for {} of {} devices", updated, deviceIds.size());
+    }
+
+    /**
+     * Computes the fabric routes of the given device. Spines route the
+     * subnets and SID of each leaf to that leaf. Leaves route the subnets of
+     * the other leaves via all spines, and the SID of each spine to that
+     * spine.
+     *
+     * @param deviceId device ID
+     * @return map of prefixes to next hop MAC addresses
+     */
+    private Map<IpPrefix, Set<MacAddress>> computeRoutes(DeviceId deviceId) {
+        final FabricDeviceConfig config = getDeviceConfig(deviceId);
+        if (config == null) {
+            return ImmutableMap.of();
+        }
+        // Devices without myStationMac cannot be used as next hops.
+        final Map<DeviceId, FabricDeviceConfig> spines = Maps.newHashMap();
+        final Map<DeviceId, FabricDeviceConfig> leaves = Maps.newHashMap();
+        for (Device device : deviceService.getDevices()) {
+            final FabricDeviceConfig other = getDeviceConfig(device.id());
+            if (other != null && other.myStationMac() != null) {
+                (other.isSpine() ? spines : leaves).put(device.id(), other);
+            }
+        }
+
+        final Map<IpPrefix, Set<MacAddress>> deviceRoutes = Maps.newHashMap();
+        if (config.isSpine()) {
+            leaves.forEach((leafId, leafConfig) -> {
+                final Set<MacAddress> leafMac = ImmutableSet.of(leafConfig.myStationMac());
+                getInterfacePrefixes(leafId).forEach(
+                        subnet -> deviceRoutes.put(subnet, leafMac));
+                if (leafConfig.mySid() != null) {
+                    deviceRoutes.put(sidPrefix(leafConfig.mySid()), leafMac);
+                }
+            });
+        } else {
+            final Set<MacAddress> spineMacs = spines.values().stream()
+                    .map(FabricDeviceConfig::myStationMac)
+                    .collect(ImmutableSet.toImmutableSet());
+            if (!spineMacs.isEmpty()) {
+                leaves.keySet().stream()
+                        .filter(leafId -> !leafId.equals(deviceId))
+                        .map(this::getInterfacePrefixes)
+                        .flatMap(Collection::stream)
+                        .forEach(subnet -> deviceRoutes.put(subnet, spineMacs));
+            }
+            spines.values().stream()
+                    .filter(spineConfig -> spineConfig.mySid() != null)
+                    .forEach(spineConfig -> deviceRoutes.put(
+                            sidPrefix(spineConfig.mySid()),
+                            ImmutableSet.of(spineConfig.myStationMac())));
+        }
+        return ImmutableMap.copyOf(deviceRoutes);
+    }
+
+    private FabricDeviceConfig getDeviceConfig(DeviceId deviceId) {
+        return networkConfigService.getConfig(deviceId, FabricDeviceConfig.class);
+    }
+
+    private Set<IpPrefix> getInterfacePrefixes(DeviceId deviceId) {
+        return interfaceService.getInterfaces().stream()
+                .filter(iface -> iface.connectPoint().deviceId().equals(deviceId))
+                .map(Interface::ipAddressesList)
+                .flatMap(Collection::stream)
+                .map(InterfaceIpAddress::subnetAddress)
+                .collect(Collectors.toSet());
+    }
+
+    private static IpPrefix sidPrefix(Ip6Address sid) {
+        return Ip6Prefix.valueOf(sid, Ip6Address.BIT_LENGTH);
+    }
+
+    /**
+     * Listener of updates of the route store, notifying listeners of devices
+     * mastered by this instance.
+     */
+    private class InternalRoutesListener
+            implements EventuallyConsistentMapListener<DeviceId, Map<IpPrefix, Set<MacAddress>>> {
+
+        @Override
+        public void event(EventuallyConsistentMapEvent<DeviceId, Map<IpPrefix, Set<MacAddress>>> event) {
+            final DeviceId deviceId = event.key();
+            if (event.type() == EventuallyConsistentMapEvent.Type.PUT
+                    && mastershipService.isLocalMaster(deviceId)) {
+                listeners.forEach(listener -> listener.accept(deviceId));
+            }
+        }
+    }
+
+    /**
+     * Listener of leadership events, updating routes when this instance
+     * becomes leader, as changes might have been missed.
+     */
+    private class InternalLeadershipListener implements LeadershipEventListener {
+
+        @Override
+        public boolean isRelevant(LeadershipEvent event) {
+            return event.subject().topic().equals(LEADERSHIP_TOPIC)
+                    && (event.type() == LeadershipEvent.Type.LEADER_CHANGED
+                    || event.type() == LeadershipEvent.Type.LEADER_AND_CANDIDATES_CHANGED);
+        }
+
+        @Override
+        public void event(LeadershipEvent event) {
+            scheduleUpdate();
+        }
+    }
+
+    /**
+     * Listener of device events, updating routes when devices are added or
+     * removed.
+     */
+    private class InternalDeviceListener implements DeviceListener {
+
+        @Override
+        public boolean isRelevant(DeviceEvent event) {
+            return event.type() == DeviceEvent.Type.DEVICE_ADDED
+                    || event.type() == DeviceEvent.Type.DEVICE_REMOVED;
+        }
+
+        @Override
+        public void event(DeviceEvent event) {
+            scheduleUpdate();
+        }
+    }
+
+    /**
+     * Listener of netcfg events, updating routes when a FabricDeviceConfig
+     * changes.
+     */
+    private class InternalConfigListener implements NetworkConfigListener {
+
+        @Override
+        public boolean isRelevant(NetworkConfigEvent event) {
+            return event.configClass() == FabricDeviceConfig.class;
+        }
+
+        @Override
+        public void event(NetworkConfigEvent event) {
+            scheduleUpdate();
+        }
+    }
+
+    /**
+     * Listener of interface events, updating routes when interface subnets
+     * change.
+     */
+    private class InternalInterfaceListener implements InterfaceListener {
+
+        @Override
+        public void event(InterfaceEvent event) {
+            scheduleUpdate();
+        }
+    }
+}
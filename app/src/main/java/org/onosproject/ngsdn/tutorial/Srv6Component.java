@@ -15,18 +15,24 @@
  */
 package org.onosproject.ngsdn.tutorial;
 
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.onlab.packet.Ip6Address;
+import org.onlab.packet.Ip6Prefix;
+import org.onlab.util.ItemNotFoundException;
 import org.onosproject.core.ApplicationId;
 import org.onosproject.mastership.MastershipService;
-import org.onosproject.net.Device;
 import org.onosproject.net.DeviceId;
 import org.onosproject.net.config.NetworkConfigService;
 import org.onosproject.net.device.DeviceEvent;
 import org.onosproject.net.device.DeviceListener;
 import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.flow.FlowId;
 import org.onosproject.net.flow.FlowRule;
 import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleOperationsContext;
 import org.onosproject.net.flow.FlowRuleService;
 import org.onosproject.net.flow.criteria.PiCriterion;
 import org.onosproject.net.pi.model.PiActionId;
@@ -41,16 +47,27 @@ import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.onosproject.ngsdn.tutorial.BootstrapComponent.Stage;
 import org.onosproject.ngsdn.tutorial.common.FabricDeviceConfig;
+import org.onosproject.ngsdn.tutorial.common.InstrumentedExecutor.TaskType;
 import org.onosproject.ngsdn.tutorial.common.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedReader;
+import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.collect.Streams.stream;
-import static org.onosproject.ngsdn.tutorial.AppConstants.INITIAL_SETUP_DELAY;
+import static java.lang.String.format;
+import static org.onosproject.ngsdn.tutorial.AppConstants.SRV6_IMPORT_PROGRESS_INTERVAL;
+import static org.onosproject.ngsdn.tutorial.AppConstants.SRV6_MAX_SEGMENTS;
+import static org.onosproject.ngsdn.tutorial.AppConstants.SRV6_MIN_SEGMENTS;
 
 /**
  * Application which handles SRv6 segment routing.
@@ -66,6 +83,8 @@ public class Srv6Component {
 
     private static final Logger log = LoggerFactory.getLogger(Srv6Component.class);
 
+    private static final String METRICS_NAME = "Srv6Component";
+
     //--------------------------------------------------------------------------
     // ONOS CORE SERVICE BINDING
     //
@@ -88,6 +107,12 @@ public class Srv6Component {
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     private MainComponent mainComponent;
 
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private MetricsComponent metrics;
+
+    @Reference(cardinality = ReferenceCardinality.MANDATORY)
+    private BootstrapComponent bootstrap;
+
     private final DeviceListener deviceListener = new Srv6Component.InternalDeviceListener();
 
     private ApplicationId appId;
@@ -106,14 +131,17 @@ public class Srv6Component {
         // Register listeners to be informed about device and host events.
         deviceService.addListener(deviceListener);
 
-        // Schedule set up for all devices.
-        mainComponent.scheduleTask(this::setUpAllDevices, INITIAL_SETUP_DELAY);
+        // Schedule set up for all devices. No table is owned, as transit
+        // policies are inserted on demand and must survive a takeover.
+        bootstrap.register(Stage.SRV6, getClass().getSimpleName(),
+                           ImmutableSet.of(), this::setUpExistingDevice);
 
         log.info("Started");
     }
 
     @Deactivate
     protected void deactivate() {
+        bootstrap.unregister(getClass().getSimpleName());
         deviceService.removeListener(deviceListener);
 
         log.info("Stopped");
@@ -160,12 +188,13 @@ public class Srv6Component {
         FlowRule myStationRule = Utils.buildFlowRule(
                 deviceId, appId, tableId, match, action);
 
-        flowRuleService.applyFlowRules(myStationRule);
+        mainComponent.applyFlowRules(myStationRule);
     }
 
     /**
      * Insert a SRv6 transit insert policy that will inject an SRv6 header for
-     * packets destined to destIp.
+     * packets destined to destIp. The P4 action is picked based on the size of
+     * the segment list, i.e. srv6_t_insert_N for a list of N segments.
      *
      * @param deviceId     device ID
      * @param destIp       target IP address for the SRv6 policy
@@ -174,8 +203,28 @@ public class Srv6Component {
      */
     public void insertSrv6InsertRule(DeviceId deviceId, Ip6Address destIp, int prefixLength,
                                      List<Ip6Address> segmentList) {
-        if (segmentList.size() < 2 || segmentList.size() > 3) {
-            throw new RuntimeException("List of " + segmentList.size() + " segments is not supported");
+        final FlowRule rule = buildSrv6InsertRule(
+                deviceId, destIp, prefixLength, segmentList);
+
+        flowRuleService.applyFlowRules(rule);
+    }
+
+    /**
+     * Builds a flow rule for the SRv6 transit table implementing the given
+     * insert policy.
+     *
+     * @param deviceId     device ID
+     * @param destIp       target IP address for the SRv6 policy
+     * @param prefixLength prefix length for the target IP
+     * @param segmentList  list of SRv6 SIDs that make up the path
+     * @return flow rule object
+     */
+    private FlowRule buildSrv6InsertRule(DeviceId deviceId, Ip6Address destIp, int prefixLength,
+                                         List<Ip6Address> segmentList) {
+        if (segmentList.size() < SRV6_MIN_SEGMENTS || segmentList.size() > SRV6_MAX_SEGMENTS) {
+            throw new RuntimeException(format(
+                    "List of %d segments is not supported (must be between %d and %d)",
+                    segmentList.size(), SRV6_MIN_SEGMENTS, SRV6_MAX_SEGMENTS));
         }
 
         // *** TODO EXERCISE 6
@@ -205,10 +254,8 @@ public class Srv6Component {
                 .build();
         // ---- END SOLUTION ----
 
-        final FlowRule rule = Utils.buildFlowRule(
+        return Utils.buildFlowRule(
                 deviceId, appId, tableId, match, action);
-
-        flowRuleService.applyFlowRules(rule);
     }
 
     /**
@@ -233,6 +280,165 @@ public class Srv6Component {
 
     // ---------- END METHODS TO COMPLETE ----------------
 
+    /**
+     * Imports SRv6 transit insert policies from the given reader, one policy
+     * per line in the following format:
+     * <pre>
+     * &lt;device ID&gt; &lt;IPv6 prefix&gt; &lt;SID 1&gt; ... &lt;SID N&gt;
+     * </pre>
+     * The prefix can be given without length, in which case /128 is assumed.
+     * Empty lines and lines starting with '#' are ignored.
+     * <p>
+     * The input is consumed line by line and never loaded entirely in memory.
+     * Valid policies are accumulated in per-device batches which are written
+     * as a single flow rule operation as soon as they reach the given size.
+     * Invalid lines are recorded in the returned report and skipped, as are
+     * policies for a device and prefix already given earlier in the input,
+     * which would otherwise overwrite each other. The report completes when
+     * all submitted batches have been confirmed (or failed) by the flow rule
+     * subsystem.
+     *
+     * @param reader    policy source
+     * @param batchSize maximum number of flow rules per device batch
+     * @param progress  called with the report every 10000 accepted policies
+     * @return import report
+     * @throws IOException if the policy source cannot be read
+     */
+    public Srv6PolicyImportReport importSrv6Policies(BufferedReader reader, int batchSize,
+                                                     Consumer<Srv6PolicyImportReport> progress)
+            throws IOException {
+        checkArgument(batchSize > 0, "Batch size must be greater than 0");
+
+        final Srv6PolicyImportReport report = new Srv6PolicyImportReport();
+        final Map<DeviceId, PolicyBatch> batches = Maps.newHashMap();
+        final Map<String, DeviceId> knownDevices = Maps.newHashMap();
+        // The flow ID identifies the device and prefix of a policy.
+        final Set<FlowId> seenPolicies = Sets.newHashSet();
+
+        long lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            report.lineRead();
+
+            final FlowRule rule;
+            try {
+                rule = parseSrv6Policy(line, knownDevices);
+            } catch (RuntimeException e) {
+                report.rejected(lineNumber, e.getMessage());
+                continue;
+            }
+            if (!seenPolicies.add(rule.id())) {
+                report.duplicate(lineNumber, format(
+                        "duplicate policy for %s on %s", line.split("\\s+")[1],
+                        rule.deviceId()));
+                continue;
+            }
+
+            final PolicyBatch batch = batches.computeIfAbsent(
+                    rule.deviceId(), d -> new PolicyBatch());
+            batch.add(rule);
+            if (batch.size == batchSize) {
+                submitBatch(rule.deviceId(), batch, report);
+                batches.remove(rule.deviceId());
+            }
+
+            if (report.policyAccepted() % SRV6_IMPORT_PROGRESS_INTERVAL == 0) {
+                log.info("SRv6 import in progress: {}", report);
+                progress.accept(report);
+            }
+        }
+
+        // Flush partially filled batches.
+        batches.forEach((deviceId, batch) -> submitBatch(deviceId, batch, report));
+        report.readCompleted();
+
+        log.info("SRv6 import read completed: {}", report);
+        return report;
+    }
+
+    /**
+     * Parses the given SRv6 policy line into a flow rule for the SRv6 transit
+     * table.
+     *
+     * @param line         policy line
+     * @param knownDevices cache of device IDs already validated
+     * @return flow rule object
+     * @throws RuntimeException if the line is not a valid policy
+     */
+    private FlowRule parseSrv6Policy(String line, Map<String, DeviceId> knownDevices) {
+        final String[] tokens = line.split("\\s+");
+        if (tokens.length < 2 + SRV6_MIN_SEGMENTS) {
+            throw new IllegalArgumentException(format(
+                    "Expected '<device ID> <IPv6 prefix> <SID>...' with at least %d SIDs",
+                    SRV6_MIN_SEGMENTS));
+        }
+
+        final DeviceId deviceId = knownDevices.computeIfAbsent(tokens[0], uri -> {
+            final DeviceId id = DeviceId.deviceId(uri);
+            return deviceService.getDevice(id) != null ? id : null;
+        });
+        if (deviceId == null) {
+            throw new ItemNotFoundException("Device " + tokens[0] + " is not found");
+        }
+
+        final Ip6Prefix prefix = tokens[1].contains("/")
+                ? Ip6Prefix.valueOf(tokens[1])
+                : Ip6Prefix.valueOf(Ip6Address.valueOf(tokens[1]), 128);
+
+        final List<Ip6Address> segmentList = Lists.newArrayListWithCapacity(tokens.length - 2);
+        for (int i = 2; i < tokens.length; i++) {
+            segmentList.add(Ip6Address.valueOf(tokens[i]));
+        }
+
+        return buildSrv6InsertRule(
+                deviceId, prefix.address(), prefix.prefixLength(), segmentList);
+    }
+
+    /**
+     * Writes the given batch of SRv6 policies to the given device as a single
+     * flow rule operation, updating the report when the device confirms it.
+     *
+     * @param deviceId device ID
+     * @param batch    batch of flow rules
+     * @param report   import report
+     */
+    private void submitBatch(DeviceId deviceId, PolicyBatch batch,
+                             Srv6PolicyImportReport report) {
+        final int size = batch.size;
+        report.batchSubmitted(size);
+        flowRuleService.apply(batch.ops.build(new FlowRuleOperationsContext() {
+            @Override
+            public void onSuccess(FlowRuleOperations ops) {
+                report.batchInstalled(size);
+            }
+
+            @Override
+            public void onError(FlowRuleOperations ops) {
+                log.warn("Unable to install batch of {} SRv6 policies on {}",
+                         size, deviceId);
+                report.batchFailed(deviceId, size);
+            }
+        }));
+    }
+
+    /**
+     * Flow rule operations accumulated for one device during an import.
+     */
+    private static final class PolicyBatch {
+        private final FlowRuleOperations.Builder ops = FlowRuleOperations.builder();
+        private int size;
+
+        private void add(FlowRule rule) {
+            ops.add(rule);
+            size++;
+        }
+    }
+
     //--------------------------------------------------------------------------
     // EVENT LISTENERS
     //
@@ -266,10 +472,11 @@ public class Srv6Component {
                 // A P4Runtime device is considered available in ONOS when there
                 // is a StreamChannel session open and the pipeline
                 // configuration has been set.
-                mainComponent.getExecutorService().execute(() -> {
+                mainComponent.execute(TaskType.DEVICE, () -> {
                     log.info("{} event! deviceId={}", event.type(), deviceId);
 
-                    setUpMySidTable(event.subject().id());
+                    metrics.time(METRICS_NAME, "setUpMySidTable", deviceId,
+                                 () -> setUpMySidTable(deviceId));
                 });
             }
         }
@@ -281,18 +488,16 @@ public class Srv6Component {
     //--------------------------------------------------------------------------
 
     /**
-     * Sets up SRv6 My SID table on all devices known by ONOS and for which this
-     * ONOS node instance is currently master.
+     * Sets up SRv6 My SID table on the given device, known by ONOS when the
+     * component is activated and for which this ONOS node instance is
+     * currently master.
+     *
+     * @param deviceId the device ID
      */
-    private synchronized void setUpAllDevices() {
-        // Set up host routes
-        stream(deviceService.getAvailableDevices())
-                .map(Device::id)
-                .filter(mastershipService::isLocalMaster)
-                .forEach(deviceId -> {
-                    log.info("*** SRV6 - Starting initial set up for {}...", deviceId);
-                    this.setUpMySidTable(deviceId);
-                });
+    private void setUpExistingDevice(DeviceId deviceId) {
+        log.info("*** SRV6 - Starting initial set up for {}...", deviceId);
+        metrics.time(METRICS_NAME, "setUpMySidTable", deviceId,
+                     () -> setUpMySidTable(deviceId));
     }
 
     /**
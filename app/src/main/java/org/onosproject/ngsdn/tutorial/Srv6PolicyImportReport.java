@@ -0,0 +1,213 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.ngsdn.tutorial;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.onosproject.net.DeviceId;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static java.lang.String.format;
+
+/**
+ * Progress and outcome of a bulk import of SRv6 policies, as returned by
+ * {@link Srv6Component#importSrv6Policies}.
+ */
+public final class Srv6PolicyImportReport {
+
+    // Maximum number of error messages retained, to bound memory usage when
+    // importing large files with many invalid lines.
+    private static final int MAX_ERRORS = 100;
+
+    private final AtomicLong lines = new AtomicLong();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong installed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicInteger pendingBatches = new AtomicInteger();
+    private final List<String> errors = Lists.newArrayList();
+    private final CompletableFuture<Srv6PolicyImportReport> completion =
+            new CompletableFuture<>();
+    private volatile boolean readCompleted;
+
+    Srv6PolicyImportReport() {
+    }
+
+    void lineRead() {
+        lines.incrementAndGet();
+    }
+
+    long policyAccepted() {
+        return accepted.incrementAndGet();
+    }
+
+    void rejected(long lineNumber, String reason) {
+        rejected.incrementAndGet();
+        addError(format("line %d: %s", lineNumber, reason));
+    }
+
+    void duplicate(long lineNumber, String reason) {
+        duplicates.incrementAndGet();
+        addError(format("line %d: %s", lineNumber, reason));
+    }
+
+    void batchSubmitted(int size) {
+        submitted.addAndGet(size);
+        pendingBatches.incrementAndGet();
+    }
+
+    void batchInstalled(int size) {
+        installed.addAndGet(size);
+        batchDone();
+    }
+
+    void batchFailed(DeviceId deviceId, int size) {
+        failed.addAndGet(size);
+        addError(format("batch of %d policies failed on %s", size, deviceId));
+        batchDone();
+    }
+
+    void readCompleted() {
+        readCompleted = true;
+        checkCompleted();
+    }
+
+    private void batchDone() {
+        pendingBatches.decrementAndGet();
+        checkCompleted();
+    }
+
+    private void checkCompleted() {
+        if (readCompleted && pendingBatches.get() == 0) {
+            completion.complete(this);
+        }
+    }
+
+    private void addError(String error) {
+        synchronized (errors) {
+            if (errors.size() < MAX_ERRORS) {
+                errors.add(error);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of non-empty, non-comment lines read so far.
+     *
+     * @return number of lines
+     */
+    public long lines() {
+        return lines.get();
+    }
+
+    /**
+     * Returns the number of valid policies read so far.
+     *
+     * @return number of policies
+     */
+    public long accepted() {
+        return accepted.get();
+    }
+
+    /**
+     * Returns the number of invalid lines skipped so far.
+     *
+     * @return number of lines
+     */
+    public long rejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Returns the number of valid policies skipped so far because an earlier
+     * policy was given for the same device and prefix.
+     *
+     * @return number of policies
+     */
+    public long duplicates() {
+        return duplicates.get();
+    }
+
+    /**
+     * Returns the number of policies submitted to the flow rule subsystem.
+     *
+     * @return number of policies
+     */
+    public long submitted() {
+        return submitted.get();
+    }
+
+    /**
+     * Returns the number of policies confirmed as installed.
+     *
+     * @return number of policies
+     */
+    public long installed() {
+        return installed.get();
+    }
+
+    /**
+     * Returns the number of policies that failed to be installed.
+     *
+     * @return number of policies
+     */
+    public long failed() {
+        return failed.get();
+    }
+
+    /**
+     * Returns the first error messages recorded during the import, up to a
+     * maximum of 100.
+     *
+     * @return list of error messages
+     */
+    public List<String> errors() {
+        synchronized (errors) {
+            return ImmutableList.copyOf(errors);
+        }
+    }
+
+    /**
+     * Returns a future that is completed when the whole input has been read and
+     * all submitted batches have been either installed or failed.
+     *
+     * @return completable future
+     */
+    public CompletableFuture<Srv6PolicyImportReport> completion() {
+        return completion;
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("lines", lines())
+                .add("accepted", accepted())
+                .add("rejected", rejected())
+                .add("duplicates", duplicates())
+                .add("submitted", submitted())
+                .add("installed", installed())
+                .add("failed", failed())
+                .toString();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.ngsdn.tutorial.cli;
+
+import org.apache.karaf.shell.api.action.Argument;
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.Completion;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+import org.onosproject.cli.AbstractShellCommand;
+import org.onosproject.cli.net.DeviceIdCompleter;
+import org.onosproject.net.DeviceId;
+import org.onosproject.ngsdn.tutorial.CounterCollectorComponent;
+import org.onosproject.ngsdn.tutorial.CounterCollectorComponent.EntryCounters;
+import org.onosproject.ngsdn.tutorial.common.RateRingBuffer;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Direct Counters Dump Command
+ */
+@Service
+@Command(scope = "onos", name = "ngsdn-counters",
+         description = "Dumps packet and byte rates of L2, routing and ACL table entries")
+public class CountersCommand extends AbstractShellCommand {
+
+    @Argument(index = 0, name = "uri", description = "Device ID",
+              required = false, multiValued = false)
+    @Completion(DeviceIdCompleter.class)
+    String uri = null;
+
+    @Override
+    protected void doExecute() {
+        CounterCollectorComponent app = get(CounterCollectorComponent.class);
+
+        Collection<DeviceId> deviceIds = uri == null
+                ? app.getDevices() : Collections.singleton(DeviceId.deviceId(uri));
+        deviceIds.stream().sorted(Comparator.comparing(DeviceId::toString))
+                .forEach(deviceId -> printDevice(deviceId, app));
+    }
+
+    private void printDevice(DeviceId deviceId, CounterCollectorComponent app) {
+        print("deviceId=%s", deviceId);
+        app.getCounters(deviceId).values().stream()
+                .sorted(Comparator.comparing((EntryCounters c) -> c.rule().table().toString())
+                                .thenComparing(c -> c.rule().id().value()))
+                .forEach(c -> {
+                    final RateRingBuffer rates = c.rates();
+                    final boolean empty = rates.size() == 0;
+                    print("    id=%s, table=%s, packets=%d, bytes=%d, " +
+                                  "pps=%.1f, bps=%.1f, avgPps=%.1f, avgBps=%.1f, samples=%d, " +
+                                  "selector=%s",
+                          c.rule().id(), c.rule().table(), c.packets(), c.bytes(),
+                          empty ? 0 : rates.packetRate(0),
+                          empty ? 0 : rates.byteRate(0) * Byte.SIZE,
+                          rates.meanPacketRate(), rates.meanByteRate() * Byte.SIZE,
+                          rates.size(), c.rule().selector().criteria());
+                });
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.ngsdn.tutorial.cli;
+
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.Option;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+import org.onosproject.cli.AbstractShellCommand;
+import org.onosproject.ngsdn.tutorial.MainComponent;
+import org.onosproject.ngsdn.tutorial.common.LatencyHistogram;
+
+/**
+ * Executor Stats Command
+ */
+@Service
+@Command(scope = "onos", name = "ngsdn-executor-stats",
+         description = "Dumps queue length, wait and run times of app tasks by type")
+public class ExecutorStatsCommand extends AbstractShellCommand {
+
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    @Option(name = "-r", aliases = "--reset",
+            description = "Reset wait and run times after dumping them",
+            required = false, multiValued = false)
+    boolean reset = false;
+
+    @Override
+    protected void doExecute() {
+        MainComponent app = get(MainComponent.class);
+
+        print("queued=%d", app.getExecutorQueueLength());
+        print("%-14s %7s %10s %12s %12s %12s %12s %12s %12s",
+              "type", "queued", "completed",
+              "wait-p50(ms)", "wait-p99(ms)", "wait-max(ms)",
+              "run-p50(ms)", "run-p99(ms)", "run-max(ms)");
+        app.getExecutorStats().forEach((type, stats) -> {
+            final LatencyHistogram wait = stats.waitTime();
+            final LatencyHistogram run = stats.runTime();
+            print("%-14s %7d %10d %12.3f %12.3f %12.3f %12.3f %12.3f %12.3f",
+                  type, stats.queued(), stats.completed(),
+                  wait.percentile(50) / NANOS_PER_MILLI,
+                  wait.percentile(99) / NANOS_PER_MILLI,
+                  wait.max() / NANOS_PER_MILLI,
+                  run.percentile(50) / NANOS_PER_MILLI,
+                  run.percentile(99) / NANOS_PER_MILLI,
+                  run.max() / NANOS_PER_MILLI);
+        });
+
+        if (reset) {
+            app.resetExecutorStats();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.ngsdn.tutorial.cli;
+
+import org.apache.karaf.shell.api.action.Argument;
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.Option;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+import org.onosproject.cli.AbstractShellCommand;
+import org.onosproject.ngsdn.tutorial.FlightRecorderComponent;
+import org.onosproject.ngsdn.tutorial.common.FlightRecorder.Kind;
+import org.onosproject.ngsdn.tutorial.common.FlightRecorder.Record;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Flight Recorder Dump Command
+ */
+@Service
+@Command(scope = "onos", name = "ngsdn-flight-recorder",
+         description = "Dumps the most recent app events, tasks and writes")
+public class FlightRecorderCommand extends AbstractShellCommand {
+
+    @Argument(index = 0, name = "max",
+              description = "Maximum number of records to dump (default: 100)",
+              required = false, multiValued = false)
+    int max = 100;
+
+    @Option(name = "-k", aliases = "--kind",
+            description = "Only dump records of this kind " +
+                    "(EVENT, TASK_START, TASK_END, FLOW, GROUP)",
+            required = false, multiValued = false)
+    String kind = null;
+
+    @Override
+    protected void doExecute() {
+        FlightRecorderComponent app = get(FlightRecorderComponent.class);
+
+        final Kind kindFilter;
+        try {
+            kindFilter = kind == null ? null : Kind.valueOf(kind.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            print("Invalid kind \"%s\"", kind);
+            return;
+        }
+
+        // When filtering, look at all records to find up to max matching ones.
+        final List<Record> records = app.snapshot(kindFilter == null ? max : Integer.MAX_VALUE)
+                .stream()
+                .filter(r -> kindFilter == null || r.kind() == kindFilter)
+                .collect(Collectors.toList());
+        records.subList(Math.max(0, records.size() - max), records.size())
+                .forEach(r -> print("%s", r));
+        print("recorded=%d", app.recorded());
+    }
+}
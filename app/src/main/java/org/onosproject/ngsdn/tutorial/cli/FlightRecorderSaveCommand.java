@@ -0,0 +1,55 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.ngsdn.tutorial.cli;
+
+import org.apache.karaf.shell.api.action.Argument;
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.Completion;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+import org.apache.karaf.shell.support.completers.FileCompleter;
+import org.onosproject.cli.AbstractShellCommand;
+import org.onosproject.ngsdn.tutorial.FlightRecorderComponent;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Flight Recorder Save Command
+ */
+@Service
+@Command(scope = "onos", name = "ngsdn-flight-recorder-save",
+         description = "Saves all app events, tasks and writes in the flight recorder to a file")
+public class FlightRecorderSaveCommand extends AbstractShellCommand {
+
+    @Argument(index = 0, name = "file", description = "Path of the file to write",
+              required = true, multiValued = false)
+    @Completion(FileCompleter.class)
+    String file = null;
+
+    @Override
+    protected void doExecute() {
+        FlightRecorderComponent app = get(FlightRecorderComponent.class);
+
+        final Path path = Paths.get(file).toAbsolutePath();
+        try {
+            final int count = app.saveTo(path);
+            print("Saved %d records to %s", count, path);
+        } catch (IOException e) {
+            print("Unable to write %s: %s", path, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.ngsdn.tutorial.cli;
+
+import org.apache.karaf.shell.api.action.Argument;
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.Completion;
+import org.apache.karaf.shell.api.action.Option;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+import org.onosproject.cli.AbstractShellCommand;
+import org.onosproject.cli.net.DeviceIdCompleter;
+import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.device.DeviceService;
+import org.onosproject.ngsdn.tutorial.GtpSession;
+import org.onosproject.ngsdn.tutorial.GtpSessionComponent;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.concurrent.CompletionException;
+
+import static com.google.common.collect.Streams.stream;
+
+/**
+ * GTP Sessions Dump Command
+ */
+@Service
+@Command(scope = "onos", name = "ngsdn-gtp-sessions",
+         description = "Dumps (or recovers or clears) the GTP-U sessions " +
+                 "installed by device")
+public class GtpSessionsCommand extends AbstractShellCommand {
+
+    @Argument(index = 0, name = "uri", description = "Device ID",
+              required = false, multiValued = false)
+    @Completion(DeviceIdCompleter.class)
+    String uri = null;
+
+    @Option(name = "-r", aliases = "--recover",
+            description = "Rebuild the sessions from the rules installed on " +
+                    "the device before dumping them, e.g. after a restart",
+            required = false, multiValued = false)
+    boolean recover = false;
+
+    @Option(name = "-c", aliases = "--clear",
+            description = "Remove all sessions installed on the device, " +
+                    "including the ones not recovered yet",
+            required = false, multiValued = false)
+    boolean clear = false;
+
+    @Override
+    protected void doExecute() {
+        GtpSessionComponent app = get(GtpSessionComponent.class);
+
+        stream(get(DeviceService.class).getDevices())
+                .map(Device::id)
+                .filter(deviceId -> uri == null || deviceId.equals(DeviceId.deviceId(uri)))
+                .sorted(Comparator.comparing(DeviceId::toString))
+                .forEach(deviceId -> {
+                    if (clear) {
+                        try {
+                            print("%s: removed %d sessions", deviceId,
+                                  app.clearSessions(deviceId).join());
+                        } catch (CompletionException e) {
+                            print("%s: %s", deviceId, e.getCause().getMessage());
+                        }
+                        return;
+                    }
+                    if (recover) {
+                        app.recoverSessions(deviceId);
+                    }
+                    Collection<GtpSession> sessions = app.getSessions(deviceId);
+                    print("%s: %d sessions", deviceId, sessions.size());
+                    sessions.stream()
+                            .sorted(Comparator.comparing(GtpSession::ueAddr))
+                            .forEach(s -> print("    ue=%s teid=0x%08x enb=%s sgw=%s",
+                                                s.ueAddr(), s.teid(),
+                                                s.enbAddr(), s.sgwAddr()));
+                });
+    }
+}
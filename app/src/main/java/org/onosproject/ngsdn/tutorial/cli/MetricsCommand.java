@@ -0,0 +1,76 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.ngsdn.tutorial.cli;
+
+import org.apache.karaf.shell.api.action.Argument;
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.Option;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+import org.onosproject.cli.AbstractShellCommand;
+import org.onosproject.ngsdn.tutorial.MetricsComponent;
+import org.onosproject.ngsdn.tutorial.MetricsComponent.MetricKey;
+import org.onosproject.ngsdn.tutorial.common.LatencyHistogram;
+
+import java.util.Comparator;
+import java.util.Map;
+
+/**
+ * Metrics Dump Command
+ */
+@Service
+@Command(scope = "onos", name = "ngsdn-metrics",
+         description = "Dumps duration percentiles of app tasks and flow rule writes")
+public class MetricsCommand extends AbstractShellCommand {
+
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    @Argument(index = 0, name = "filter",
+              description = "Only show metrics whose name contains this string",
+              required = false, multiValued = false)
+    String filter = null;
+
+    @Option(name = "-r", aliases = "--reset",
+            description = "Reset all metrics after dumping them",
+            required = false, multiValued = false)
+    boolean reset = false;
+
+    @Override
+    protected void doExecute() {
+        MetricsComponent app = get(MetricsComponent.class);
+
+        print("%-50s %-22s %8s %10s %10s %10s %10s %10s",
+              "name", "device", "count", "mean(ms)", "p50(ms)", "p90(ms)", "p99(ms)", "max(ms)");
+        app.histograms().entrySet().stream()
+                .filter(e -> filter == null || e.getKey().name().contains(filter))
+                .sorted(Comparator.comparing((Map.Entry<MetricKey, LatencyHistogram> e) ->
+                                                     e.getKey().name())
+                                .thenComparing(e -> String.valueOf(e.getKey().deviceId())))
+                .forEach(e -> {
+                    final LatencyHistogram h = e.getValue();
+                    print("%-50s %-22s %8d %10.3f %10.3f %10.3f %10.3f %10.3f",
+                          e.getKey().name(), e.getKey().deviceId(), h.count(),
+                          h.mean() / NANOS_PER_MILLI,
+                          h.percentile(50) / NANOS_PER_MILLI,
+                          h.percentile(90) / NANOS_PER_MILLI,
+                          h.percentile(99) / NANOS_PER_MILLI,
+                          h.max() / NANOS_PER_MILLI);
+                });
+
+        if (reset) {
+            app.reset();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.ngsdn.tutorial.cli;
+
+import com.google.common.collect.ImmutableMap;
+import org.apache.karaf.shell.api.action.Argument;
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.Completion;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+import org.onosproject.cli.AbstractShellCommand;
+import org.onosproject.cli.net.DeviceIdCompleter;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.CoreService;
+import org.onosproject.net.Device;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.device.DeviceService;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowRuleService;
+import org.onosproject.net.pi.model.PiTableId;
+import org.onosproject.ngsdn.tutorial.MetricsComponent;
+import org.onosproject.ngsdn.tutorial.common.LatencyHistogram;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.google.common.collect.Streams.stream;
+import static org.onosproject.ngsdn.tutorial.AppConstants.APP_NAME;
+import static org.onosproject.ngsdn.tutorial.MetricsComponent.RULE_ADD_METRIC_PREFIX;
+
+/**
+ * Routes Dump Command
+ */
+@Service
+@Command(scope = "onos", name = "ngsdn-routes",
+         description = "Dumps IPv4 and IPv6 route counts and installation rates by device")
+public class RoutesCommand extends AbstractShellCommand {
+
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    // Stack name -> routing table.
+    private static final Map<String, PiTableId> ROUTING_TABLES = ImmutableMap.of(
+            "ipv4", PiTableId.of("IngressPipeImpl.routing_v4_table"),
+            "ipv6", PiTableId.of("IngressPipeImpl.routing_v6_table"));
+
+    @Argument(index = 0, name = "uri", description = "Device ID",
+              required = false, multiValued = false)
+    @Completion(DeviceIdCompleter.class)
+    String uri = null;
+
+    @Override
+    protected void doExecute() {
+        ApplicationId appId = get(CoreService.class).getAppId(APP_NAME);
+        FlowRuleService flowRuleService = get(FlowRuleService.class);
+        MetricsComponent metrics = get(MetricsComponent.class);
+
+        Collection<DeviceId> deviceIds = uri == null
+                ? getDeviceIds() : Collections.singleton(DeviceId.deviceId(uri));
+        double elapsedSeconds = Math.max(1,
+                TimeUnit.NANOSECONDS.toSeconds(metrics.elapsedNanos()));
+
+        print("%-22s %-5s %8s %8s %10s %10s %12s %12s",
+              "device", "stack", "routes", "pending", "installed", "rate(/s)",
+              "add-p50(ms)", "add-p99(ms)");
+        deviceIds.stream().sorted(Comparator.comparing(DeviceId::toString))
+                .forEach(deviceId -> ROUTING_TABLES.forEach((stack, tableId) -> {
+                    int routes = 0;
+                    int pending = 0;
+                    for (FlowEntry entry : flowRuleService.getFlowEntries(deviceId)) {
+                        if (entry.appId() != appId.id() || !entry.table().equals(tableId)) {
+                            continue;
+                        }
+                        if (entry.state() == FlowEntry.FlowEntryState.ADDED) {
+                            routes++;
+                        } else {
+                            pending++;
+                        }
+                    }
+                    // Routes confirmed since the metrics were last reset.
+                    LatencyHistogram added = ruleAddHistogram(metrics, tableId, deviceId);
+                    print("%-22s %-5s %8d %8d %10d %10.1f %12.3f %12.3f",
+                          deviceId, stack, routes, pending, added.count(),
+                          added.count() / elapsedSeconds,
+                          added.percentile(50) / NANOS_PER_MILLI,
+                          added.percentile(99) / NANOS_PER_MILLI);
+                }));
+    }
+
+    private Collection<DeviceId> getDeviceIds() {
+        return stream(get(DeviceService.class).getDevices())
+                .map(Device::id)
+                .collect(Collectors.toList());
+    }
+
+    private LatencyHistogram ruleAddHistogram(MetricsComponent metrics,
+                                              PiTableId tableId, DeviceId deviceId) {
+        // Look up without creating it, to not add empty metrics.
+        final String name = RULE_ADD_METRIC_PREFIX + tableId;
+        return metrics.histograms().entrySet().stream()
+                .filter(e -> e.getKey().name().equals(name)
+                        && deviceId.equals(e.getKey().deviceId()))
+                .map(Map.Entry::getValue)
+                .findFirst()
+                .orElseGet(LatencyHistogram::new);
+    }
+}
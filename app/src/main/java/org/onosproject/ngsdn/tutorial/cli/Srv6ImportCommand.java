@@ -0,0 +1,111 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onosproject.ngsdn.tutorial.cli;
+
+import org.apache.karaf.shell.api.action.Argument;
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.Completion;
+import org.apache.karaf.shell.api.action.Option;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+import org.apache.karaf.shell.support.completers.FileCompleter;
+import org.onosproject.cli.AbstractShellCommand;
+import org.onosproject.ngsdn.tutorial.Srv6Component;
+import org.onosproject.ngsdn.tutorial.Srv6PolicyImportReport;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.onosproject.ngsdn.tutorial.AppConstants.DEFAULT_SRV6_IMPORT_BATCH_SIZE;
+
+/**
+ * SRv6 Transit Bulk Import Command
+ */
+@Service
+@Command(scope = "onos", name = "srv6-import",
+         description = "Imports t_insert rules into the SRv6 Transit table from a file " +
+                 "with one '<device ID> <IPv6 prefix> <SID>...' policy per line")
+public class Srv6ImportCommand extends AbstractShellCommand {
+
+    // Seconds between two progress lines while waiting for devices.
+    private static final int PROGRESS_INTERVAL = 5;
+
+    @Argument(index = 0, name = "file", description = "Path of the policy file",
+              required = true, multiValued = false)
+    @Completion(FileCompleter.class)
+    String file = null;
+
+    @Option(name = "-b", aliases = "--batch-size",
+            description = "Maximum number of rules written to a device at once",
+            required = false, multiValued = false)
+    int batchSize = DEFAULT_SRV6_IMPORT_BATCH_SIZE;
+
+    @Option(name = "-t", aliases = "--timeout",
+            description = "Seconds to wait for devices to confirm the rules",
+            required = false, multiValued = false)
+    int timeout = 60;
+
+    @Override
+    protected void doExecute() {
+        Srv6Component app = get(Srv6Component.class);
+
+        final Srv6PolicyImportReport report;
+        try (BufferedReader reader = Files.newBufferedReader(
+                Paths.get(file), StandardCharsets.UTF_8)) {
+            report = app.importSrv6Policies(reader, batchSize, r -> print(
+                    "Read %d policies, %d installed so far...",
+                    r.accepted(), r.installed()));
+        } catch (IOException e) {
+            print("Unable to read \"%s\": %s", file, e.getMessage());
+            return;
+        }
+
+        print("Read %d policies: %d accepted, %d rejected, %d duplicates",
+              report.lines(), report.accepted(), report.rejected(),
+              report.duplicates());
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout);
+        while (!report.completion().isDone()) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                print("Timed out waiting for devices, installation is still in progress");
+                break;
+            }
+            try {
+                report.completion().get(Math.min(remaining, TimeUnit.SECONDS.toNanos(
+                        PROGRESS_INTERVAL)), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                print("Installed %d of %d submitted policies...",
+                      report.installed(), report.submitted());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                print("Import failed: %s", e.getMessage());
+                break;
+            }
+        }
+
+        print("Installed %d of %d submitted policies (%d failed)",
+              report.installed(), report.submitted(), report.failed());
+        report.errors().forEach(error -> print("  %s", error));
+    }
+}
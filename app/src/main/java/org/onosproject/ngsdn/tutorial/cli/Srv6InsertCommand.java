@@ -45,7 +45,8 @@ public class Srv6InsertCommand extends AbstractShellCommand {
     String uri = null;
 
     @Argument(index = 1, name = "segments",
-            description = "SRv6 Segments (space separated list); last segment is target IP address",
+            description = "SRv6 Segments (space separated list of 2 to 8 SIDs); " +
+                    "last segment is target IP address",
             required = false, multiValued = true)
     @Completion(Srv6SidCompleter.class)
     List<String> segments = null;
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.ngsdn.tutorial.common;
+
+import com.google.common.collect.Lists;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Fixed-capacity, lock-free ring buffer of records, meant to keep the recent
+ * history of what the app did for post-mortem analysis. Recording costs an
+ * atomic increment, an array store and a small allocation; subjects are kept
+ * by reference and converted to string only when the records are dumped.
+ * When full, the oldest records are overwritten.
+ */
+public final class FlightRecorder {
+
+    /**
+     * Kind of record.
+     */
+    public enum Kind {
+        /**
+         * Device, host or link event.
+         */
+        EVENT,
+        /**
+         * Start of a task on the app executor.
+         */
+        TASK_START,
+        /**
+         * End of a task on the app executor.
+         */
+        TASK_END,
+        /**
+         * Flow rule write or flow rule event.
+         */
+        FLOW,
+        /**
+         * Group write or group event.
+         */
+        GROUP
+    }
+
+    private final AtomicReferenceArray<Record> records;
+    private final int mask;
+    private final AtomicLong nextSeq = new AtomicLong();
+
+    /**
+     * Creates a new flight recorder with the given capacity.
+     *
+     * @param capacity number of records, must be a power of two
+     */
+    public FlightRecorder(int capacity) {
+        checkArgument(capacity > 0 && Integer.bitCount(capacity) == 1,
+                      "capacity must be a power of two");
+        this.records = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Records the given item.
+     *
+     * @param kind    record kind
+     * @param type    type, e.g. event type or task type
+     * @param subject subject, e.g. event subject, or null
+     * @return sequence number of the record
+     */
+    public long record(Kind kind, Object type, Object subject) {
+        final long seq = nextSeq.getAndIncrement();
+        records.set((int) (seq & mask), new Record(
+                seq, System.currentTimeMillis(), Thread.currentThread().getName(),
+                kind, type, subject));
+        return seq;
+    }
+
+    /**
+     * Returns the maximum number of records held.
+     *
+     * @return capacity
+     */
+    public int capacity() {
+        return records.length();
+    }
+
+    /**
+     * Returns the total number of records recorded so far, including the
+     * overwritten ones.
+     *
+     * @return number of records
+     */
+    public long recorded() {
+        return nextSeq.get();
+    }
+
+    /**
+     * Returns the most recent records, from the oldest to the most recent one.
+     * Records being overwritten concurrently are skipped.
+     *
+     * @param max maximum number of records to return
+     * @return list of records
+     */
+    public List<Record> snapshot(int max) {
+        final long end = nextSeq.get();
+        final long start = Math.max(0, end - Math.min(max, records.length()));
+        final List<Record> result = Lists.newArrayListWithCapacity((int) (end - start));
+        for (long seq = start; seq < end; seq++) {
+            final Record record = records.get((int) (seq & mask));
+            // Null if not yet written, different seq if overwritten.
+            if (record != null && record.seq() == seq) {
+                result.add(record);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns all records, from the oldest to the most recent one.
+     *
+     * @return list of records
+     */
+    public List<Record> snapshot() {
+        return snapshot(records.length());
+    }
+
+    /**
+     * Recorded item.
+     */
+    public static final class Record {
+
+        private final long seq;
+        private final long timestamp;
+        private final String thread;
+        private final Kind kind;
+        private final Object type;
+        private final Object subject;
+
+        private Record(long seq, long timestamp, String thread,
+                       Kind kind, Object type, Object subject) {
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.thread = thread;
+            this.kind = kind;
+            this.type = type;
+            this.subject = subject;
+        }
+
+        /**
+         * Returns the sequence number of this record.
+         *
+         * @return sequence number
+         */
+        public long seq() {
+            return seq;
+        }
+
+        /**
+         * Returns the time of this record, in milliseconds since the epoch.
+         *
+         * @return timestamp
+         */
+        public long timestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Returns the kind of this record.
+         *
+         * @return kind
+         */
+        public Kind kind() {
+            return kind;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d %s [%s] %s %s %s", seq,
+                                 Instant.ofEpochMilli(timestamp), thread,
+                                 kind, type, subject == null ? "" : subject);
+        }
+    }
+}
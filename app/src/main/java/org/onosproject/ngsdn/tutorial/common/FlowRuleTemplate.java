@@ -0,0 +1,83 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.ngsdn.tutorial.common;
+
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.DefaultFlowRule;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flow.criteria.PiCriterion;
+import org.onosproject.net.pi.model.PiTableId;
+import org.onosproject.net.pi.runtime.PiTableAction;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static org.onosproject.ngsdn.tutorial.AppConstants.DEFAULT_FLOW_RULE_PRIORITY;
+
+/**
+ * Immutable template of a flow rule that is the same on all devices, e.g. the
+ * L2 multicast rules. Table ID, selector and treatment are built once when the
+ * template is created and shared by all flow rules bound from it, such that
+ * setting up many devices only allocates the flow rules themselves.
+ */
+public final class FlowRuleTemplate {
+
+    private final PiTableId tableId;
+    private final TrafficSelector selector;
+    private final TrafficTreatment treatment;
+
+    FlowRuleTemplate(PiTableId tableId, PiCriterion piCriterion,
+                     PiTableAction piAction) {
+        this.tableId = tableId;
+        this.selector = DefaultTrafficSelector.builder()
+                .matchPi(piCriterion).build();
+        this.treatment = DefaultTrafficTreatment.builder()
+                .piTableAction(piAction).build();
+    }
+
+    /**
+     * Returns a flow rule for the given device and application, built from
+     * this template.
+     *
+     * @param deviceId device ID
+     * @param appId    application ID
+     * @return flow rule
+     */
+    public FlowRule bind(DeviceId deviceId, ApplicationId appId) {
+        return DefaultFlowRule.builder()
+                .forDevice(deviceId)
+                .forTable(tableId)
+                .fromApp(appId)
+                .withPriority(DEFAULT_FLOW_RULE_PRIORITY)
+                .makePermanent()
+                .withSelector(selector)
+                .withTreatment(treatment)
+                .build();
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("tableId", tableId)
+                .add("selector", selector)
+                .add("treatment", treatment)
+                .toString();
+    }
+}
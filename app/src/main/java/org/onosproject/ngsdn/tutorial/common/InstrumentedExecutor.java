@@ -0,0 +1,226 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.ngsdn.tutorial.common;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Executor service wrapper that records, for each task type, the time tasks
+ * wait in the queue before starting, their run time, and the number of tasks
+ * currently queued. Tasks submitted via the plain {@link ExecutorService}
+ * methods are accounted as {@link TaskType#OTHER}.
+ */
+public final class InstrumentedExecutor extends AbstractExecutorService {
+
+    /**
+     * Type of task, used to group statistics.
+     */
+    public enum TaskType {
+        /**
+         * Reaction to a device event.
+         */
+        DEVICE,
+        /**
+         * Reaction to a host event.
+         */
+        HOST,
+        /**
+         * Reaction to a link event.
+         */
+        LINK,
+        /**
+         * Initial set up of all devices, scheduled at component activation.
+         */
+        INITIAL_SETUP,
+        /**
+         * Any other task.
+         */
+        OTHER
+    }
+
+    private final ExecutorService delegate;
+    private final Map<TaskType, TaskStats> stats;
+
+    /**
+     * Creates a new instrumented executor wrapping the given executor service.
+     *
+     * @param delegate executor service running the tasks
+     */
+    public InstrumentedExecutor(ExecutorService delegate) {
+        this.delegate = checkNotNull(delegate);
+        final EnumMap<TaskType, TaskStats> map = new EnumMap<>(TaskType.class);
+        for (TaskType type : TaskType.values()) {
+            map.put(type, new TaskStats());
+        }
+        this.stats = ImmutableMap.copyOf(map);
+    }
+
+    /**
+     * Executes the given task, accounting it under the given type.
+     *
+     * @param type task type
+     * @param task task runnable
+     */
+    public void execute(TaskType type, Runnable task) {
+        checkNotNull(task);
+        final TaskStats taskStats = stats.get(checkNotNull(type));
+        final long enqueued = System.nanoTime();
+        taskStats.queued.incrementAndGet();
+        try {
+            delegate.execute(() -> {
+                taskStats.queued.decrementAndGet();
+                final long started = System.nanoTime();
+                taskStats.waitTime.record(started - enqueued);
+                try {
+                    task.run();
+                } finally {
+                    taskStats.runTime.recordSince(started);
+                    taskStats.completed.increment();
+                }
+            });
+        } catch (RuntimeException e) {
+            // Rejected, e.g. when shutting down.
+            taskStats.queued.decrementAndGet();
+            throw e;
+        }
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        execute(TaskType.OTHER, task);
+    }
+
+    /**
+     * Returns the statistics of each task type.
+     *
+     * @return map of statistics by task type
+     */
+    public Map<TaskType, TaskStats> stats() {
+        return stats;
+    }
+
+    /**
+     * Returns the total number of tasks currently queued.
+     *
+     * @return number of queued tasks
+     */
+    public int queueLength() {
+        return stats.values().stream().mapToInt(TaskStats::queued).sum();
+    }
+
+    /**
+     * Clears wait and run time statistics of all task types. Queue lengths
+     * are not affected.
+     */
+    public void resetStats() {
+        stats.values().forEach(TaskStats::reset);
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Statistics of tasks of a given type.
+     */
+    public static final class TaskStats {
+
+        private final LatencyHistogram waitTime = new LatencyHistogram();
+        private final LatencyHistogram runTime = new LatencyHistogram();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final LongAdder completed = new LongAdder();
+
+        private TaskStats() {
+        }
+
+        /**
+         * Returns the histogram of the time between task submission and start,
+         * in nanoseconds.
+         *
+         * @return wait time histogram
+         */
+        public LatencyHistogram waitTime() {
+            return waitTime;
+        }
+
+        /**
+         * Returns the histogram of task run time, in nanoseconds.
+         *
+         * @return run time histogram
+         */
+        public LatencyHistogram runTime() {
+            return runTime;
+        }
+
+        /**
+         * Returns the number of tasks currently waiting to be started.
+         *
+         * @return number of queued tasks
+         */
+        public int queued() {
+            return queued.get();
+        }
+
+        /**
+         * Returns the number of tasks completed since the last reset.
+         *
+         * @return number of completed tasks
+         */
+        public long completed() {
+            return completed.sum();
+        }
+
+        private void reset() {
+            waitTime.reset();
+            runTime.reset();
+            completed.reset();
+        }
+    }
+}
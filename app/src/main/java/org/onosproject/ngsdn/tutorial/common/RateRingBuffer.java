@@ -0,0 +1,195 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.ngsdn.tutorial.common;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Fixed-size time series of packet and byte rates computed from samples of a
+ * packets_and_bytes counter. Samples are stored in primitive arrays used as a
+ * ring buffer, hence memory usage is constant and no boxing happens on
+ * update. When full, the oldest sample is overwritten.
+ */
+public final class RateRingBuffer {
+
+    private final long[] timestamps;
+    private final double[] packetRates;
+    private final double[] byteRates;
+
+    // Index of the next slot to write.
+    private int next;
+    private int size;
+
+    // Last counter values, used to compute the rates of the next sample.
+    private long lastTimestamp = -1;
+    private long lastPackets;
+    private long lastBytes;
+
+    /**
+     * Creates a new ring buffer holding the given number of samples.
+     *
+     * @param capacity number of samples
+     */
+    public RateRingBuffer(int capacity) {
+        checkArgument(capacity > 0, "capacity must be positive");
+        this.timestamps = new long[capacity];
+        this.packetRates = new double[capacity];
+        this.byteRates = new double[capacity];
+    }
+
+    /**
+     * Updates the time series with the given counter values. The first
+     * update, and any update where the counter went backwards (e.g. because
+     * the entry was re-installed), only sets the baseline for the next one.
+     *
+     * @param timestampMillis time of the counter read, in milliseconds
+     * @param packets         packet counter value
+     * @param bytes           byte counter value
+     */
+    public synchronized void update(long timestampMillis, long packets, long bytes) {
+        final long elapsed = timestampMillis - lastTimestamp;
+        if (lastTimestamp >= 0 && elapsed > 0
+                && packets >= lastPackets && bytes >= lastBytes) {
+            final double seconds = elapsed / 1000.0;
+            timestamps[next] = timestampMillis;
+            packetRates[next] = (packets - lastPackets) / seconds;
+            byteRates[next] = (bytes - lastBytes) / seconds;
+            next = (next + 1) % timestamps.length;
+            size = Math.min(size + 1, timestamps.length);
+        }
+        lastTimestamp = timestampMillis;
+        lastPackets = packets;
+        lastBytes = bytes;
+    }
+
+    /**
+     * Returns the maximum number of samples held by this buffer.
+     *
+     * @return capacity
+     */
+    public int capacity() {
+        return timestamps.length;
+    }
+
+    /**
+     * Returns the number of samples currently held by this buffer.
+     *
+     * @return number of samples
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns the timestamp of the i-th most recent sample, 0 being the most
+     * recent one.
+     *
+     * @param i sample age
+     * @return timestamp in milliseconds
+     */
+    public synchronized long timestamp(int i) {
+        return timestamps[index(i)];
+    }
+
+    /**
+     * Returns the packet rate of the i-th most recent sample, 0 being the most
+     * recent one.
+     *
+     * @param i sample age
+     * @return packets per second
+     */
+    public synchronized double packetRate(int i) {
+        return packetRates[index(i)];
+    }
+
+    /**
+     * Returns the byte rate of the i-th most recent sample, 0 being the most
+     * recent one.
+     *
+     * @param i sample age
+     * @return bytes per second
+     */
+    public synchronized double byteRate(int i) {
+        return byteRates[index(i)];
+    }
+
+    /**
+     * Returns the mean packet rate of all samples in the buffer.
+     *
+     * @return packets per second, or 0 if the buffer is empty
+     */
+    public synchronized double meanPacketRate() {
+        return mean(packetRates);
+    }
+
+    /**
+     * Returns the mean byte rate of all samples in the buffer.
+     *
+     * @return bytes per second, or 0 if the buffer is empty
+     */
+    public synchronized double meanByteRate() {
+        return mean(byteRates);
+    }
+
+    /**
+     * Returns a copy of the packet rates in the buffer, from the oldest to the
+     * most recent one.
+     *
+     * @return array of packets per second
+     */
+    public synchronized double[] packetRates() {
+        return copy(packetRates);
+    }
+
+    /**
+     * Returns a copy of the byte rates in the buffer, from the oldest to the
+     * most recent one.
+     *
+     * @return array of bytes per second
+     */
+    public synchronized double[] byteRates() {
+        return copy(byteRates);
+    }
+
+    private int index(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException(
+                    "Sample " + i + " out of bounds, size is " + size);
+        }
+        final int capacity = timestamps.length;
+        return (next - 1 - i + capacity) % capacity;
+    }
+
+    private double mean(double[] values) {
+        if (size == 0) {
+            return 0;
+        }
+        double sum = 0;
+        for (int i = 0; i < size; i++) {
+            sum += values[index(i)];
+        }
+        return sum / size;
+    }
+
+    private double[] copy(double[] values) {
+        final double[] result = new double[size];
+        for (int i = 0; i < size; i++) {
+            result[size - 1 - i] = values[index(i)];
+        }
+        return result;
+    }
+}
@@ -16,6 +16,7 @@
 
 package org.onosproject.ngsdn.tutorial.common;
 
+import com.google.common.collect.Maps;
 import org.onosproject.core.ApplicationId;
 import org.onosproject.net.DeviceId;
 import org.onosproject.net.PortNumber;
@@ -42,6 +43,7 @@ import org.slf4j.LoggerFactory;
 import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -54,6 +56,9 @@ public final class Utils {
 
     private static final Logger log = LoggerFactory.getLogger(Utils.class);
 
+    // Interned table IDs, to not build one from its name for each flow rule.
+    private static final Map<String, PiTableId> TABLE_IDS = Maps.newConcurrentMap();
+
     public static GroupDescription buildMulticastGroup(
             ApplicationId appId,
             DeviceId deviceId,
@@ -81,8 +86,7 @@ public final class Utils {
         checkNotNull(appId);
         checkArgument(!ports.isEmpty());
 
-        final GroupKey groupKey = new DefaultGroupKey(
-                ByteBuffer.allocate(4).putInt(groupId).array());
+        final GroupKey groupKey = buildReplicationGroupKey(groupId);
 
         final List<GroupBucket> bucketList = ports.stream()
                 .map(p -> DefaultTrafficTreatment.builder()
@@ -98,12 +102,27 @@ public final class Utils {
                 groupKey, groupId, appId);
     }
 
+    public static GroupKey buildReplicationGroupKey(int groupId) {
+        return new DefaultGroupKey(
+                ByteBuffer.allocate(4).putInt(groupId).array());
+    }
+
+    public static PiTableId tableId(String tableId) {
+        return TABLE_IDS.computeIfAbsent(tableId, PiTableId::of);
+    }
+
+    public static FlowRuleTemplate buildFlowRuleTemplate(String tableId,
+                                                         PiCriterion piCriterion,
+                                                         PiTableAction piAction) {
+        return new FlowRuleTemplate(tableId(tableId), piCriterion, piAction);
+    }
+
     public static FlowRule buildFlowRule(DeviceId switchId, ApplicationId appId,
                                          String tableId, PiCriterion piCriterion,
                                          PiTableAction piAction) {
         return DefaultFlowRule.builder()
                 .forDevice(switchId)
-                .forTable(PiTableId.of(tableId))
+                .forTable(tableId(tableId))
                 .fromApp(appId)
                 .withPriority(DEFAULT_FLOW_RULE_PRIORITY)
                 .makePermanent()
@@ -137,6 +156,37 @@ public final class Utils {
                 appId);
     }
 
+    /**
+     * Returns the value of an integer component property, or the given
+     * default if the property is not set, is not a number or is lower than
+     * the given minimum.
+     *
+     * @param properties   component properties, may be null
+     * @param name         property name
+     * @param defaultValue value to use if the property is missing or invalid
+     * @param min          minimum valid value
+     * @return property value
+     */
+    public static int getIntProperty(Map<String, Object> properties, String name,
+                                     int defaultValue, int min) {
+        final Object value = properties == null ? null : properties.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            final int intValue = Integer.parseInt(value.toString().trim());
+            if (intValue < min) {
+                log.warn("Invalid value {} for {} (min is {}), using {}",
+                         intValue, name, min, defaultValue);
+                return defaultValue;
+            }
+            return intValue;
+        } catch (NumberFormatException e) {
+            log.warn("Invalid value '{}' for {}, using {}", value, name, defaultValue);
+            return defaultValue;
+        }
+    }
+
     public static void sleep(int millis) {
         try {
             Thread.sleep(millis);
@@ -16,10 +16,11 @@
 
 package org.onosproject.ngsdn.tutorial.pipeconf;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import org.onlab.packet.DeserializationException;
-import org.onlab.packet.Ethernet;
+import com.google.common.collect.Maps;
 import org.onlab.util.ImmutableByteSequence;
 import org.onosproject.net.ConnectPoint;
 import org.onosproject.net.DeviceId;
@@ -29,18 +30,24 @@ import org.onosproject.net.device.DeviceService;
 import org.onosproject.net.driver.AbstractHandlerBehaviour;
 import org.onosproject.net.flow.TrafficTreatment;
 import org.onosproject.net.flow.criteria.Criterion;
-import org.onosproject.net.packet.DefaultInboundPacket;
+import org.onosproject.net.flow.instructions.Instruction;
+import org.onosproject.net.flow.instructions.Instructions;
+import org.onosproject.net.group.Group;
+import org.onosproject.net.group.GroupService;
 import org.onosproject.net.packet.InboundPacket;
 import org.onosproject.net.packet.OutboundPacket;
+import org.onosproject.net.pi.model.PiActionId;
+import org.onosproject.net.pi.model.PiActionParamId;
 import org.onosproject.net.pi.model.PiMatchFieldId;
 import org.onosproject.net.pi.model.PiPacketMetadataId;
 import org.onosproject.net.pi.model.PiPipelineInterpreter;
 import org.onosproject.net.pi.model.PiTableId;
 import org.onosproject.net.pi.runtime.PiAction;
+import org.onosproject.net.pi.runtime.PiActionParam;
 import org.onosproject.net.pi.runtime.PiPacketMetadata;
 import org.onosproject.net.pi.runtime.PiPacketOperation;
+import org.onosproject.ngsdn.tutorial.common.Utils;
 
-import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
@@ -55,6 +62,7 @@ import static org.onosproject.net.flow.instructions.Instruction.Type.OUTPUT;
 import static org.onosproject.net.flow.instructions.Instructions.OutputInstruction;
 import static org.onosproject.net.pi.model.PiPacketOperationType.PACKET_OUT;
 import static org.onosproject.ngsdn.tutorial.AppConstants.CPU_PORT_ID;
+import static org.onosproject.ngsdn.tutorial.AppConstants.FLOOD_GROUP_ID;
 
 
 /**
@@ -66,14 +74,31 @@ public class InterpreterImpl extends AbstractHandlerBehaviour
 
     // From v1model.p4
     private static final int V1MODEL_PORT_BITWIDTH = 9;
+    // From main.p4 (mcast_group_id_t).
+    private static final int MCAST_GROUP_ID_BITWIDTH = 16;
 
     // From P4Info.
+    private static final String L2_EXACT_TABLE = "IngressPipeImpl.l2_exact_table";
+    private static final String L2_TERNARY_TABLE = "IngressPipeImpl.l2_ternary_table";
+    private static final String ACL_TABLE = "IngressPipeImpl.acl_table";
+    private static final String SET_EGRESS_PORT = "IngressPipeImpl.set_egress_port";
+    private static final String SET_MULTICAST_GROUP = "IngressPipeImpl.set_multicast_group";
+    private static final String SEND_TO_CPU = "IngressPipeImpl.send_to_cpu";
+    private static final String DROP = "IngressPipeImpl.drop";
+
+    // Interpreter instances are created for each request, hence the cache is
+    // shared by all instances.
+    private static final int TREATMENT_CACHE_SIZE = 4096;
+    private static final Cache<Map.Entry<PiTableId, TrafficTreatment>, PiAction> TREATMENT_CACHE =
+            CacheBuilder.newBuilder().maximumSize(TREATMENT_CACHE_SIZE).build();
+
     private static final Map<Criterion.Type, String> CRITERION_MAP =
             new ImmutableMap.Builder<Criterion.Type, String>()
                     .put(Criterion.Type.IN_PORT, "standard_metadata.ingress_port")
                     .put(Criterion.Type.ETH_DST, "hdr.ethernet.dst_addr")
                     .put(Criterion.Type.ETH_SRC, "hdr.ethernet.src_addr")
                     .put(Criterion.Type.ETH_TYPE, "hdr.ethernet.ether_type")
+                    .put(Criterion.Type.IPV4_DST, "hdr.ipv4.dst_addr")
                     .put(Criterion.Type.IPV6_DST, "hdr.ipv6.dst_addr")
                     .put(Criterion.Type.IP_PROTO, "local_metadata.ip_proto")
                     .put(Criterion.Type.ICMPV4_TYPE, "local_metadata.icmp_type")
@@ -109,6 +134,10 @@ public class InterpreterImpl extends AbstractHandlerBehaviour
             throw new PiInterpreterException("Treatment not supported: " + treatment);
         }
 
+        // Copy the payload only once, all packet-outs share the same
+        // immutable buffer.
+        final ImmutableByteSequence payload = copyFrom(packet.data());
+
         ImmutableList.Builder<PiPacketOperation> builder = ImmutableList.builder();
         for (OutputInstruction outInst : outInstructions) {
             if (outInst.port().isLogical() && !outInst.port().equals(FLOOD)) {
@@ -116,30 +145,52 @@ public class InterpreterImpl extends AbstractHandlerBehaviour
                         "Packet-out on logical port '%s' not supported",
                         outInst.port()));
             } else if (outInst.port().equals(FLOOD)) {
-                // To emulate flooding, we create a packet-out operation for
-                // each switch port.
-                final DeviceService deviceService = handler().get(DeviceService.class);
-                for (Port port : deviceService.getPorts(packet.sendThrough())) {
-                    builder.add(buildPacketOut(packet.data(), port.number().toLong()));
+                if (isFloodGroupAdded(packet.sendThrough())) {
+                    // Send one packet-out, the switch replicates it to all
+                    // ports using the flood multicast group.
+                    builder.add(buildPacketOut(payload, 0, FLOOD_GROUP_ID));
+                } else {
+                    // Flood group not available (yet), emulate flooding by
+                    // creating a packet-out operation for each switch port.
+                    final DeviceService deviceService = handler().get(DeviceService.class);
+                    for (Port port : deviceService.getPorts(packet.sendThrough())) {
+                        builder.add(buildPacketOut(payload, port.number().toLong(), 0));
+                    }
                 }
             } else {
                 // Create only one packet-out for the given OUTPUT instruction.
-                builder.add(buildPacketOut(packet.data(), outInst.port().toLong()));
+                builder.add(buildPacketOut(payload, outInst.port().toLong(), 0));
             }
         }
         return builder.build();
     }
 
     /**
-     * Builds a pipeconf-specific packet-out instance with the given payload and
-     * egress port.
+     * Returns true if the flood multicast group has been installed on the
+     * given device.
+     *
+     * @param deviceId device ID
+     * @return true if the flood group can be used for packet-outs
+     */
+    private boolean isFloodGroupAdded(DeviceId deviceId) {
+        final Group group = handler().get(GroupService.class).getGroup(
+                deviceId, Utils.buildReplicationGroupKey(FLOOD_GROUP_ID));
+        return group != null && group.state() == Group.GroupState.ADDED;
+    }
+
+    /**
+     * Builds a pipeconf-specific packet-out instance with the given payload,
+     * egress port and multicast group ID. If the multicast group ID is not 0,
+     * the egress port is ignored by the pipeline.
      *
-     * @param pktData    packet payload
-     * @param portNumber egress port
+     * @param payload      packet payload
+     * @param portNumber   egress port
+     * @param mcastGroupId multicast group ID, or 0 for unicast packet-outs
      * @return packet-out
      * @throws PiInterpreterException if packet-out cannot be built
      */
-    private PiPacketOperation buildPacketOut(ByteBuffer pktData, long portNumber)
+    private PiPacketOperation buildPacketOut(ImmutableByteSequence payload,
+                                             long portNumber, int mcastGroupId)
             throws PiInterpreterException {
 
         // Make sure port number can fit in v1model port metadata bitwidth.
@@ -150,22 +201,34 @@ public class InterpreterImpl extends AbstractHandlerBehaviour
             throw new PiInterpreterException(format(
                     "Port number %d too big, %s", portNumber, e.getMessage()));
         }
+        final ImmutableByteSequence mcastGrpBytes;
+        try {
+            mcastGrpBytes = copyFrom(mcastGroupId).fit(MCAST_GROUP_ID_BITWIDTH);
+        } catch (ImmutableByteSequence.ByteSequenceTrimException e) {
+            throw new PiInterpreterException(format(
+                    "Multicast group ID %d too big, %s", mcastGroupId, e.getMessage()));
+        }
 
         // Create metadata instance for egress port.
         // *** TODO EXERCISE 4: modify metadata names to match P4 program
         // ---- START SOLUTION ----
         final String outPortMetadataName = "egress_port";
+        final String mcastGrpMetadataName = "mcast_grp";
         // ---- END SOLUTION ----
         final PiPacketMetadata outPortMetadata = PiPacketMetadata.builder()
                 .withId(PiPacketMetadataId.of(outPortMetadataName))
                 .withValue(portBytes)
                 .build();
+        final PiPacketMetadata mcastGrpMetadata = PiPacketMetadata.builder()
+                .withId(PiPacketMetadataId.of(mcastGrpMetadataName))
+                .withValue(mcastGrpBytes)
+                .build();
 
         // Build packet out.
         return PiPacketOperation.builder()
                 .withType(PACKET_OUT)
-                .withData(copyFrom(pktData))
-                .withMetadata(outPortMetadata)
+                .withData(payload)
+                .withMetadatas(ImmutableList.of(outPortMetadata, mcastGrpMetadata))
                 .build();
     }
 
@@ -188,12 +251,17 @@ public class InterpreterImpl extends AbstractHandlerBehaviour
         // ---- START SOLUTION ----
         final String inportMetadataName = "ingress_port";
         // ---- END SOLUTION ----
-        Optional<PiPacketMetadata> inportMetadata = packetIn.metadatas()
-                .stream()
-                .filter(meta -> meta.id().id().equals(inportMetadataName))
-                .findFirst();
+        // Packet-ins carry only a couple of metadata, a plain loop is cheaper
+        // than a stream on this hot path.
+        PiPacketMetadata inportMetadata = null;
+        for (PiPacketMetadata meta : packetIn.metadatas()) {
+            if (meta.id().id().equals(inportMetadataName)) {
+                inportMetadata = meta;
+                break;
+            }
+        }
 
-        if (!inportMetadata.isPresent()) {
+        if (inportMetadata == null) {
             throw new PiInterpreterException(format(
                     "Missing metadata '%s' in packet-in received from '%s': %s",
                     inportMetadataName, deviceId, packetIn));
@@ -201,24 +269,15 @@ public class InterpreterImpl extends AbstractHandlerBehaviour
 
         // Build ONOS InboundPacket instance with the given ingress port.
 
-        // 1. Parse packet-in object into Ethernet packet instance.
-        final byte[] payloadBytes = packetIn.data().asArray();
-        final ByteBuffer rawData = ByteBuffer.wrap(payloadBytes);
-        final Ethernet ethPkt;
-        try {
-            ethPkt = Ethernet.deserializer().deserialize(
-                    payloadBytes, 0, packetIn.data().size());
-        } catch (DeserializationException dex) {
-            throw new PiInterpreterException(dex.getMessage());
-        }
-
-        // 2. Get ingress port
-        final ImmutableByteSequence portBytes = inportMetadata.get().value();
+        // 1. Get ingress port
+        final ImmutableByteSequence portBytes = inportMetadata.value();
         final short portNum = portBytes.asReadOnlyBuffer().getShort();
         final ConnectPoint receivedFrom = new ConnectPoint(
                 deviceId, PortNumber.portNumber(portNum));
 
-        return new DefaultInboundPacket(receivedFrom, ethPkt, rawData);
+        // 2. Wrap the packet-in payload without copying it. The Ethernet frame
+        // is deserialized only if a packet processor asks for it.
+        return new LazyInboundPacket(receivedFrom, packetIn.data());
     }
 
     @Override
@@ -239,10 +298,89 @@ public class InterpreterImpl extends AbstractHandlerBehaviour
         }
     }
 
+    /**
+     * Returns a PI action equivalent to the given treatment, for the given
+     * table. Supported treatments are OUTPUT for the L2 exact table, GROUP for
+     * the L2 ternary one, and OUTPUT:CONTROLLER or drop for the ACL table.
+     * Routing tables are not supported, as their entries can only point to
+     * groups of the ECMP action selector. Translations are cached, as the same
+     * treatments are used by many flow rules.
+     *
+     * @param treatment traffic treatment
+     * @param piTableId PI table ID
+     * @return PI action
+     * @throws PiInterpreterException if the treatment cannot be mapped
+     */
     @Override
     public PiAction mapTreatment(TrafficTreatment treatment, PiTableId piTableId)
             throws PiInterpreterException {
-        throw new PiInterpreterException("Treatment mapping not supported");
+        final Map.Entry<PiTableId, TrafficTreatment> key =
+                Maps.immutableEntry(piTableId, treatment);
+        PiAction piAction = TREATMENT_CACHE.getIfPresent(key);
+        if (piAction == null) {
+            // Failed translations are not cached.
+            piAction = translateTreatment(treatment, piTableId);
+            TREATMENT_CACHE.put(key, piAction);
+        }
+        return piAction;
+    }
+
+    private PiAction translateTreatment(TrafficTreatment treatment, PiTableId piTableId)
+            throws PiInterpreterException {
+        final List<Instruction> instructions = treatment.allInstructions();
+        if (instructions.size() != 1) {
+            throw new PiInterpreterException(format(
+                    "Treatment not supported, expected 1 instruction: %s", treatment));
+        }
+        final Instruction inst = instructions.get(0);
+
+        switch (piTableId.id()) {
+            case L2_EXACT_TABLE:
+                if (inst.type() == OUTPUT
+                        && !((OutputInstruction) inst).port().isLogical()) {
+                    final long port = ((OutputInstruction) inst).port().toLong();
+                    return PiAction.builder()
+                            .withId(PiActionId.of(SET_EGRESS_PORT))
+                            .withParameter(new PiActionParam(
+                                    PiActionParamId.of("port_num"),
+                                    fitOrFail(port, V1MODEL_PORT_BITWIDTH, "port number")))
+                            .build();
+                }
+                break;
+            case L2_TERNARY_TABLE:
+                if (inst.type() == Instruction.Type.GROUP) {
+                    final int groupId = ((Instructions.GroupInstruction) inst).groupId().id();
+                    return PiAction.builder()
+                            .withId(PiActionId.of(SET_MULTICAST_GROUP))
+                            .withParameter(new PiActionParam(
+                                    PiActionParamId.of("gid"),
+                                    fitOrFail(groupId, MCAST_GROUP_ID_BITWIDTH, "group ID")))
+                            .build();
+                }
+                break;
+            case ACL_TABLE:
+                if (inst.type() == OUTPUT
+                        && ((OutputInstruction) inst).port().equals(CONTROLLER)) {
+                    return PiAction.builder().withId(PiActionId.of(SEND_TO_CPU)).build();
+                } else if (inst.type() == Instruction.Type.NOACTION) {
+                    return PiAction.builder().withId(PiActionId.of(DROP)).build();
+                }
+                break;
+            default:
+                break;
+        }
+        throw new PiInterpreterException(format(
+                "Treatment not supported for table '%s': %s", piTableId, treatment));
+    }
+
+    private static ImmutableByteSequence fitOrFail(long value, int bitWidth, String what)
+            throws PiInterpreterException {
+        try {
+            return copyFrom(value).fit(bitWidth);
+        } catch (ImmutableByteSequence.ByteSequenceTrimException e) {
+            throw new PiInterpreterException(format(
+                    "%s %d too big, %s", what, value, e.getMessage()));
+        }
     }
 
     @Override
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2019-present Open Networking Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.onosproject.ngsdn.tutorial.pipeconf;
+
+import org.onlab.packet.DeserializationException;
+import org.onlab.packet.Ethernet;
+import org.onlab.util.ImmutableByteSequence;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.packet.InboundPacket;
+import org.slf4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+import java.util.Optional;
+
+import static com.google.common.base.MoreObjects.toStringHelper;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Inbound packet backed by the payload of a P4Runtime packet-in. The payload
+ * is shared with the packet-in message (no copy is made), and the Ethernet
+ * frame is deserialized only the first time {@link #parsed()} is called. This
+ * makes packet-ins that are discarded by all packet processors without looking
+ * at the headers (e.g. LLDP or NDP floods) almost free to map.
+ */
+final class LazyInboundPacket implements InboundPacket {
+
+    private static final Logger log = getLogger(LazyInboundPacket.class);
+
+    private final ConnectPoint receivedFrom;
+    private final ImmutableByteSequence data;
+
+    private volatile Ethernet parsed;
+    private volatile boolean parseFailed;
+
+    /**
+     * Creates a new inbound packet.
+     *
+     * @param receivedFrom connection point where the packet was received
+     * @param data         packet payload
+     */
+    LazyInboundPacket(ConnectPoint receivedFrom, ImmutableByteSequence data) {
+        this.receivedFrom = checkNotNull(receivedFrom);
+        this.data = checkNotNull(data);
+    }
+
+    @Override
+    public ConnectPoint receivedFrom() {
+        return receivedFrom;
+    }
+
+    /**
+     * Returns the Ethernet frame, deserializing it on first invocation.
+     *
+     * @return Ethernet frame, or null if the payload cannot be deserialized
+     */
+    @Override
+    public Ethernet parsed() {
+        Ethernet ethPkt = parsed;
+        if (ethPkt == null && !parseFailed) {
+            synchronized (this) {
+                if (parsed == null && !parseFailed) {
+                    parsed = parse();
+                }
+                ethPkt = parsed;
+            }
+        }
+        return ethPkt;
+    }
+
+    @Override
+    public ByteBuffer unparsed() {
+        // Read-only view over the packet-in payload, no copy.
+        return data.asReadOnlyBuffer();
+    }
+
+    @Override
+    public Optional<Long> cookie() {
+        return Optional.empty();
+    }
+
+    private Ethernet parse() {
+        final byte[] payloadBytes = data.asArray();
+        try {
+            return Ethernet.deserializer().deserialize(
+                    payloadBytes, 0, payloadBytes.length);
+        } catch (DeserializationException dex) {
+            log.warn("Unable to deserialize packet-in from {}: {}",
+                     receivedFrom, dex.getMessage());
+            parseFailed = true;
+            return null;
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(receivedFrom, data);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final LazyInboundPacket other = (LazyInboundPacket) obj;
+        return Objects.equals(this.receivedFrom, other.receivedFrom)
+                && Objects.equals(this.data, other.data);
+    }
+
+    @Override
+    public String toString() {
+        return toStringHelper(this)
+                .add("receivedFrom", receivedFrom)
+                .add("size", data.size())
+                .add("parsed", parsed != null)
+                .toString();
+    }
+}
@@ -16,7 +16,11 @@
 
 package org.onosproject.ngsdn.tutorial.pipeconf;
 
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
 import org.onosproject.net.behaviour.Pipeliner;
+import org.onosproject.net.driver.Behaviour;
 import org.onosproject.net.driver.DriverAdminService;
 import org.onosproject.net.driver.DriverProvider;
 import org.onosproject.net.pi.model.DefaultPiPipeconf;
@@ -34,9 +38,18 @@ import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Optional;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.onosproject.net.pi.model.PiPipeconf.ExtensionType.BMV2_JSON;
 import static org.onosproject.net.pi.model.PiPipeconf.ExtensionType.P4_INFO_TEXT;
@@ -44,6 +57,21 @@ import static org.onosproject.ngsdn.tutorial.AppConstants.PIPECONF_ID;
 
 /**
  * Component that builds and register the pipeconf at app activation.
+ * <p>
+ * Devices go through a pipeline reconfiguration only if the P4 artifacts
+ * (p4info.txt and bmv2.json) of the pipeconf change. To be able to tell,
+ * artifacts are copied to a cache directory named after their content hash,
+ * and the registered pipeconf references those copies, which survive app
+ * upgrades. The pipeconf registered by a previous activation of the app is
+ * kept if the artifacts are unchanged and its behaviours are the classes of
+ * this bundle, i.e. when the same bundle is activated again.
+ * <p>
+ * Pipeconfs are immutable in ONOS 2.2 and the drivers of devices capture the
+ * behaviour classes, hence after an upgrade changing only Java code the
+ * pipeconf is registered again with the new behaviours, but with the same
+ * cached artifacts. Its fingerprint, computed from the artifacts, is then
+ * unchanged, and devices already running that pipeline are not configured
+ * again.
  */
 @Component(immediate = true, service = PipeconfLoader.class)
 public final class PipeconfLoader {
@@ -52,7 +80,9 @@ public final class PipeconfLoader {
 
     private static final String P4INFO_PATH = "/p4info.txt";
     private static final String BMV2_JSON_PATH = "/bmv2.json";
-
+    private static final String P4INFO_FILE = "p4info.txt";
+    private static final String BMV2_JSON_FILE = "bmv2.json";
+    private static final String CACHE_DIR = "ngsdn-tutorial/pipeconf";
 
     @Reference(cardinality = ReferenceCardinality.MANDATORY)
     private PiPipeconfService pipeconfService;
@@ -62,16 +92,58 @@ public final class PipeconfLoader {
 
     @Activate
     public void activate() {
-        // Registers the pipeconf at component activation.
-        if (pipeconfService.getPipeconf(PIPECONF_ID).isPresent()) {
-            // Remove first if already registered, to support reloading of the
-            // pipeconf during the tutorial.
-            pipeconfService.unregister(PIPECONF_ID);
+        final byte[] p4Info;
+        final byte[] bmv2Json;
+        try {
+            p4Info = readResource(P4INFO_PATH);
+            bmv2Json = readResource(BMV2_JSON_PATH);
+        } catch (IOException e) {
+            log.error("Unable to read P4 artifacts of " + PIPECONF_ID, e);
+            return;
+        }
+        final HashCode p4InfoHash = hash(p4Info);
+        final HashCode bmv2JsonHash = hash(bmv2Json);
+
+        final Optional<PiPipeconf> registered = pipeconfService.getPipeconf(PIPECONF_ID);
+        final boolean samePipelineModel = registered.isPresent()
+                && p4InfoHash.equals(hashExtension(registered.get(), P4_INFO_TEXT));
+        final boolean samePipeline = samePipelineModel
+                && bmv2JsonHash.equals(hashExtension(registered.get(), BMV2_JSON));
+
+        if (samePipeline && sameBehaviours(registered.get())) {
+            log.info("Pipeconf {} is unchanged (p4info={}, bmv2={}), keeping it registered",
+                     PIPECONF_ID, shortHash(p4InfoHash), shortHash(bmv2JsonHash));
+            pruneCache(cacheDirName(p4InfoHash, bmv2JsonHash));
+            return;
         }
-        removePipeconfDrivers();
+
+        // Registers the pipeconf at component activation.
         try {
-            pipeconfService.register(buildPipeconf());
-        } catch (P4InfoParserException e) {
+            final Path cacheDir = cacheArtifacts(
+                    p4Info, p4InfoHash, bmv2Json, bmv2JsonHash);
+            final URL p4InfoUrl = cacheDir.resolve(P4INFO_FILE).toUri().toURL();
+            final URL bmv2JsonUrl = cacheDir.resolve(BMV2_JSON_FILE).toUri().toURL();
+            // Parsing the P4Info is expensive, reuse the model if we can.
+            final PiPipelineModel pipelineModel = samePipelineModel
+                    ? registered.get().pipelineModel()
+                    : P4InfoParser.parse(p4InfoUrl);
+            if (samePipeline) {
+                // Same artifacts, hence same fingerprint: only the behaviours
+                // of the pipeconf and of the merged drivers are replaced.
+                log.info("Pipeconf {} behaviours changed, re-registering it " +
+                                 "with the same pipeline (p4info={}, bmv2={})...",
+                         PIPECONF_ID, shortHash(p4InfoHash), shortHash(bmv2JsonHash));
+                pipeconfService.unregister(PIPECONF_ID);
+            } else if (registered.isPresent()) {
+                // Remove first if already registered, to support reloading of
+                // the pipeconf during the tutorial.
+                log.info("Pipeconf {} changed, re-registering it...", PIPECONF_ID);
+                pipeconfService.unregister(PIPECONF_ID);
+            }
+            removePipeconfDrivers();
+            pipeconfService.register(buildPipeconf(pipelineModel, p4InfoUrl, bmv2JsonUrl));
+            pruneCache(cacheDirName(p4InfoHash, bmv2JsonHash));
+        } catch (IOException | P4InfoParserException e) {
             log.error("Unable to register " + PIPECONF_ID, e);
         }
     }
@@ -81,22 +153,140 @@ public final class PipeconfLoader {
         // Do nothing.
     }
 
-    private PiPipeconf buildPipeconf() throws P4InfoParserException {
-
-        final URL p4InfoUrl = PipeconfLoader.class.getResource(P4INFO_PATH);
-        final URL bmv2JsonUrlUrl = PipeconfLoader.class.getResource(BMV2_JSON_PATH);
-        final PiPipelineModel pipelineModel = P4InfoParser.parse(p4InfoUrl);
-
+    private PiPipeconf buildPipeconf(PiPipelineModel pipelineModel,
+                                     URL p4InfoUrl, URL bmv2JsonUrl) {
         return DefaultPiPipeconf.builder()
                 .withId(PIPECONF_ID)
                 .withPipelineModel(pipelineModel)
                 .addBehaviour(PiPipelineInterpreter.class, InterpreterImpl.class)
                 .addBehaviour(Pipeliner.class, PipelinerImpl.class)
                 .addExtension(P4_INFO_TEXT, p4InfoUrl)
-                .addExtension(BMV2_JSON, bmv2JsonUrlUrl)
+                .addExtension(BMV2_JSON, bmv2JsonUrl)
                 .build();
     }
 
+    /**
+     * Returns true if the behaviours of the given pipeconf are the classes of
+     * the pipeconf built by this class, i.e. loaded by this bundle. Classes of
+     * a previous bundle, even if unchanged, are not, as that bundle is
+     * uninstalled after an upgrade.
+     *
+     * @param pipeconf pipeconf
+     * @return true if behaviours are the same
+     */
+    private boolean sameBehaviours(PiPipeconf pipeconf) {
+        return sameBehaviour(pipeconf, PiPipelineInterpreter.class, InterpreterImpl.class)
+                && sameBehaviour(pipeconf, Pipeliner.class, PipelinerImpl.class);
+    }
+
+    private boolean sameBehaviour(PiPipeconf pipeconf,
+                                  Class<? extends Behaviour> behaviour,
+                                  Class<? extends Behaviour> implementation) {
+        return pipeconf.implementation(behaviour)
+                .map(registeredImpl -> registeredImpl == implementation)
+                .orElse(false);
+    }
+
+    /**
+     * Copies the given artifacts to a cache directory named after their
+     * hashes, unless already there, and returns the path of such directory.
+     */
+    private Path cacheArtifacts(byte[] p4Info, HashCode p4InfoHash,
+                                byte[] bmv2Json, HashCode bmv2JsonHash)
+            throws IOException {
+        final Path dir = cacheRoot().resolve(cacheDirName(p4InfoHash, bmv2JsonHash));
+        Files.createDirectories(dir);
+        writeIfAbsent(dir.resolve(P4INFO_FILE), p4Info);
+        writeIfAbsent(dir.resolve(BMV2_JSON_FILE), bmv2Json);
+        return dir;
+    }
+
+    private Path cacheRoot() {
+        final String baseDir = System.getProperty(
+                "karaf.data", System.getProperty("java.io.tmpdir"));
+        return Paths.get(baseDir, CACHE_DIR);
+    }
+
+    private String cacheDirName(HashCode p4InfoHash, HashCode bmv2JsonHash) {
+        return shortHash(p4InfoHash) + "-" + shortHash(bmv2JsonHash);
+    }
+
+    /**
+     * Removes from the cache the artifacts of pipeconfs other than the one
+     * currently registered, stored in the given directory.
+     */
+    private void pruneCache(String inUseDirName) {
+        final Path root = cacheRoot();
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        try (Stream<Path> dirs = Files.list(root)) {
+            dirs.filter(dir -> !dir.getFileName().toString().equals(inUseDirName))
+                    .forEach(this::deleteRecursively);
+        } catch (IOException e) {
+            log.warn("Unable to prune pipeconf cache {}: {}", root, e.getMessage());
+        }
+    }
+
+    private void deleteRecursively(Path path) {
+        try (Stream<Path> paths = Files.walk(path)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> {
+                try {
+                    Files.delete(p);
+                } catch (IOException e) {
+                    log.warn("Unable to delete {}: {}", p, e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            log.warn("Unable to delete {}: {}", path, e.getMessage());
+        }
+    }
+
+    private void writeIfAbsent(Path path, byte[] content) throws IOException {
+        if (Files.exists(path) && hash(Files.readAllBytes(path)).equals(hash(content))) {
+            return;
+        }
+        // Write to a temporary file first, so readers never see partial files.
+        final Path tmp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+        Files.write(tmp, content);
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private byte[] readResource(String path) throws IOException {
+        final URL url = PipeconfLoader.class.getResource(path);
+        if (url == null) {
+            throw new IOException("Missing resource " + path);
+        }
+        try (InputStream stream = url.openStream()) {
+            return ByteStreams.toByteArray(stream);
+        }
+    }
+
+    /**
+     * Returns the hash of the given pipeconf extension, or null if missing or
+     * not readable (e.g. if provided by an uninstalled bundle).
+     */
+    private HashCode hashExtension(PiPipeconf pipeconf, PiPipeconf.ExtensionType type) {
+        final Optional<InputStream> extension = pipeconf.extension(type);
+        if (!extension.isPresent()) {
+            return null;
+        }
+        try (InputStream stream = extension.get()) {
+            return hash(ByteStreams.toByteArray(stream));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static HashCode hash(byte[] content) {
+        return Hashing.sha256().hashBytes(content);
+    }
+
+    private static String shortHash(HashCode hash) {
+        return hash.toString().substring(0, 16);
+    }
+
     private void removePipeconfDrivers() {
         List<DriverProvider> driverProvidersToRemove = driverAdminService
                 .getProviders().stream()
@@ -16,6 +16,14 @@
 
 package org.onosproject.ngsdn.tutorial.pipeconf;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.onlab.packet.MacAddress;
+import org.onlab.util.SharedScheduledExecutors;
+import org.onosproject.core.ApplicationId;
+import org.onosproject.core.CoreService;
 import org.onosproject.net.DeviceId;
 import org.onosproject.net.PortNumber;
 import org.onosproject.net.behaviour.NextGroup;
@@ -23,62 +31,265 @@ import org.onosproject.net.behaviour.Pipeliner;
 import org.onosproject.net.behaviour.PipelinerContext;
 import org.onosproject.net.driver.AbstractHandlerBehaviour;
 import org.onosproject.net.flow.DefaultFlowRule;
+import org.onosproject.net.flow.DefaultTrafficSelector;
 import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.FlowEntry;
+import org.onosproject.net.flow.FlowId;
 import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperation;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleOperationsContext;
+import org.onosproject.net.flow.FlowRuleEvent;
+import org.onosproject.net.flow.FlowRuleListener;
 import org.onosproject.net.flow.FlowRuleService;
+import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flow.criteria.Criterion;
+import org.onosproject.net.flow.criteria.EthCriterion;
+import org.onosproject.net.flow.criteria.PiCriterion;
+import org.onosproject.net.flow.instructions.Instruction;
 import org.onosproject.net.flow.instructions.Instructions;
+import org.onosproject.net.flow.instructions.L2ModificationInstruction;
+import org.onosproject.net.flow.instructions.PiInstruction;
 import org.onosproject.net.flowobjective.FilteringObjective;
+import org.onosproject.net.flowobjective.FlowObjectiveStore;
 import org.onosproject.net.flowobjective.ForwardingObjective;
 import org.onosproject.net.flowobjective.NextObjective;
+import org.onosproject.net.flowobjective.Objective;
 import org.onosproject.net.flowobjective.ObjectiveError;
-import org.onosproject.net.group.GroupDescription;
+import org.onosproject.net.group.DefaultGroupBucket;
+import org.onosproject.net.group.Group;
+import org.onosproject.net.group.GroupBucket;
+import org.onosproject.net.group.GroupBuckets;
+import org.onosproject.net.group.GroupEvent;
+import org.onosproject.net.group.GroupKey;
+import org.onosproject.net.group.GroupListener;
 import org.onosproject.net.group.GroupService;
 import org.onosproject.net.pi.model.PiActionId;
+import org.onosproject.net.pi.model.PiActionParamId;
+import org.onosproject.net.pi.model.PiActionProfileId;
+import org.onosproject.net.pi.model.PiMatchFieldId;
 import org.onosproject.net.pi.model.PiTableId;
 import org.onosproject.net.pi.runtime.PiAction;
+import org.onosproject.net.pi.runtime.PiActionParam;
+import org.onosproject.net.pi.runtime.PiActionProfileGroupId;
+import org.onosproject.net.pi.runtime.PiGroupKey;
+import org.onosproject.net.pi.runtime.PiTableAction;
 import org.onosproject.ngsdn.tutorial.common.Utils;
+import org.onosproject.store.serializers.KryoNamespaces;
+import org.onosproject.store.service.ConsistentMap;
+import org.onosproject.store.service.Serializer;
+import org.onosproject.store.service.StorageService;
+import org.onosproject.store.service.Versioned;
 import org.slf4j.Logger;
 
+import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
+import static com.google.common.collect.Streams.stream;
+import static java.lang.String.format;
 import static org.onosproject.net.flow.instructions.Instruction.Type.OUTPUT;
 import static org.onosproject.ngsdn.tutorial.AppConstants.CPU_CLONE_SESSION_ID;
+import static org.onosproject.ngsdn.tutorial.AppConstants.DEFAULT_FLOW_RULE_PRIORITY;
+import static org.onosproject.ngsdn.tutorial.AppConstants.NEXT_OBJECTIVE_GROUP_ID_BASE;
+import static org.onosproject.ngsdn.tutorial.AppConstants.PIPELINER_APP_NAME;
 import static org.slf4j.LoggerFactory.getLogger;
 
 /**
- * Pipeliner implementation that maps all forwarding objectives to the ACL
- * table. All other types of objectives are not supported.
+ * Pipeliner implementation that maps forwarding objectives with a next ID to
+ * the IPv4 or IPv6 routing table, and all other forwarding objectives to the
+ * ACL table. SIMPLE and HASHED next objectives are mapped to groups of the
+ * ECMP action selector, and filtering objectives to the My Station table.
  */
 public class PipelinerImpl extends AbstractHandlerBehaviour implements Pipeliner {
 
     // From the P4Info file
     private static final String ACL_TABLE = "IngressPipeImpl.acl_table";
     private static final String CLONE_TO_CPU = "IngressPipeImpl.clone_to_cpu";
+    private static final String ROUTING_V4_TABLE = "IngressPipeImpl.routing_v4_table";
+    private static final String ROUTING_V6_TABLE = "IngressPipeImpl.routing_v6_table";
+    private static final String ECMP_SELECTOR = "IngressPipeImpl.ecmp_selector";
+    private static final String SET_NEXT_HOP = "IngressPipeImpl.set_next_hop";
+    private static final String DMAC = "dmac";
+
+    private static final String MY_STATION_TABLE = "IngressPipeImpl.my_station_table";
+    private static final String ETH_DST_ADDR = "hdr.ethernet.dst_addr";
+    private static final String NO_ACTION = "NoAction";
+
+    // Requesters of My Station entries, by device and MAC address. Shared by
+    // all instances, such that counts survive reconnections and failovers.
+    private static final String MY_STATION_MAP_NAME = "ngsdn-tutorial-my-station-requesters";
+
+    // ACL rules are written in batches, see addToAclBatch().
+    private static final int ACL_BATCH_DELAY_MILLIS = 20;
+    private static final int ACL_BATCH_MAX_SIZE = 100;
+
+    // Maximum time for the device to confirm the group of a next objective.
+    private static final int NEXT_OBJECTIVE_TIMEOUT_SECONDS = 10;
 
     private final Logger log = getLogger(getClass());
 
     private FlowRuleService flowRuleService;
     private GroupService groupService;
+    private FlowObjectiveStore flowObjectiveStore;
+    private ConsistentMap<String, Set<String>> myStationRequesters;
+    private ApplicationId appId;
     private DeviceId deviceId;
 
+    private final AtomicBoolean cloneSessionRequested = new AtomicBoolean(false);
+    private final Object aclBatchLock = new Object();
+    private List<PendingAclOp> aclBatch = Lists.newArrayList();
 
     @Override
     public void init(DeviceId deviceId, PipelinerContext context) {
         this.deviceId = deviceId;
         this.flowRuleService = context.directory().get(FlowRuleService.class);
         this.groupService = context.directory().get(GroupService.class);
+        // Used as next ID to group cache, shared by all instances.
+        this.flowObjectiveStore = context.store();
+        this.appId = context.directory().get(CoreService.class)
+                .registerApplication(PIPELINER_APP_NAME);
+        this.myStationRequesters = context.directory().get(StorageService.class)
+                .<String, Set<String>>consistentMapBuilder()
+                .withName(MY_STATION_MAP_NAME)
+                .withSerializer(Serializer.using(KryoNamespaces.API))
+                .build();
     }
 
+    /**
+     * Maps PERMIT filtering objectives with an ETH_DST condition to entries of
+     * the My Station table. Entries are reference counted, such that the same
+     * MAC address requested by many apps (or with different filtering keys)
+     * results in only one entry, removed when the last requester removes its
+     * objective. A REMOVE for an entry without known requesters (e.g. added
+     * before the counts were stored) removes the entry. Other conditions are
+     * ignored, as the My Station table matches only on the Ethernet
+     * destination address.
+     * <p>
+     * Entries for the same MAC address installed by other apps (e.g. the one
+     * of the device myStationMac) are the same P4Runtime entry, hence the
+     * entry is neither written when another app already installed it, nor
+     * removed while another app still has it.
+     *
+     * @param obj filtering objective
+     */
     @Override
     public void filter(FilteringObjective obj) {
-        obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.UNSUPPORTED));
+        final MacAddress stationMac = obj.conditions().stream()
+                .filter(c -> c.type() == Criterion.Type.ETH_DST)
+                .map(c -> ((EthCriterion) c).mac())
+                .findFirst()
+                .orElse(null);
+
+        if (obj.type() != FilteringObjective.Type.PERMIT || stationMac == null) {
+            obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.UNSUPPORTED));
+            return;
+        }
+
+        final String entryKey = format("%s/%s", deviceId, stationMac);
+        final String requester = format("%s/%s", obj.appId().name(), obj.key());
+        final FlowRule rule = buildMyStationRule(stationMac);
+
+        switch (obj.op()) {
+            case ADD:
+                final AtomicBoolean firstRequester = new AtomicBoolean();
+                myStationRequesters.compute(entryKey, (k, requesters) -> {
+                    firstRequester.set(requesters == null || requesters.isEmpty());
+                    final Set<String> updated = requesters == null
+                            ? Sets.newHashSet() : Sets.newHashSet(requesters);
+                    updated.add(requester);
+                    return updated;
+                });
+                if (!firstRequester.get()) {
+                    log.debug("My Station entry for {} already on {}", stationMac, deviceId);
+                } else if (hasOtherAppEntry(rule)) {
+                    log.debug("My Station entry for {} already installed on {} by another app",
+                              stationMac, deviceId);
+                } else {
+                    flowRuleService.applyFlowRules(rule);
+                }
+                break;
+            case REMOVE:
+                final Versioned<Set<String>> remaining = myStationRequesters.computeIfPresent(
+                        entryKey, (k, requesters) -> {
+                            final Set<String> updated = Sets.newHashSet(requesters);
+                            updated.remove(requester);
+                            return updated.isEmpty() ? null : updated;
+                        });
+                if (remaining != null) {
+                    log.debug("My Station entry for {} kept on {}, {} requesters",
+                              stationMac, deviceId, remaining.value().size());
+                } else if (hasOtherAppEntry(rule)) {
+                    // Removing ours would delete the entry of the other app.
+                    log.debug("My Station entry for {} kept on {}, installed by another app",
+                              stationMac, deviceId);
+                } else {
+                    flowRuleService.removeFlowRules(rule);
+                }
+                break;
+            default:
+                log.warn("Unknown operation {}", obj.op());
+                obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.UNSUPPORTED));
+                return;
+        }
+
+        obj.context().ifPresent(c -> c.onSuccess(obj));
+    }
+
+    /**
+     * Returns true if an app other than the pipeliner has an entry with the
+     * same match as the given My Station rule on the device.
+     *
+     * @param rule My Station rule
+     * @return true if another app has the entry
+     */
+    private boolean hasOtherAppEntry(FlowRule rule) {
+        return stream(flowRuleService.getFlowEntries(deviceId))
+                .filter(f -> f.appId() != appId.id())
+                .filter(f -> f.state() != FlowEntry.FlowEntryState.PENDING_REMOVE
+                        && f.state() != FlowEntry.FlowEntryState.REMOVED)
+                .anyMatch(f -> f.table().equals(rule.table())
+                        && f.selector().equals(rule.selector()));
+    }
+
+    private FlowRule buildMyStationRule(MacAddress stationMac) {
+        final PiCriterion match = PiCriterion.builder()
+                .matchExact(PiMatchFieldId.of(ETH_DST_ADDR), stationMac.toBytes())
+                .build();
+        final PiAction action = PiAction.builder()
+                .withId(PiActionId.of(NO_ACTION))
+                .build();
+        return DefaultFlowRule.builder()
+                .forTable(PiTableId.of(MY_STATION_TABLE))
+                .forDevice(deviceId)
+                .withSelector(DefaultTrafficSelector.builder().matchPi(match).build())
+                .withTreatment(DefaultTrafficTreatment.builder()
+                                       .piTableAction(action).build())
+                // Shared by all requesters, hence owned by the pipeliner, with
+                // the same priority and permanent, such that any requester
+                // can remove it and it never expires while still counted.
+                .fromApp(appId)
+                .withPriority(DEFAULT_FLOW_RULE_PRIORITY)
+                .makePermanent()
+                .build();
     }
 
     @Override
     public void forward(ForwardingObjective obj) {
+        if (obj.nextId() != null) {
+            forwardToNext(obj);
+            return;
+        }
+
         if (obj.treatment() == null) {
             obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.UNSUPPORTED));
+            return;
         }
 
         // Whether this objective specifies an OUTPUT:CONTROLLER instruction.
@@ -92,6 +303,7 @@ public class PipelinerImpl extends AbstractHandlerBehaviour implements Pipeliner
             // We support only objectives for clone to CPU behaviours (e.g. for
             // host and link discovery)
             obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.UNSUPPORTED));
+            return;
         }
 
         // Create an equivalent FlowRule with same selector and clone_to_cpu action.
@@ -114,39 +326,594 @@ public class PipelinerImpl extends AbstractHandlerBehaviour implements Pipeliner
             ruleBuilder.makeTemporary(obj.timeout());
         }
 
-        final GroupDescription cloneGroup = Utils.buildCloneGroup(
-                obj.appId(),
-                deviceId,
-                CPU_CLONE_SESSION_ID,
-                // Ports where to clone the packet.
-                // Just controller in this case.
-                Collections.singleton(PortNumber.CONTROLLER));
-
         switch (obj.op()) {
             case ADD:
-                flowRuleService.applyFlowRules(ruleBuilder.build());
-                groupService.addGroup(cloneGroup);
+                ensureCloneSession(obj);
+                addToAclBatch(obj, ruleBuilder.build());
                 break;
             case REMOVE:
-                flowRuleService.removeFlowRules(ruleBuilder.build());
                 // Do not remove the clone group as other flow rules might be
                 // pointing to it.
+                addToAclBatch(obj, ruleBuilder.build());
                 break;
             default:
                 log.warn("Unknown operation {}", obj.op());
+                obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.UNSUPPORTED));
         }
+    }
 
-        obj.context().ifPresent(c -> c.onSuccess(obj));
+    /**
+     * Adds the CPU clone session to the device, unless already done. Clone
+     * sessions are shared by all ACL rules, hence at most one group write per
+     * device is needed.
+     *
+     * @param obj forwarding objective requiring the clone session
+     */
+    private void ensureCloneSession(ForwardingObjective obj) {
+        if (cloneSessionRequested.get() && groupService.getGroup(
+                deviceId, Utils.buildReplicationGroupKey(CPU_CLONE_SESSION_ID)) != null) {
+            return;
+        }
+        synchronized (cloneSessionRequested) {
+            // The group might have been added by a previous instance of this
+            // pipeliner, e.g. before the device reconnected.
+            if (groupService.getGroup(deviceId, Utils.buildReplicationGroupKey(
+                    CPU_CLONE_SESSION_ID)) == null) {
+                groupService.addGroup(Utils.buildCloneGroup(
+                        obj.appId(),
+                        deviceId,
+                        CPU_CLONE_SESSION_ID,
+                        // Ports where to clone the packet.
+                        // Just controller in this case.
+                        Collections.singleton(PortNumber.CONTROLLER)));
+            }
+            cloneSessionRequested.set(true);
+        }
+    }
+
+    /**
+     * Adds the given ACL rule to the batch of pending rule operations. Rules
+     * are written to the device when the batch is full or after a short delay,
+     * such that bursts of objectives (e.g. at device connection) result in few
+     * write requests. The objective context is notified when the batch has
+     * been applied.
+     *
+     * @param obj  forwarding objective
+     * @param rule ACL flow rule
+     */
+    private void addToAclBatch(ForwardingObjective obj, FlowRule rule) {
+        boolean flushNow = false;
+        synchronized (aclBatchLock) {
+            if (aclBatch.isEmpty()) {
+                SharedScheduledExecutors.newTimeout(
+                        this::flushAclBatch, ACL_BATCH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            aclBatch.add(new PendingAclOp(obj, rule));
+            if (aclBatch.size() >= ACL_BATCH_MAX_SIZE) {
+                flushNow = true;
+            }
+        }
+        if (flushNow) {
+            flushAclBatch();
+        }
+    }
+
+    private void flushAclBatch() {
+        final List<PendingAclOp> batch;
+        synchronized (aclBatchLock) {
+            if (aclBatch.isEmpty()) {
+                // Already flushed because full.
+                return;
+            }
+            batch = aclBatch;
+            aclBatch = Lists.newArrayList();
+        }
+
+        final FlowRuleOperations.Builder aclOps = FlowRuleOperations.builder();
+        batch.forEach(op -> {
+            if (op.obj.op() == Objective.Operation.ADD) {
+                aclOps.add(op.rule);
+            } else {
+                aclOps.remove(op.rule);
+            }
+        });
+
+        log.debug("Applying {} ACL rule operations to {}", batch.size(), deviceId);
+        flowRuleService.apply(aclOps.build(new FlowRuleOperationsContext() {
+            @Override
+            public void onSuccess(FlowRuleOperations ops) {
+                batch.forEach(op -> op.obj.context()
+                        .ifPresent(c -> c.onSuccess(op.obj)));
+            }
+
+            @Override
+            public void onError(FlowRuleOperations failedOps) {
+                final Set<FlowRule> failedRules = failedOps.stages().stream()
+                        .flatMap(Set::stream)
+                        .map(FlowRuleOperation::rule)
+                        .collect(Collectors.toSet());
+                batch.forEach(op -> op.obj.context().ifPresent(c -> {
+                    if (failedRules.contains(op.rule)) {
+                        c.onError(op.obj, ObjectiveError.FLOWINSTALLATIONFAILED);
+                    } else {
+                        c.onSuccess(op.obj);
+                    }
+                }));
+            }
+        }));
+    }
+
+    /**
+     * Maps a forwarding objective pointing to a next objective to a rule of
+     * the IPv4 or IPv6 routing table, depending on the destination address
+     * in the selector, with the ECMP group of the next objective as action.
+     * The objective context is notified when the rule has been applied.
+     *
+     * @param obj forwarding objective
+     */
+    private void forwardToNext(ForwardingObjective obj) {
+        final NextGroup nextGroup = flowObjectiveStore.getNextGroup(obj.nextId());
+        if (nextGroup == null) {
+            log.warn("Next objective {} not found on {}", obj.nextId(), deviceId);
+            obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.GROUPMISSING));
+            return;
+        }
+        final EcmpNextGroup ecmpGroup = EcmpNextGroup.decode(nextGroup.data());
+
+        // Routing tables match only on the destination address.
+        final Criterion ipv4Dst = obj.selector().getCriterion(Criterion.Type.IPV4_DST);
+        final Criterion ipv6Dst = obj.selector().getCriterion(Criterion.Type.IPV6_DST);
+        final String tableId;
+        final TrafficSelector selector;
+        if (ipv4Dst != null) {
+            tableId = ROUTING_V4_TABLE;
+            selector = DefaultTrafficSelector.builder().add(ipv4Dst).build();
+        } else if (ipv6Dst != null) {
+            tableId = ROUTING_V6_TABLE;
+            selector = DefaultTrafficSelector.builder().add(ipv6Dst).build();
+        } else {
+            log.warn("Forwarding objective {} on {} has no IP destination",
+                     obj.id(), deviceId);
+            obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.UNSUPPORTED));
+            return;
+        }
+
+        final FlowRule.Builder ruleBuilder = DefaultFlowRule.builder()
+                .forTable(PiTableId.of(tableId))
+                .forDevice(deviceId)
+                .withSelector(selector)
+                .fromApp(obj.appId())
+                .withPriority(obj.priority())
+                .withTreatment(DefaultTrafficTreatment.builder()
+                                       .piTableAction(PiActionProfileGroupId.of(
+                                               ecmpGroup.groupId())).build());
+        if (obj.permanent()) {
+            ruleBuilder.makePermanent();
+        } else {
+            ruleBuilder.makeTemporary(obj.timeout());
+        }
+
+        final FlowRuleOperations.Builder ops = FlowRuleOperations.builder();
+        switch (obj.op()) {
+            case ADD:
+                ops.add(ruleBuilder.build());
+                break;
+            case REMOVE:
+                ops.remove(ruleBuilder.build());
+                break;
+            default:
+                log.warn("Unknown operation {}", obj.op());
+                obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.UNSUPPORTED));
+                return;
+        }
+
+        flowRuleService.apply(ops.build(new FlowRuleOperationsContext() {
+            @Override
+            public void onSuccess(FlowRuleOperations ops) {
+                obj.context().ifPresent(c -> c.onSuccess(obj));
+            }
+
+            @Override
+            public void onError(FlowRuleOperations ops) {
+                obj.context().ifPresent(c -> c.onError(
+                        obj, ObjectiveError.FLOWINSTALLATIONFAILED));
+            }
+        }));
     }
 
     @Override
     public void next(NextObjective obj) {
-        obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.UNSUPPORTED));
+        if (obj.type() != NextObjective.Type.SIMPLE
+                && obj.type() != NextObjective.Type.HASHED) {
+            obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.UNSUPPORTED));
+            return;
+        }
+
+        final List<MacAddress> nextHopMacs;
+        try {
+            nextHopMacs = obj.next().stream()
+                    .map(this::getNextHopMac)
+                    .collect(Collectors.toList());
+        } catch (IllegalArgumentException e) {
+            log.warn("Unsupported next objective {} on {}: {}",
+                     obj.id(), deviceId, e.getMessage());
+            obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.UNSUPPORTED));
+            return;
+        }
+
+        // Group IDs are derived from next IDs, in a range disjoint from the
+        // one of the groups allocated by the app.
+        if (obj.id() < 0 || obj.id() >= NEXT_OBJECTIVE_GROUP_ID_BASE) {
+            log.warn("Next ID {} on {} is out of the supported range", obj.id(), deviceId);
+            obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.BADPARAMS));
+            return;
+        }
+        final int groupId = NEXT_OBJECTIVE_GROUP_ID_BASE + obj.id();
+        final GroupKey groupKey = new PiGroupKey(
+                PiTableId.of(ROUTING_V6_TABLE), PiActionProfileId.of(ECMP_SELECTOR), groupId);
+        final NextGroup cached = flowObjectiveStore.getNextGroup(obj.id());
+
+        // The next group is stored, hence forwarding objectives referring to
+        // it are processed, only once the device has confirmed the group.
+        switch (obj.op()) {
+            case ADD:
+                final EcmpNextGroup added = new EcmpNextGroup(groupId, nextHopMacs);
+                final Group existing = groupService.getGroup(deviceId, groupKey);
+                if (existing == null) {
+                    awaitGroup(obj, groupKey, added, false, () -> groupService.addGroup(
+                            Utils.buildSelectGroup(
+                                    deviceId, ROUTING_V6_TABLE, ECMP_SELECTOR, groupId,
+                                    buildNextHopActions(nextHopMacs), obj.appId())));
+                } else if (!ImmutableSet.copyOf(existing.buckets().buckets()).equals(
+                        ImmutableSet.copyOf(buildBuckets(nextHopMacs).buckets()))) {
+                    awaitGroup(obj, groupKey, added, true, () -> groupService.setBucketsForGroup(
+                            deviceId, groupKey, buildBuckets(nextHopMacs),
+                            groupKey, obj.appId()));
+                } else {
+                    // Same group already written, e.g. by a previous master,
+                    // avoid writing it again.
+                    log.debug("Reusing group {} for next objective {} on {}",
+                              groupId, obj.id(), deviceId);
+                    awaitGroup(obj, groupKey, added, false, () -> { });
+                }
+                return;
+            case ADD_TO_EXISTING:
+            case REMOVE_FROM_EXISTING:
+                if (cached == null) {
+                    obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.GROUPMISSING));
+                    return;
+                }
+                final GroupBuckets buckets = buildBuckets(nextHopMacs);
+                final List<MacAddress> updatedMacs = Lists.newArrayList(
+                        EcmpNextGroup.decode(cached.data()).nextHopMacs());
+                if (obj.op() == NextObjective.Operation.ADD_TO_EXISTING) {
+                    updatedMacs.addAll(nextHopMacs);
+                    awaitGroup(obj, groupKey, new EcmpNextGroup(groupId, updatedMacs), true,
+                               () -> groupService.addBucketsToGroup(
+                                       deviceId, groupKey, buckets, groupKey, obj.appId()));
+                } else {
+                    updatedMacs.removeAll(nextHopMacs);
+                    awaitGroup(obj, groupKey, new EcmpNextGroup(groupId, updatedMacs), true,
+                               () -> groupService.removeBucketsFromGroup(
+                                       deviceId, groupKey, buckets, groupKey, obj.appId()));
+                }
+                return;
+            case REMOVE:
+                // No new forwarding objective can refer to it from now on.
+                flowObjectiveStore.removeNextGroup(obj.id());
+                removeWhenUnreferenced(obj, groupKey, groupId);
+                return;
+            default:
+                log.warn("Unknown operation {}", obj.op());
+                obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.UNSUPPORTED));
+        }
+    }
+
+    /**
+     * Writes the ECMP group of the given next objective, then stores the next
+     * group and notifies the objective context once the device has confirmed
+     * the group. See {@link NextGroupOp}.
+     *
+     * @param obj       next objective
+     * @param groupKey  group key
+     * @param nextGroup next group to store once confirmed
+     * @param update    whether the write updates an existing group
+     * @param write     group write
+     */
+    private void awaitGroup(NextObjective obj, GroupKey groupKey, EcmpNextGroup nextGroup,
+                            boolean update, Runnable write) {
+        new NextGroupOp(obj, groupKey, nextGroup.groupId(), nextGroup, update).start(write);
+    }
+
+    /**
+     * Removes the ECMP group of the given next objective once no flow rule
+     * of the device refers to it anymore, e.g. after the forwarding objectives
+     * using it have been removed, and notifies the objective context once the
+     * device has confirmed the removal. The objective fails if flow rules
+     * still refer to the group after NEXT_OBJECTIVE_TIMEOUT_SECONDS, in which
+     * case the group is kept.
+     *
+     * @param obj      next objective
+     * @param groupKey group key
+     * @param groupId  group ID
+     */
+    private void removeWhenUnreferenced(NextObjective obj, GroupKey groupKey, int groupId) {
+        final Set<FlowId> referencing = Sets.newConcurrentHashSet(referencingFlows(groupId));
+        if (referencing.isEmpty()) {
+            removeGroup(obj, groupKey, groupId);
+            return;
+        }
+        log.debug("Deferring removal of group {} on {}, {} flow rules refer to it",
+                  groupId, deviceId, referencing.size());
+        final AtomicBoolean done = new AtomicBoolean();
+        final FlowRuleListener listener = new FlowRuleListener() {
+            @Override
+            public boolean isRelevant(FlowRuleEvent event) {
+                return event.type() == FlowRuleEvent.Type.RULE_REMOVED
+                        && event.subject().deviceId().equals(deviceId);
+            }
+
+            @Override
+            public void event(FlowRuleEvent event) {
+                if (referencing.remove(event.subject().id()) && referencing.isEmpty()
+                        && done.compareAndSet(false, true)) {
+                    flowRuleService.removeListener(this);
+                    removeGroup(obj, groupKey, groupId);
+                }
+            }
+        };
+        flowRuleService.addListener(listener);
+        SharedScheduledExecutors.newTimeout(() -> {
+            if (done.compareAndSet(false, true)) {
+                flowRuleService.removeListener(listener);
+                log.warn("Not removing group {} on {}, still used by {} flow rules",
+                         groupId, deviceId, referencing.size());
+                obj.context().ifPresent(c -> c.onError(obj, ObjectiveError.GROUPREMOVALFAILED));
+            }
+        }, NEXT_OBJECTIVE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        // Flow rules might have been removed before adding the listener.
+        referencing.retainAll(referencingFlows(groupId));
+        if (referencing.isEmpty() && done.compareAndSet(false, true)) {
+            flowRuleService.removeListener(listener);
+            removeGroup(obj, groupKey, groupId);
+        }
+    }
+
+    private void removeGroup(NextObjective obj, GroupKey groupKey, int groupId) {
+        new NextGroupOp(obj, groupKey, groupId, null, false).start(
+                () -> groupService.removeGroup(deviceId, groupKey, obj.appId()));
+    }
+
+    /**
+     * Returns the IDs of the flow rules of the device, of any app, whose
+     * action is the given action profile group.
+     *
+     * @param groupId group ID
+     * @return set of flow IDs
+     */
+    private Set<FlowId> referencingFlows(int groupId) {
+        return stream(flowRuleService.getFlowEntries(deviceId))
+                .filter(f -> f.state() != FlowEntry.FlowEntryState.REMOVED)
+                .filter(f -> f.treatment().allInstructions().stream()
+                        .filter(i -> i.type() == Instruction.Type.PROTOCOL_INDEPENDENT)
+                        .map(i -> ((PiInstruction) i).action())
+                        .anyMatch(a -> a.type() == PiTableAction.Type.ACTION_PROFILE_GROUP_ID
+                                && ((PiActionProfileGroupId) a).id() == groupId))
+                .map(FlowEntry::id)
+                .collect(Collectors.toSet());
     }
 
     @Override
     public List<String> getNextMappings(NextGroup nextGroup) {
-        // We do not use nextObjectives or groups.
-        return Collections.emptyList();
+        final EcmpNextGroup ecmpGroup = EcmpNextGroup.decode(nextGroup.data());
+        return ecmpGroup.nextHopMacs().stream()
+                .map(mac -> format("group 0x%08x -> %s(%s=%s)",
+                                   ecmpGroup.groupId(), SET_NEXT_HOP, DMAC, mac))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Returns the next hop MAC address from the given next objective
+     * treatment, expected to contain either an ETH_DST modification, or a
+     * set_next_hop PI action.
+     *
+     * @param treatment traffic treatment
+     * @return MAC address
+     * @throws IllegalArgumentException if the treatment is not supported
+     */
+    private MacAddress getNextHopMac(TrafficTreatment treatment) {
+        for (Instruction inst : treatment.allInstructions()) {
+            if (inst instanceof L2ModificationInstruction.ModEtherInstruction
+                    && ((L2ModificationInstruction) inst).subtype()
+                    == L2ModificationInstruction.L2SubType.ETH_DST) {
+                return ((L2ModificationInstruction.ModEtherInstruction) inst).mac();
+            }
+            if (inst instanceof PiInstruction
+                    && ((PiInstruction) inst).action() instanceof PiAction) {
+                final PiAction action = (PiAction) ((PiInstruction) inst).action();
+                if (action.id().equals(PiActionId.of(SET_NEXT_HOP))) {
+                    return action.parameters().stream()
+                            .filter(p -> p.id().equals(PiActionParamId.of(DMAC)))
+                            .map(p -> MacAddress.valueOf(p.value().asArray()))
+                            .findFirst()
+                            .orElseThrow(() -> new IllegalArgumentException(
+                                    "missing dmac parameter in " + action));
+                }
+            }
+        }
+        throw new IllegalArgumentException("no next hop MAC in " + treatment);
+    }
+
+    private Collection<PiAction> buildNextHopActions(List<MacAddress> nextHopMacs) {
+        return nextHopMacs.stream()
+                .map(mac -> PiAction.builder()
+                        .withId(PiActionId.of(SET_NEXT_HOP))
+                        .withParameter(new PiActionParam(
+                                PiActionParamId.of(DMAC), mac.toBytes()))
+                        .build())
+                .collect(Collectors.toList());
+    }
+
+    private GroupBuckets buildBuckets(List<MacAddress> nextHopMacs) {
+        final List<GroupBucket> buckets = buildNextHopActions(nextHopMacs).stream()
+                .map(action -> DefaultTrafficTreatment.builder()
+                        .piTableAction(action).build())
+                .map(DefaultGroupBucket::createSelectGroupBucket)
+                .collect(Collectors.toList());
+        return new GroupBuckets(buckets);
+    }
+
+    /**
+     * ACL rule operation waiting to be applied, with the objective originating
+     * it.
+     */
+    private static final class PendingAclOp {
+
+        private final ForwardingObjective obj;
+        private final FlowRule rule;
+
+        private PendingAclOp(ForwardingObjective obj, FlowRule rule) {
+            this.obj = obj;
+            this.rule = rule;
+        }
+    }
+
+    /**
+     * Group write of a next objective, waiting for the device to confirm it
+     * via group events before notifying the objective context, i.e. for the
+     * group to be ADDED with the buckets of the next group, or to be removed.
+     * The next group is stored only once confirmed. The objective fails if
+     * the group cannot be written, or if the write is not confirmed within
+     * NEXT_OBJECTIVE_TIMEOUT_SECONDS.
+     */
+    private final class NextGroupOp implements GroupListener {
+
+        private final NextObjective obj;
+        private final GroupKey groupKey;
+        private final int groupId;
+        // Null when removing the group.
+        private final EcmpNextGroup nextGroup;
+        private final Set<GroupBucket> expectedBuckets;
+        private final boolean update;
+        private final GroupEvent.Type failureType;
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        private NextGroupOp(NextObjective obj, GroupKey groupKey, int groupId,
+                            EcmpNextGroup nextGroup, boolean update) {
+            this.obj = obj;
+            this.groupKey = groupKey;
+            this.groupId = groupId;
+            this.nextGroup = nextGroup;
+            this.expectedBuckets = nextGroup == null ? null : ImmutableSet.copyOf(
+                    buildBuckets(nextGroup.nextHopMacs()).buckets());
+            this.update = update;
+            if (nextGroup == null) {
+                failureType = GroupEvent.Type.GROUP_REMOVE_FAILED;
+            } else if (update) {
+                failureType = GroupEvent.Type.GROUP_UPDATE_FAILED;
+            } else {
+                failureType = GroupEvent.Type.GROUP_ADD_FAILED;
+            }
+        }
+
+        private void start(Runnable write) {
+            groupService.addListener(this);
+            SharedScheduledExecutors.newTimeout(
+                    () -> finish(false), NEXT_OBJECTIVE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            write.run();
+            // The write might have been confirmed before adding the listener,
+            // or be a no-op. Updated groups are ADDED with the old buckets
+            // until confirmed, but might already have the new ones.
+            if (!update && confirmed()) {
+                finish(true);
+            }
+        }
+
+        private boolean confirmed() {
+            final Group group = groupService.getGroup(deviceId, groupKey);
+            if (nextGroup == null) {
+                return group == null;
+            }
+            return group != null && group.state() == Group.GroupState.ADDED
+                    && ImmutableSet.copyOf(group.buckets().buckets()).equals(expectedBuckets);
+        }
+
+        @Override
+        public boolean isRelevant(GroupEvent event) {
+            return event.subject().deviceId().equals(deviceId)
+                    && event.subject().appCookie().equals(groupKey);
+        }
+
+        @Override
+        public void event(GroupEvent event) {
+            if (event.type() == failureType) {
+                finish(false);
+            } else if (confirmed()) {
+                finish(true);
+            }
+        }
+
+        private void finish(boolean success) {
+            if (!done.compareAndSet(false, true)) {
+                return;
+            }
+            groupService.removeListener(this);
+            if (success) {
+                if (nextGroup != null) {
+                    flowObjectiveStore.putNextGroup(obj.id(), nextGroup);
+                }
+                obj.context().ifPresent(c -> c.onSuccess(obj));
+                return;
+            }
+            log.warn("Unable to {} group {} of next objective {} on {}",
+                     nextGroup == null ? "remove" : "write", groupId, obj.id(), deviceId);
+            obj.context().ifPresent(c -> c.onError(obj, nextGroup == null
+                    ? ObjectiveError.GROUPREMOVALFAILED
+                    : ObjectiveError.GROUPINSTALLATIONFAILED));
+        }
+    }
+
+    /**
+     * Next group stored in the flow objective store, made of the ECMP group ID
+     * and the list of next hop MAC addresses.
+     */
+    private static final class EcmpNextGroup implements NextGroup {
+
+        private final int groupId;
+        private final List<MacAddress> nextHopMacs;
+
+        private EcmpNextGroup(int groupId, List<MacAddress> nextHopMacs) {
+            this.groupId = groupId;
+            this.nextHopMacs = ImmutableList.copyOf(nextHopMacs);
+        }
+
+        int groupId() {
+            return groupId;
+        }
+
+        List<MacAddress> nextHopMacs() {
+            return nextHopMacs;
+        }
+
+        @Override
+        public byte[] data() {
+            final ByteBuffer buffer = ByteBuffer.allocate(
+                    Integer.BYTES + nextHopMacs.size() * MacAddress.MAC_ADDRESS_LENGTH);
+            buffer.putInt(groupId);
+            nextHopMacs.forEach(mac -> buffer.put(mac.toBytes()));
+            return buffer.array();
+        }
+
+        static EcmpNextGroup decode(byte[] data) {
+            final ByteBuffer buffer = ByteBuffer.wrap(data);
+            final int groupId = buffer.getInt();
+            final ImmutableList.Builder<MacAddress> macs = ImmutableList.builder();
+            final byte[] mac = new byte[MacAddress.MAC_ADDRESS_LENGTH];
+            while (buffer.remaining() >= MacAddress.MAC_ADDRESS_LENGTH) {
+                buffer.get(mac);
+                macs.add(MacAddress.valueOf(mac));
+            }
+            return new EcmpNextGroup(groupId, macs.build());
+        }
     }
 }
@@ -77,6 +77,9 @@ HOST1_IPV6 = "2001:0000:85a3::8a2e:370:1111"
 HOST2_IPV6 = "2001:0000:85a3::8a2e:370:2222"
 IPV6_MASK_ALL = "FFFF:FFFF:FFFF:FFFF:FFFF:FFFF:FFFF:FFFF"
 
+SWITCH1_IPV4 = "10.0.1.254"
+HOST1_IPV4 = "10.0.1.1"
+
 ARP_ETH_TYPE = 0x0806
 IPV6_ETH_TYPE = 0x86DD
 
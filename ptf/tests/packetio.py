@@ -42,6 +42,7 @@ from ptf.testutils import group
 from base_test import *
 
 CPU_CLONE_SESSION_ID = 99
+FLOOD_GROUP_ID = 254
 
 
 @group("packetio")
@@ -68,7 +69,8 @@ class PacketOutTest(P4RuntimeTest):
                 payload=str(pkt),
                 metadata={
                     "MODIFY ME": outport,
-                    "_pad": 0
+                    "_pad": 0,
+                    "mcast_grp": 0
                 })
             # ---- END SOLUTION ----
 
@@ -81,6 +83,49 @@ class PacketOutTest(P4RuntimeTest):
         testutils.verify_no_other_packets(self)
 
 
+@group("packetio")
+class PacketOutFloodTest(P4RuntimeTest):
+    """Tests flooding of packet-outs by means of a multicast group, i.e. that a
+    single PacketOut message with the mcast_grp metadata set is replicated on
+    all ports of the given PRE multicast group.
+    """
+
+    def runTest(self):
+        for pkt_type in ["tcp", "udp", "icmp", "arp", "tcpv6", "udpv6",
+                         "icmpv6"]:
+            print_inline("%s ... " % pkt_type)
+            pkt = getattr(testutils, "simple_%s_packet" % pkt_type)()
+            self.testPacket(pkt)
+
+    @autocleanup
+    def testPacket(self, pkt):
+        flood_ports = [self.port1, self.port2, self.port3]
+
+        # Insert flood multicast group.
+        self.insert_pre_multicast_group(
+            group_id=FLOOD_GROUP_ID,
+            ports=flood_ports)
+
+        # Build PacketOut message. The egress port is ignored when the
+        # multicast group is set.
+        packet_out_msg = self.helper.build_packet_out(
+            payload=str(pkt),
+            metadata={
+                "MODIFY ME": 0,
+                "_pad": 0,
+                "mcast_grp": FLOOD_GROUP_ID
+            })
+
+        # Send message and expect packet on all ports of the group.
+        self.send_packet_out(packet_out_msg)
+
+        for port in flood_ports:
+            testutils.verify_packet(self, pkt, port)
+
+        # Make sure packet was forwarded only on the group ports.
+        testutils.verify_no_other_packets(self)
+
+
 @group("packetio")
 class PacketInTest(P4RuntimeTest):
     """Tests controller packet-in capability my matching on the packet EtherType
@@ -137,3 +182,76 @@ class PacketInTest(P4RuntimeTest):
             # PacketIn message.
             testutils.send_packet(self, inport, str(pkt))
             self.verify_packet_in(exp_packet_in_msg)
+
+
+@group("packetio")
+class PacketInMeterTest(P4RuntimeTest):
+    """Tests rate limiting of packet-ins by means of the per-ingress-port CPU
+    meter. Sends a burst of packets matching a send_to_cpu ACL entry and
+    expects only some of them to be received as PacketIn messages.
+    """
+
+    def runTest(self):
+        pkt = testutils.simple_udpv6_packet()
+        self.testPacket(pkt)
+
+    def set_cpu_meter(self, port, rate=None, burst=None):
+        # Sets the meter cell of the given port. If rate is None, the cell is
+        # reset to its default configuration (no rate limit).
+        req = self.get_new_write_request()
+        update = req.updates.add()
+        update.type = p4runtime_pb2.Update.MODIFY
+        meter_entry = update.entity.meter_entry
+        meter_entry.meter_id = self.helper.get_meters_id(
+            "IngressPipeImpl.cpu_port_meter")
+        meter_entry.index.index = port
+        if rate is not None:
+            meter_entry.config.cir = rate
+            meter_entry.config.cburst = burst
+            meter_entry.config.pir = rate
+            meter_entry.config.pburst = burst
+        # Meter cells cannot be deleted, we reset them explicitly.
+        self.write_request(req, store=False)
+
+    @autocleanup
+    def testPacket(self, pkt):
+        burst_size = 100
+
+        # Insert ACL entry to match on the given eth_type and send to CPU.
+        eth_type = pkt[Ether].type
+        self.insert(self.helper.build_table_entry(
+            table_name="IngressPipeImpl.acl_table",
+            match_fields={
+                # Ternary match.
+                "hdr.ethernet.ether_type": (eth_type, 0xffff)
+            },
+            action_name="IngressPipeImpl.send_to_cpu",
+            priority=DEFAULT_PRIORITY
+        ))
+
+        # Allow only 1 packet per second to the CPU from port1.
+        self.set_cpu_meter(self.port1, rate=1, burst=1)
+        try:
+            for _ in range(burst_size):
+                testutils.send_packet(self, self.port1, str(pkt))
+
+            received = 0
+            while self.get_stream_packet("packet", timeout=1) is not None:
+                received += 1
+
+            if received == 0 or received >= burst_size:
+                self.fail("Expected packet-ins to be rate limited, received "
+                          "%d out of %d packets" % (received, burst_size))
+        finally:
+            self.set_cpu_meter(self.port1)
+
+        # Other ports are not rate limited.
+        exp_packet_in_msg = self.helper.build_packet_in(
+            payload=str(pkt),
+            metadata={
+                "ingress_port": self.port2,
+                "_pad": 0
+            })
+        for _ in range(10):
+            testutils.send_packet(self, self.port2, str(pkt))
+            self.verify_packet_in(exp_packet_in_msg)
@@ -14,7 +14,7 @@
 #
 
 # ------------------------------------------------------------------------------
-# IPV6 ROUTING TESTS
+# IPV6 AND IPV4 ROUTING TESTS
 #
 # To run all tests:
 #     make p4-test TEST=routing
@@ -173,4 +173,182 @@ class NdpReplyGenTest(P4RuntimeTest):
 
         # Send NDP NS, expect NDP NA from the same port.
         testutils.send_packet(self, self.port1, str(pkt))
-        testutils.verify_packet(self, exp_pkt, self.port1)
\ No newline at end of file
+        testutils.verify_packet(self, exp_pkt, self.port1)
+
+
+@group("routing")
+class ArpReplyGenTest(P4RuntimeTest):
+    """Tests automatic generation of ARP replies for IPv4 addresses associated
+    to the switch interface.
+    """
+
+    @autocleanup
+    def runTest(self):
+        switch_ip = SWITCH1_IPV4
+        target_mac = SWITCH1_MAC
+
+        # Insert entry to transform ARP requests for the given target address
+        # (match), to ARP replies with the given target MAC address (action).
+        self.insert(self.helper.build_table_entry(
+            table_name="IngressPipeImpl.arp_reply_table",
+            match_fields={
+                # Exact match.
+                "hdr.arp.target_proto_addr": switch_ip
+            },
+            action_name="IngressPipeImpl.arp_request_to_reply",
+            action_params={
+                "target_mac": target_mac
+            }
+        ))
+
+        # ARP request
+        pkt = testutils.simple_arp_packet(
+            eth_src=HOST1_MAC, hw_snd=HOST1_MAC,
+            ip_snd=HOST1_IPV4, ip_tgt=switch_ip)
+
+        # ARP reply
+        exp_pkt = testutils.simple_arp_packet(
+            eth_dst=HOST1_MAC, eth_src=target_mac, arp_op=2,
+            hw_snd=target_mac, hw_tgt=HOST1_MAC,
+            ip_snd=switch_ip, ip_tgt=HOST1_IPV4)
+
+        # Send ARP request, expect ARP reply from the same port.
+        testutils.send_packet(self, self.port1, str(pkt))
+        testutils.verify_packet(self, exp_pkt, self.port1)
+
+
+@group("routing")
+class IPv4RoutingTest(P4RuntimeTest):
+    """Tests basic IPv4 routing"""
+
+    def runTest(self):
+        # Test with different type of packets.
+        for pkt_type in ["tcp", "udp", "icmp"]:
+            print_inline("%s ... " % pkt_type)
+            pkt = getattr(testutils, "simple_%s_packet" % pkt_type)()
+            self.testPacket(pkt)
+
+    @autocleanup
+    def testPacket(self, pkt):
+        next_hop_mac = SWITCH2_MAC
+
+        # Add entry to "My Station" table. Consider the given pkt's eth dst addr
+        # as myStationMac address.
+        self.insert(self.helper.build_table_entry(
+            table_name="IngressPipeImpl.my_station_table",
+            match_fields={
+                # Exact match.
+                "hdr.ethernet.dst_addr": pkt[Ether].dst
+            },
+            action_name="NoAction"
+        ))
+
+        # Insert ECMP group with only one member (next_hop_mac)
+        self.insert(self.helper.build_act_prof_group(
+            act_prof_name="IngressPipeImpl.ecmp_selector",
+            group_id=1,
+            actions=[
+                # List of tuples (action name, action param dict)
+                ("IngressPipeImpl.set_next_hop", {"dmac": next_hop_mac}),
+            ]
+        ))
+
+        # Insert L3 entry to map pkt's IPv4 dst addr to group
+        self.insert(self.helper.build_table_entry(
+            table_name="IngressPipeImpl.routing_v4_table",
+            match_fields={
+                # LPM match (value, prefix)
+                "hdr.ipv4.dst_addr": (pkt[IP].dst, 32)
+            },
+            group_id=1
+        ))
+
+        # Insert L2 entry to map next_hop_mac to output port 2.
+        self.insert(self.helper.build_table_entry(
+            table_name="IngressPipeImpl.l2_exact_table",
+            match_fields={
+                # Exact match
+                "hdr.ethernet.dst_addr": next_hop_mac
+            },
+            action_name="IngressPipeImpl.set_egress_port",
+            action_params={
+                "port_num": self.port2
+            }
+        ))
+
+        # Expected pkt should have routed MAC addresses and decremented TTL,
+        # with the IPv4 checksum updated accordingly.
+        exp_pkt = pkt.copy()
+        pkt_route(exp_pkt, next_hop_mac)
+        pkt_decrement_ttl(exp_pkt)
+        del exp_pkt[IP].chksum
+
+        testutils.send_packet(self, self.port1, str(pkt))
+        testutils.verify_packet(self, exp_pkt, self.port2)
+
+
+@group("routing")
+class DualStackSharedGroupTest(P4RuntimeTest):
+    """Tests IPv4 and IPv6 routing entries pointing to the same ECMP group,
+    with the IPv4 and IPv6 routing tables sharing the action selector.
+    """
+
+    @autocleanup
+    def runTest(self):
+        next_hop_mac = SWITCH2_MAC
+        pkt4 = testutils.simple_udp_packet()
+        pkt6 = testutils.simple_udpv6_packet()
+
+        self.insert(self.helper.build_table_entry(
+            table_name="IngressPipeImpl.my_station_table",
+            match_fields={
+                "hdr.ethernet.dst_addr": pkt4[Ether].dst
+            },
+            action_name="NoAction"
+        ))
+
+        # A single group used by both routing tables.
+        self.insert(self.helper.build_act_prof_group(
+            act_prof_name="IngressPipeImpl.ecmp_selector",
+            group_id=1,
+            actions=[
+                ("IngressPipeImpl.set_next_hop", {"dmac": next_hop_mac}),
+            ]
+        ))
+
+        self.insert(self.helper.build_table_entry(
+            table_name="IngressPipeImpl.routing_v4_table",
+            match_fields={
+                "hdr.ipv4.dst_addr": (pkt4[IP].dst, 32)
+            },
+            group_id=1
+        ))
+
+        self.insert(self.helper.build_table_entry(
+            table_name="IngressPipeImpl.routing_v6_table",
+            match_fields={
+                "hdr.ipv6.dst_addr": (pkt6[IPv6].dst, 128)
+            },
+            group_id=1
+        ))
+
+        self.insert(self.helper.build_table_entry(
+            table_name="IngressPipeImpl.l2_exact_table",
+            match_fields={
+                "hdr.ethernet.dst_addr": next_hop_mac
+            },
+            action_name="IngressPipeImpl.set_egress_port",
+            action_params={
+                "port_num": self.port2
+            }
+        ))
+
+        for pkt in [pkt4, pkt6]:
+            exp_pkt = pkt.copy()
+            pkt_route(exp_pkt, next_hop_mac)
+            pkt_decrement_ttl(exp_pkt)
+            if IP in exp_pkt:
+                del exp_pkt[IP].chksum
+
+            testutils.send_packet(self, self.port1, str(pkt))
+            testutils.verify_packet(self, exp_pkt, self.port2)
@@ -41,6 +41,12 @@ from ptf.testutils import group
 
 from base_test import *
 
+# Must match SRV6_MAX_HOPS in main.p4.
+SRV6_MAX_SEGMENTS = 8
+
+# Number of packets sent for each SRv6 header depth by Srv6ParseDepthTest.
+PARSE_DEPTH_PKT_COUNT = 100
+
 
 def insert_srv6_header(pkt, sid_list):
     """Applies SRv6 insert transformation to the given packet.
@@ -60,6 +66,15 @@ def insert_srv6_header(pkt, sid_list):
     return pkt
 
 
+def build_sid_list(length, first_switch=1):
+    """Returns a list of SIDs of the given length, where all but the last one
+    are switch SIDs (starting from the given switch number) and the last one is
+    the destination host address.
+    """
+    return ["2001:0:%x::1" % (first_switch + x) for x in range(length - 1)] \
+           + [HOST2_IPV6]
+
+
 def pop_srv6_header(pkt):
     """Removes SRv6 header from the given packet.
     """
@@ -86,6 +101,8 @@ class Srv6InsertTest(P4RuntimeTest):
         sid_lists = (
             [SWITCH2_IPV6, SWITCH3_IPV6, HOST2_IPV6],
             [SWITCH2_IPV6, HOST2_IPV6],
+            build_sid_list(4),
+            build_sid_list(SRV6_MAX_SEGMENTS),
         )
         next_hop_mac = SWITCH2_MAC
 
@@ -306,6 +323,7 @@ class Srv6EndTest(P4RuntimeTest):
         sid_lists = (
             [SWITCH2_IPV6, SWITCH3_IPV6, HOST2_IPV6],
             [SWITCH2_IPV6, SWITCH3_IPV6, SWITCH4_IPV6, HOST2_IPV6],
+            build_sid_list(SRV6_MAX_SEGMENTS, first_switch=2),
         )
         next_hop_mac = SWITCH3_MAC
 
@@ -507,3 +525,88 @@ class Srv6EndPspTest(P4RuntimeTest):
 
         testutils.send_packet(self, self.port1, str(pkt))
         testutils.verify_packet(self, exp_pkt, self.port2)
+
+
+@group("srv6")
+class Srv6ParseDepthTest(P4RuntimeTest):
+    """Measures how the depth of the SRv6 segment list affects packet
+    processing time. For each depth, the switch receives SRv6 packets that are
+    routed without any SRv6-related modification (transit), hence the only
+    difference between runs is the number of srv6_list entries the parser has
+    to extract. Results are printed as the average send-to-receive time per
+    packet; on bmv2 these are only indicative of the relative cost of deeper
+    header stacks.
+    """
+
+    def runTest(self):
+        next_hop_mac = SWITCH2_MAC
+        results = []
+        for depth in range(2, SRV6_MAX_SEGMENTS + 1):
+            sid_list = build_sid_list(depth)
+            pkt = insert_srv6_header(testutils.simple_udpv6_packet(), sid_list)
+            avg_usec = self.testDepth(pkt, next_hop_mac)
+            results.append((depth, avg_usec))
+
+        print("")
+        for depth, avg_usec in results:
+            print("  %d SIDs: %.1f usec/pkt (%+.1f%% vs 2 SIDs)" % (
+                depth, avg_usec, 100.0 * (avg_usec / results[0][1] - 1)))
+
+    @autocleanup
+    def testDepth(self, pkt, next_hop_mac):
+
+        self.insert(self.helper.build_table_entry(
+            table_name="IngressPipeImpl.my_station_table",
+            match_fields={
+                # Exact match.
+                "hdr.ethernet.dst_addr": pkt[Ether].dst
+            },
+            action_name="NoAction"
+        ))
+
+        self.insert(self.helper.build_act_prof_group(
+            act_prof_name="IngressPipeImpl.ecmp_selector",
+            group_id=1,
+            actions=[
+                # List of tuples (action name, {action param: value})
+                ("IngressPipeImpl.set_next_hop", {"dmac": next_hop_mac}),
+            ]
+        ))
+
+        self.insert(self.helper.build_table_entry(
+            table_name="IngressPipeImpl.routing_v6_table",
+            match_fields={
+                # LPM match (value, prefix)
+                "hdr.ipv6.dst_addr": (pkt[IPv6].dst, 128)
+            },
+            group_id=1
+        ))
+
+        self.insert(self.helper.build_table_entry(
+            table_name="IngressPipeImpl.l2_exact_table",
+            match_fields={
+                # Exact match.
+                "hdr.ethernet.dst_addr": next_hop_mac
+            },
+            action_name="IngressPipeImpl.set_egress_port",
+            action_params={
+                "port_num": self.port2
+            }
+        ))
+
+        exp_pkt = pkt.copy()
+        pkt_route(exp_pkt, next_hop_mac)
+        pkt_decrement_ttl(exp_pkt)
+
+        set_cksum(pkt, 1)
+        set_cksum(exp_pkt, 1)
+
+        print_inline("%d SIDs ... " % (pkt[IPv6ExtHdrSegmentRouting].lastentry + 1))
+
+        start = time.time()
+        for _ in range(PARSE_DEPTH_PKT_COUNT):
+            testutils.send_packet(self, self.port1, str(pkt))
+            testutils.verify_packet(self, exp_pkt, self.port2)
+        elapsed = time.time() - start
+
+        return elapsed * 1e6 / PARSE_DEPTH_PKT_COUNT